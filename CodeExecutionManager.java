@@ -1,18 +1,15 @@
 package com.codestudio.mobile;
 
-import android.app.Activity;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -23,11 +20,14 @@ import java.util.concurrent.Future;
 public class CodeExecutionManager {
 
     private static final String TAG = "CodeExecManager";
+    public static final int NO_SESSION = -1;
     private final Context context;
     //    private final TermuxRunner termuxRunner;
     private final CommandFetcher commandFetcher;
     private final ExecutionListener listener;
+    // Only prepares commands; the programs themselves run as sessions in the scheduler.
     private final ExecutorService executorService;
+    private final SessionScheduler scheduler;
     private final Handler uiHandler;
     private final File termuxCommDir;
 
@@ -38,6 +38,27 @@ public class CodeExecutionManager {
         this.commandFetcher = new CommandFetcher(context);
         this.executorService = Executors.newSingleThreadExecutor();
         this.uiHandler = new Handler(Looper.getMainLooper());
+        this.scheduler = new SessionScheduler(uiHandler, new SessionScheduler.Listener() {
+            @Override
+            public void onSessionStarted(SessionScheduler.Session session) {
+                listener.onExecutionStarted(session.id, session.command, session.name);
+            }
+
+            @Override
+            public void onSessionOutput(SessionScheduler.Session session, CharSequence text) {
+                listener.onOutputReceived(session.id, text);
+            }
+
+            @Override
+            public void onSessionFinished(SessionScheduler.Session session, ProcessSupervisor.Result result) {
+                listener.onExecutionComplete(session.id, result);
+            }
+
+            @Override
+            public void onSessionFailed(SessionScheduler.Session session, String message) {
+                listener.onExecutionError(session.id, message);
+            }
+        });
         this.termuxCommDir = new File(context.getFilesDir(), "termux_exec_temp");
         if (!this.termuxCommDir.exists()) {
             this.termuxCommDir.mkdirs();
@@ -60,7 +81,7 @@ public class CodeExecutionManager {
                 Future<ExecutionConfig> configFuture = commandFetcher.fetchConfig(fileTypeKey);
                 ExecutionConfig config = configFuture.get();
                 if (config == null || config.template == null || config.template.isEmpty()) {
-                    listener.onExecutionError("No valid execution config found for file type: " + fileTypeKey);
+                    uiHandler.post(() -> listener.onExecutionError(NO_SESSION, "No valid execution config found for file type: " + fileTypeKey));
                     return;
                 }
                 int argCount = countFormatSpecifiers(config.template);
@@ -82,19 +103,17 @@ public class CodeExecutionManager {
                         formattedCommand = String.format(config.template, config.installCommand, termuxFilePath, outputFilePath, "Execution Finished");
                         break;
                     default:
-                        listener.onExecutionError("Unsupported format specifier count in template.");
+                        uiHandler.post(() -> listener.onExecutionError(NO_SESSION, "Unsupported format specifier count in template."));
                         return;
                 }
-                uiHandler.post(() -> listener.onExecutionStarted(formattedCommand, fileName));
-                Log.d(TAG, "runCodeInNewTermuxSession called with: " + termuxFilePath + ", " + mimeType + ", " + fileName);
-                sendInput(formattedCommand);
                 Log.d(TAG, "runCodeInNewTermuxSession called with: " + termuxFilePath + ", " + mimeType + ", " + fileName);
+                runCommand(fileName, formattedCommand, SessionScheduler.PRIORITY_NORMAL);
             } catch (InterruptedException | ExecutionException e) {
                 Log.e(TAG, "Command Fetching Failed: " + e.getMessage());
-                uiHandler.post(() -> listener.onExecutionError("Failed to prepare command: " + e.getMessage()));
+                uiHandler.post(() -> listener.onExecutionError(NO_SESSION, "Failed to prepare command: " + e.getMessage()));
             } catch (Exception e) {
                 Log.e(TAG, "General Execution Failed: " + e.getMessage());
-                uiHandler.post(() -> listener.onExecutionError("Failed to launch code: " + e.getMessage()));
+                uiHandler.post(() -> listener.onExecutionError(NO_SESSION, "Failed to launch code: " + e.getMessage()));
             }
         });
     }
@@ -139,6 +158,7 @@ public class CodeExecutionManager {
 
     public void shutdown() {
         executorService.shutdownNow();
+        scheduler.shutdown();
         commandFetcher.shutdown();
     }
 
@@ -186,38 +206,61 @@ public class CodeExecutionManager {
         }
     }
 
-    public void sendInput(String input) {
-        ((Activity) context).runOnUiThread(() ->
-        {
-            executorService.submit(() -> {
-                try {
-                    Process process = Runtime.getRuntime().exec(new String[]{"sh", "-c", input});
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        String finalLine = line;
-                        uiHandler.post(() -> listener.onOutputReceived(finalLine + "\n"));
-                    }
-                    reader.close();
-                    uiHandler.post(listener::onExecutionComplete);
-                } catch (Exception e) {
-                    Log.e(TAG, "sendInput failed: " + e.getMessage());
-                    uiHandler.post(() -> listener.onExecutionError("Command failed: " + e.getMessage()));
-                }
-            });
-        });
+    /**
+     * Runs command in a new session, within the run limits from the settings, and returns its
+     * ID, which every callback for it carries. The session may wait in the queue first; see
+     * {@link #isQueued(int)}.
+     */
+    public int runCommand(String name, String command, int priority) {
+        scheduler.setMaxRunning(EditorActivity.getMaxRunningSessions(context));
+        return scheduler.submit(name, command, priority, EditorActivity.getRunLimits(context));
+    }
+
+    /**
+     * Stops a session's program and everything it started; a second call kills them at once.
+     * Returns false if the session has already ended.
+     */
+    public boolean stop(int sessionId) {
+        return scheduler.stop(sessionId);
+    }
+
+    /**
+     * Queues text for the session's stdin as is, so a typed line needs its "\n". Returns false
+     * if the session has ended or is not taking input.
+     */
+    public boolean sendInput(int sessionId, String text) {
+        return scheduler.sendInput(sessionId, text);
+    }
+
+    public boolean sendEndOfInput(int sessionId) {
+        return scheduler.sendEndOfInput(sessionId);
+    }
+
+    public boolean isQueued(int sessionId) {
+        return scheduler.isQueued(sessionId);
+    }
+
+    public int getRunningCount() {
+        return scheduler.getRunningCount();
+    }
+
+    /**
+     * Drops a session that is still waiting for a slot, e.g. because its tab was closed.
+     */
+    public boolean cancelQueued(int sessionId) {
+        return scheduler.cancelQueued(sessionId);
     }
 
     /**
-     * Simplified interface, only error reporting is practical for external Termux launch.
+     * Callbacks arrive on the main thread. Errors that belong to no session carry NO_SESSION.
      */
     public interface ExecutionListener {
-        void onExecutionError(String message);
+        void onExecutionError(int sessionId, String message);
 
-        void onExecutionStarted(String command, String fileName);
+        void onExecutionStarted(int sessionId, String command, String name);
 
-        void onOutputReceived(String output);
+        void onOutputReceived(int sessionId, CharSequence output);
 
-        void onExecutionComplete();
+        void onExecutionComplete(int sessionId, ProcessSupervisor.Result result);
     }// Inside CodeExecutionManager.java
 }
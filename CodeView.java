@@ -0,0 +1,886 @@
+package com.codestudio.mobile;
+
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.text.InputType;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.ActionMode;
+import android.view.GestureDetector;
+import android.view.HapticFeedbackConstants;
+import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.inputmethod.BaseInputConnection;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.OverScroller;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Virtualized code view: lays out nothing up front and only draws the lines (and columns)
+ * inside the viewport plus a small overscan, reading them from a {@link LineSource}.
+ * Opening a 100k-line file costs the same as a short script because no per-line layout
+ * objects exist. Text is drawn monospaced so columns map directly to x positions.
+ * <p>
+ * A long press selects the word under the finger and opens an action mode with copy, cut,
+ * paste and select all; the selection's ends carry handles that can be dragged. Copied text
+ * is read straight from the document, so even a selection spanning the whole file never
+ * goes through a layout. Sources that cannot map offsets to lines ({@link MappedLineSource})
+ * are view-only: there is no selection and nothing to copy.
+ */
+public class CodeView extends View {
+
+    private static final int OVERSCAN_LINES = 8;
+    private static final int OVERSCAN_COLUMNS = 16;
+    private static final int HANDLE_NONE = 0;
+    private static final int HANDLE_START = 1;
+    private static final int HANDLE_END = 2;
+    // How far a long press looks either way for the ends of a word, so minified lines stay cheap.
+    private static final int MAX_WORD_SCAN = 256;
+
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gutterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gutterBackgroundPaint = new Paint();
+    private final Paint cursorPaint = new Paint();
+    private final Paint tokenPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint matchPaint = new Paint();
+    private final Paint selectionPaint = new Paint();
+    private final Paint handlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final OverScroller scroller;
+    private final GestureDetector gestureDetector;
+    private final char[] digits = new char[11];
+    private char[] lineBuffer = new char[256];
+
+    private LineSource source;
+    private SyntaxHighlighter highlighter;
+    private OnTextEditedListener editListener;
+    private MatchSource matchSource;
+    private float charWidth;
+    private int lineHeight;
+    private float baselineOffset;
+    private int gutterWidth;
+    private int widestColumns;
+    private int cursorOffset;
+    // The fixed end of the selection, or -1 if there is none; cursorOffset is the moving end.
+    private int selectionAnchor = -1;
+    private int draggedHandle = HANDLE_NONE;
+    private ActionMode actionMode;
+    private int composingStart = -1;
+    private int composingLength;
+    private int pendingFirstLine = -1;
+    private boolean editingEnabled = true;
+
+    public CodeView(Context context) {
+        this(context, null);
+    }
+
+    public CodeView(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        setFocusable(true);
+        setFocusableInTouchMode(true);
+        setWillNotDraw(false);
+
+        TypedArray a = context.obtainStyledAttributes(attrs, new int[]{android.R.attr.textSize});
+        float textSize = a.getDimension(0, TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 20, getResources().getDisplayMetrics()));
+        a.recycle();
+        TypedArray theme = context.getTheme().obtainStyledAttributes(new int[]{android.R.attr.textColorPrimary, android.R.attr.textColorSecondary});
+        textPaint.setColor(theme.getColor(0, 0xFF000000));
+        gutterPaint.setColor(theme.getColor(1, 0xFF888888));
+        theme.recycle();
+
+        textPaint.setTypeface(Typeface.MONOSPACE);
+        tokenPaint.setTypeface(Typeface.MONOSPACE);
+        gutterPaint.setTypeface(Typeface.MONOSPACE);
+        gutterPaint.setTextAlign(Paint.Align.RIGHT);
+        gutterBackgroundPaint.setColor(0x10808080);
+        cursorPaint.setColor(textPaint.getColor());
+        matchPaint.setColor(0x60FFC107);
+        selectionPaint.setColor(0x603F7FBF);
+        handlePaint.setColor(0xFF3F7FBF);
+        applyTextSize(textSize);
+
+        scroller = new OverScroller(context);
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(@NonNull MotionEvent e) {
+                scroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(@Nullable MotionEvent e1, @NonNull MotionEvent e2, float distanceX, float distanceY) {
+                scrollBy((int) distanceX, (int) distanceY);
+                return true;
+            }
+
+            @Override
+            public boolean onFling(@Nullable MotionEvent e1, @NonNull MotionEvent e2, float velocityX, float velocityY) {
+                scroller.fling(getScrollX(), getScrollY(), (int) -velocityX, (int) -velocityY, 0, getMaxScrollX(), 0, getMaxScrollY());
+                postInvalidateOnAnimation();
+                return true;
+            }
+
+            @Override
+            public void onLongPress(@NonNull MotionEvent e) {
+                if (!canSelect() || source.length() == 0) return;
+                finishComposing();
+                selectWordAt(offsetForPoint(e.getX() + getScrollX(), e.getY() + getScrollY()));
+                performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+            }
+
+            @Override
+            public boolean onSingleTapUp(@NonNull MotionEvent e) {
+                clearSelection();
+                if (canEdit()) {
+                    finishComposing();
+                    cursorOffset = offsetForPoint(e.getX() + getScrollX(), e.getY() + getScrollY());
+                    requestFocus();
+                    InputMethodManager imm = (InputMethodManager) getContext().getSystemService(Context.INPUT_METHOD_SERVICE);
+                    if (imm != null) imm.showSoftInput(CodeView.this, 0);
+                    invalidate();
+                }
+                return true;
+            }
+        });
+    }
+
+    public void setSource(LineSource source) {
+        this.source = source;
+        this.cursorOffset = 0;
+        this.widestColumns = 0;
+        this.composingStart = -1;
+        clearSelection();
+        updateGutterWidth();
+        if (pendingFirstLine >= 0) {
+            scrollTo(getScrollX(), pendingFirstLine * lineHeight);
+            pendingFirstLine = -1;
+        } else {
+            scrollTo(0, 0);
+        }
+        invalidate();
+    }
+
+    public LineSource getSource() {
+        return source;
+    }
+
+    /**
+     * Temporarily blocks edits, e.g. while the document is still loading.
+     */
+    public void setEditingEnabled(boolean enabled) {
+        editingEnabled = enabled;
+    }
+
+    private boolean canEdit() {
+        return editingEnabled && source != null && source.isEditable();
+    }
+
+    // Sources without line offsets (a mapped file) can be scrolled but not selected or copied.
+    private boolean canSelect() {
+        return source != null && source.supportsOffsets();
+    }
+
+    /**
+     * Colors the visible lines with the highlighter's tokens; null draws plain text.
+     */
+    public void setHighlighter(@Nullable SyntaxHighlighter highlighter) {
+        this.highlighter = highlighter;
+        invalidate();
+    }
+
+    public void setOnTextEditedListener(OnTextEditedListener listener) {
+        this.editListener = listener;
+    }
+
+    /**
+     * Marks search matches behind the text; only the visible range is ever asked for. Null
+     * removes the marks.
+     */
+    public void setMatchSource(@Nullable MatchSource matchSource) {
+        this.matchSource = matchSource;
+        invalidate();
+    }
+
+    public int getCursorOffset() {
+        return cursorOffset;
+    }
+
+    public boolean hasSelection() {
+        return selectionAnchor >= 0 && selectionAnchor != cursorOffset;
+    }
+
+    public int getSelectionStart() {
+        return selectionAnchor >= 0 ? Math.min(selectionAnchor, cursorOffset) : cursorOffset;
+    }
+
+    public int getSelectionEnd() {
+        return selectionAnchor >= 0 ? Math.max(selectionAnchor, cursorOffset) : cursorOffset;
+    }
+
+    /**
+     * Selects [start, end), moving the cursor to end, and opens the selection action mode.
+     */
+    public void setSelection(int start, int end) {
+        if (!canSelect()) return;
+        finishComposing();
+        selectionAnchor = Math.max(0, Math.min(start, source.length()));
+        cursorOffset = Math.max(0, Math.min(end, source.length()));
+        ensureCursorVisible();
+        startSelectionMode();
+        invalidate();
+    }
+
+    public void selectAll() {
+        if (canSelect()) setSelection(0, source.length());
+    }
+
+    /**
+     * Drops the selection, leaving the cursor at its moving end, and closes the action mode.
+     */
+    public void clearSelection() {
+        selectionAnchor = -1;
+        draggedHandle = HANDLE_NONE;
+        if (actionMode != null) actionMode.finish();
+        invalidate();
+    }
+
+    /**
+     * Moves the cursor to offset and scrolls it into view, e.g. to show a search match.
+     */
+    public void moveCursor(int offset) {
+        if (source == null) return;
+        finishComposing();
+        clearSelection();
+        cursorOffset = Math.max(0, Math.min(offset, source.length()));
+        ensureCursorVisible();
+        invalidate();
+    }
+
+    /**
+     * Changes the text size while keeping the first visible line in place, which is what the
+     * fragment's pinch-zoom handler relies on.
+     */
+    public void setTextSize(int unit, float size) {
+        int firstLine = getFirstVisibleLine();
+        applyTextSize(TypedValue.applyDimension(unit, size, getResources().getDisplayMetrics()));
+        updateGutterWidth();
+        scrollTo(getScrollX(), firstLine * lineHeight);
+        invalidate();
+    }
+
+    public int getFirstVisibleLine() {
+        return lineHeight > 0 ? Math.max(0, (getScrollY() - getPaddingTop()) / lineHeight) : 0;
+    }
+
+    public void scrollToLine(int line) {
+        scroller.forceFinished(true);
+        scrollTo(getScrollX(), line * lineHeight);
+    }
+
+    /**
+     * Called after the source changed outside this view (e.g. more of the file was loaded).
+     */
+    public void notifySourceChanged() {
+        updateGutterWidth();
+        scrollTo(getScrollX(), getScrollY());
+        invalidate();
+    }
+
+    private void applyTextSize(float px) {
+        textPaint.setTextSize(px);
+        gutterPaint.setTextSize(px);
+        tokenPaint.setTextSize(px);
+        charWidth = textPaint.measureText("M");
+        Paint.FontMetricsInt metrics = textPaint.getFontMetricsInt();
+        lineHeight = metrics.descent - metrics.ascent;
+        baselineOffset = -metrics.ascent;
+    }
+
+    private void updateGutterWidth() {
+        int lines = source != null ? source.getLineCount() : 1;
+        int digitCount = String.valueOf(lines).length();
+        gutterWidth = (int) Math.ceil((digitCount + 2) * charWidth);
+    }
+
+    private int getMaxScrollY() {
+        int lines = source != null ? source.getLineCount() : 0;
+        return Math.max(0, lines * lineHeight + getPaddingTop() + getPaddingBottom() - getHeight());
+    }
+
+    private int getMaxScrollX() {
+        int contentWidth = gutterWidth + getPaddingLeft() + getPaddingRight() + (int) Math.ceil(widestColumns * charWidth);
+        return Math.max(0, contentWidth - getWidth());
+    }
+
+    @Override
+    public void scrollTo(int x, int y) {
+        super.scrollTo(Math.max(0, Math.min(x, getMaxScrollX())), Math.max(0, Math.min(y, getMaxScrollY())));
+    }
+
+    @Override
+    public void computeScroll() {
+        if (scroller.computeScrollOffset()) {
+            scrollTo(scroller.getCurrX(), scroller.getCurrY());
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getPointerCount() > 1) {
+            // Multi-touch belongs to the fragment's pinch-zoom detector.
+            scroller.forceFinished(true);
+            draggedHandle = HANDLE_NONE;
+            return true;
+        }
+        if (dragHandle(event)) return true;
+        return gestureDetector.onTouchEvent(event) || super.onTouchEvent(event);
+    }
+
+    // Moves a selection handle that the finger went down on; false if the touch is not a drag.
+    private boolean dragHandle(MotionEvent event) {
+        float x = event.getX() + getScrollX();
+        float y = event.getY() + getScrollY();
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (!hasSelection()) return false;
+                if (isOnHandle(getSelectionStart(), x, y)) {
+                    draggedHandle = HANDLE_START;
+                } else if (isOnHandle(getSelectionEnd(), x, y)) {
+                    draggedHandle = HANDLE_END;
+                } else {
+                    return false;
+                }
+                // The other end stays put while this one follows the finger.
+                int fixed = draggedHandle == HANDLE_START ? getSelectionEnd() : getSelectionStart();
+                cursorOffset = draggedHandle == HANDLE_START ? getSelectionStart() : getSelectionEnd();
+                selectionAnchor = fixed;
+                scroller.forceFinished(true);
+                getParent().requestDisallowInterceptTouchEvent(true);
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (draggedHandle == HANDLE_NONE) return false;
+                // The finger sits below the handle, which hangs below its line.
+                cursorOffset = offsetForPoint(x, y - lineHeight);
+                ensureCursorVisible();
+                invalidate();
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                if (draggedHandle == HANDLE_NONE) return false;
+                draggedHandle = HANDLE_NONE;
+                getParent().requestDisallowInterceptTouchEvent(false);
+                if (hasSelection()) {
+                    startSelectionMode();
+                    if (actionMode != null) actionMode.invalidate();
+                } else {
+                    clearSelection();
+                }
+                return true;
+            default:
+                return draggedHandle != HANDLE_NONE;
+        }
+    }
+
+    private boolean isOnHandle(int offset, float x, float y) {
+        int line = source.getLineForOffset(offset);
+        float handleX = gutterWidth + getPaddingLeft() + (offset - source.getLineStart(line)) * charWidth;
+        float handleY = getPaddingTop() + (line + 1) * lineHeight + lineHeight / 2f;
+        float dx = x - handleX;
+        float dy = y - handleY;
+        return dx * dx + dy * dy <= lineHeight * lineHeight;
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        if (source == null || lineHeight == 0) return;
+
+        int scrollX = getScrollX();
+        int scrollY = getScrollY();
+        int top = getPaddingTop();
+        int lineCount = source.getLineCount();
+        int first = Math.max(0, (scrollY - top) / lineHeight - OVERSCAN_LINES);
+        int last = Math.min(lineCount - 1, (scrollY + getHeight() - top) / lineHeight + OVERSCAN_LINES);
+
+        float textLeft = gutterWidth + getPaddingLeft();
+        int firstColumn = Math.max(0, (int) (scrollX / charWidth) - OVERSCAN_COLUMNS);
+        int visibleColumns = (int) (getWidth() / charWidth) + 2 * OVERSCAN_COLUMNS;
+        if (lineBuffer.length < visibleColumns) lineBuffer = new char[visibleColumns];
+        if (matchSource != null && first <= last) drawMatches(canvas, first, last, textLeft);
+        if (hasSelection() && first <= last) {
+            drawRange(canvas, getSelectionStart(), getSelectionEnd(), last, textLeft, selectionPaint);
+        }
+
+        for (int line = first; line <= last; line++) {
+            int lineLength = source.getLineLength(line);
+            if (lineLength > widestColumns) widestColumns = lineLength;
+            int end = Math.min(lineLength, firstColumn + visibleColumns);
+            if (end <= firstColumn) continue;
+            int count = end - firstColumn;
+            source.getChars(line, firstColumn, end, lineBuffer, 0);
+            for (int i = 0; i < count; i++) {
+                if (lineBuffer[i] == '\t') lineBuffer[i] = ' ';
+            }
+            float y = top + line * lineHeight + baselineOffset;
+            int tokens = highlighter != null ? highlighter.getTokenCount(line) : 0;
+            if (tokens == 0) {
+                canvas.drawText(lineBuffer, 0, count, textLeft + firstColumn * charWidth, y, textPaint);
+                continue;
+            }
+            // Plain runs between tokens use the text paint, tokens the highlight color.
+            int column = firstColumn;
+            for (int t = 0; t < tokens; t++) {
+                int tokenStart = Math.max(highlighter.getTokenStart(line, t), column);
+                int tokenEnd = Math.min(highlighter.getTokenStart(line, t) + highlighter.getTokenLength(line, t), end);
+                if (tokenEnd <= tokenStart) continue;
+                if (tokenStart > column) drawRun(canvas, column, tokenStart, firstColumn, textLeft, y, textPaint);
+                tokenPaint.setColor(SyntaxHighlighter.colorFor(highlighter.getTokenType(line, t)));
+                drawRun(canvas, tokenStart, tokenEnd, firstColumn, textLeft, y, tokenPaint);
+                column = tokenEnd;
+            }
+            if (column < end) drawRun(canvas, column, end, firstColumn, textLeft, y, textPaint);
+        }
+        if (highlighter != null) highlighter.setVisibleLines(first, last);
+
+        if (hasSelection()) {
+            drawHandle(canvas, getSelectionStart(), textLeft);
+            drawHandle(canvas, getSelectionEnd(), textLeft);
+        } else if (source.isEditable() && hasFocus()) {
+            int cursorLine = source.getLineForOffset(cursorOffset);
+            int column = cursorOffset - source.getLineStart(cursorLine);
+            float x = textLeft + column * charWidth;
+            float y = top + cursorLine * lineHeight;
+            canvas.drawRect(x, y, x + Math.max(2f, charWidth / 8), y + lineHeight, cursorPaint);
+        }
+
+        // The gutter stays pinned to the left edge while the text scrolls horizontally.
+        canvas.drawRect(scrollX, scrollY, scrollX + gutterWidth, scrollY + getHeight(), gutterBackgroundPaint);
+        float numberRight = scrollX + gutterWidth - charWidth;
+        for (int line = first; line <= last; line++) {
+            int length = formatNumber(line + 1);
+            canvas.drawText(digits, digits.length - length, length, numberRight, top + line * lineHeight + baselineOffset, gutterPaint);
+        }
+    }
+
+    private void drawMatches(Canvas canvas, int first, int last, float textLeft) {
+        int rangeStart = source.getLineStart(first);
+        int rangeEnd = source.getLineStart(last) + source.getLineLength(last);
+        int[] matches = matchSource.getMatches(rangeStart, rangeEnd);
+        for (int m = 0; m + 1 < matches.length; m += 2) {
+            drawRange(canvas, matches[m], matches[m + 1], last, textLeft, matchPaint);
+        }
+    }
+
+    // A range can span lines; each line gets its own rectangle, ending at the newline.
+    private void drawRange(Canvas canvas, int start, int end, int last, float textLeft, Paint paint) {
+        int top = getPaddingTop();
+        int firstVisible = Math.max(0, (getScrollY() - top) / lineHeight - OVERSCAN_LINES);
+        for (int line = Math.max(source.getLineForOffset(start), firstVisible); line <= last; line++) {
+            int lineStart = source.getLineStart(line);
+            if (lineStart >= end) break;
+            int startColumn = Math.max(start, lineStart) - lineStart;
+            int endColumn = Math.min(end, lineStart + source.getLineLength(line) + 1) - lineStart;
+            float y = top + line * lineHeight;
+            canvas.drawRect(textLeft + startColumn * charWidth, y, textLeft + endColumn * charWidth, y + lineHeight, paint);
+        }
+    }
+
+    // A stem up through the line and a knob below it, centered on the offset.
+    private void drawHandle(Canvas canvas, int offset, float textLeft) {
+        int line = source.getLineForOffset(offset);
+        float x = textLeft + (offset - source.getLineStart(line)) * charWidth;
+        float y = getPaddingTop() + (line + 1) * lineHeight;
+        canvas.drawRect(x - 1, y - lineHeight, x + 1, y, handlePaint);
+        canvas.drawCircle(x, y + lineHeight / 2f, lineHeight / 2f, handlePaint);
+    }
+
+    private void drawRun(Canvas canvas, int startColumn, int endColumn, int bufferColumn, float textLeft, float y, Paint paint) {
+        canvas.drawText(lineBuffer, startColumn - bufferColumn, endColumn - startColumn, textLeft + startColumn * charWidth, y, paint);
+    }
+
+    private int formatNumber(int value) {
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return digits.length - pos;
+    }
+
+    private int offsetForPoint(float x, float y) {
+        int line = Math.max(0, Math.min(source.getLineCount() - 1, (int) ((y - getPaddingTop()) / lineHeight)));
+        int column = Math.round((x - gutterWidth - getPaddingLeft()) / charWidth);
+        column = Math.max(0, Math.min(column, source.getLineLength(line)));
+        return source.getLineStart(line) + column;
+    }
+
+    // --- Editing ---
+
+    /**
+     * Replaces a document range programmatically (e.g. undo), notifying the edit listener like
+     * a typed edit and moving the cursor after the new text.
+     */
+    public void replace(int start, int end, CharSequence text) {
+        if (source == null || !source.isEditable()) return;
+        finishComposing();
+        replaceText(start, end, text);
+    }
+
+    private void replaceText(int start, int end, CharSequence text) {
+        start = Math.max(0, start);
+        end = Math.min(source.length(), end);
+        if (start > end) return;
+        CharSequence removed = "";
+        if (editListener != null && end > start) {
+            char[] chars = new char[end - start];
+            int line = source.getLineForOffset(start);
+            copyRange(start, end, chars, line);
+            removed = new String(chars);
+        }
+        source.replace(start, end, text);
+        cursorOffset = start + text.length();
+        updateGutterWidth();
+        if (editListener != null) {
+            editListener.onTextEdited(start, removed, text);
+        }
+        ensureCursorVisible();
+        invalidate();
+    }
+
+    // Copies a document range that may span several lines, re-inserting the '\n' terminators.
+    private void copyRange(int start, int end, char[] dst, int line) {
+        int written = 0;
+        int offset = start;
+        while (offset < end) {
+            int lineStart = source.getLineStart(line);
+            int lineEnd = lineStart + source.getLineLength(line);
+            int chunkEnd = Math.min(end, lineEnd);
+            if (chunkEnd > offset) {
+                source.getChars(line, offset - lineStart, chunkEnd - lineStart, dst, written);
+                written += chunkEnd - offset;
+                offset = chunkEnd;
+            }
+            if (offset < end) {
+                dst[written++] = '\n';
+                offset++;
+                line++;
+            }
+        }
+    }
+
+    private void finishComposing() {
+        composingStart = -1;
+        composingLength = 0;
+    }
+
+    // Replaces the selection, or inserts at the cursor if there is none.
+    private void replaceSelection(CharSequence text) {
+        int start = getSelectionStart();
+        int end = getSelectionEnd();
+        clearSelection();
+        replaceText(start, end, text);
+    }
+
+    // --- Selection ---
+
+    private void selectWordAt(int offset) {
+        int line = source.getLineForOffset(offset);
+        int lineStart = source.getLineStart(line);
+        int lineLength = source.getLineLength(line);
+        int column = offset - lineStart;
+        int from = Math.max(0, column - MAX_WORD_SCAN);
+        int to = Math.min(lineLength, column + MAX_WORD_SCAN);
+        if (lineBuffer.length < to - from) lineBuffer = new char[to - from];
+        source.getChars(line, from, to, lineBuffer, 0);
+        int start = column;
+        int end = column;
+        while (start > from && isWordChar(lineBuffer[start - 1 - from])) start--;
+        while (end < to && isWordChar(lineBuffer[end - from])) end++;
+        // Not on a word: select the char under the finger so the handles have something to hold.
+        if (start == end) end = Math.min(lineLength, end + 1);
+        if (start == end && start > 0) start--;
+        setSelection(lineStart + start, lineStart + end);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private String getText(int start, int end) {
+        char[] chars = new char[end - start];
+        if (source instanceof DocumentLines) {
+            ((DocumentLines) source).getDocument().getChars(start, end, chars, 0);
+        } else {
+            copyRange(start, end, chars, source.getLineForOffset(start));
+        }
+        return new String(chars);
+    }
+
+    private void startSelectionMode() {
+        if (actionMode == null) actionMode = startActionMode(selectionCallback);
+    }
+
+    private boolean copySelection() {
+        ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard == null || !hasSelection()) return false;
+        clipboard.setPrimaryClip(ClipData.newPlainText(null, getText(getSelectionStart(), getSelectionEnd())));
+        return true;
+    }
+
+    private void paste() {
+        ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        if (clipboard == null || !clipboard.hasPrimaryClip() || clipboard.getPrimaryClip().getItemCount() == 0) return;
+        CharSequence text = clipboard.getPrimaryClip().getItemAt(0).coerceToText(getContext());
+        if (text != null) replaceSelection(text);
+    }
+
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            menu.add(Menu.NONE, android.R.id.selectAll, 0, android.R.string.selectAll);
+            menu.add(Menu.NONE, android.R.id.cut, 1, android.R.string.cut);
+            menu.add(Menu.NONE, android.R.id.copy, 2, android.R.string.copy);
+            menu.add(Menu.NONE, android.R.id.paste, 3, android.R.string.paste);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            menu.findItem(android.R.id.cut).setVisible(canEdit() && hasSelection());
+            menu.findItem(android.R.id.copy).setVisible(hasSelection());
+            menu.findItem(android.R.id.paste).setVisible(canEdit());
+            return true;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            int id = item.getItemId();
+            if (id == android.R.id.selectAll) {
+                selectAll();
+                mode.invalidate();
+            } else if (id == android.R.id.copy) {
+                copySelection();
+                clearSelection();
+            } else if (id == android.R.id.cut) {
+                if (canEdit() && copySelection()) replaceSelection("");
+            } else if (id == android.R.id.paste) {
+                if (canEdit()) paste();
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            actionMode = null;
+            if (selectionAnchor >= 0) {
+                selectionAnchor = -1;
+                invalidate();
+            }
+        }
+    };
+
+    private void ensureCursorVisible() {
+        int line = source.getLineForOffset(cursorOffset);
+        int column = cursorOffset - source.getLineStart(line);
+        if (column > widestColumns) widestColumns = column;
+        int y = getPaddingTop() + line * lineHeight;
+        int x = (int) (gutterWidth + getPaddingLeft() + column * charWidth);
+        int scrollX = getScrollX();
+        int scrollY = getScrollY();
+        if (y < scrollY) {
+            scrollY = y;
+        } else if (y + lineHeight > scrollY + getHeight()) {
+            scrollY = y + lineHeight - getHeight();
+        }
+        if (x < scrollX + gutterWidth) {
+            scrollX = x - gutterWidth;
+        } else if (x + charWidth > scrollX + getWidth()) {
+            scrollX = (int) (x + charWidth - getWidth());
+        }
+        scrollTo(scrollX, scrollY);
+    }
+
+    private boolean handleKey(KeyEvent event) {
+        if (!canEdit()) return false;
+        switch (event.getKeyCode()) {
+            case KeyEvent.KEYCODE_DEL:
+                finishComposing();
+                if (hasSelection()) {
+                    replaceSelection("");
+                } else if (cursorOffset > 0) {
+                    replaceText(cursorOffset - 1, cursorOffset, "");
+                }
+                return true;
+            case KeyEvent.KEYCODE_FORWARD_DEL:
+                finishComposing();
+                if (hasSelection()) {
+                    replaceSelection("");
+                } else if (cursorOffset < source.length()) {
+                    replaceText(cursorOffset, cursorOffset + 1, "");
+                }
+                return true;
+            case KeyEvent.KEYCODE_ENTER:
+            case KeyEvent.KEYCODE_NUMPAD_ENTER:
+                finishComposing();
+                replaceSelection("\n");
+                return true;
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+                clearSelection();
+                cursorOffset = Math.max(0, cursorOffset - 1);
+                ensureCursorVisible();
+                invalidate();
+                return true;
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+                clearSelection();
+                cursorOffset = Math.min(source.length(), cursorOffset + 1);
+                ensureCursorVisible();
+                invalidate();
+                return true;
+            case KeyEvent.KEYCODE_DPAD_UP:
+            case KeyEvent.KEYCODE_DPAD_DOWN: {
+                clearSelection();
+                int line = source.getLineForOffset(cursorOffset);
+                int column = cursorOffset - source.getLineStart(line);
+                int target = line + (event.getKeyCode() == KeyEvent.KEYCODE_DPAD_UP ? -1 : 1);
+                if (target >= 0 && target < source.getLineCount()) {
+                    cursorOffset = source.getLineStart(target) + Math.min(column, source.getLineLength(target));
+                    ensureCursorVisible();
+                    invalidate();
+                }
+                return true;
+            }
+            default:
+                int unicode = event.getUnicodeChar();
+                if (unicode != 0) {
+                    finishComposing();
+                    replaceSelection(String.valueOf((char) unicode));
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        return handleKey(event) || super.onKeyDown(keyCode, event);
+    }
+
+    @Override
+    public boolean onCheckIsTextEditor() {
+        return canEdit();
+    }
+
+    @Override
+    public InputConnection onCreateInputConnection(EditorInfo outAttrs) {
+        outAttrs.inputType = InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE | InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS | InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD;
+        outAttrs.imeOptions = EditorInfo.IME_FLAG_NO_EXTRACT_UI | EditorInfo.IME_FLAG_NO_ENTER_ACTION;
+        return new BaseInputConnection(this, false) {
+            @Override
+            public boolean commitText(CharSequence text, int newCursorPosition) {
+                if (!canEdit()) return false;
+                if (composingStart >= 0) {
+                    int start = composingStart;
+                    int end = composingStart + composingLength;
+                    finishComposing();
+                    replaceText(start, end, text);
+                } else {
+                    replaceSelection(text);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean setComposingText(CharSequence text, int newCursorPosition) {
+                if (!canEdit()) return false;
+                int start = composingStart >= 0 ? composingStart : getSelectionStart();
+                int end = composingStart >= 0 ? composingStart + composingLength : getSelectionEnd();
+                clearSelection();
+                replaceText(start, end, text);
+                composingStart = start;
+                composingLength = text.length();
+                return true;
+            }
+
+            @Override
+            public boolean finishComposingText() {
+                finishComposing();
+                return true;
+            }
+
+            @Override
+            public boolean deleteSurroundingText(int beforeLength, int afterLength) {
+                if (!canEdit()) return false;
+                finishComposing();
+                if (hasSelection()) {
+                    replaceSelection("");
+                    return true;
+                }
+                int start = Math.max(0, cursorOffset - beforeLength);
+                int end = Math.min(source.length(), cursorOffset + afterLength);
+                if (end > start) replaceText(start, end, "");
+                return true;
+            }
+
+            @Override
+            public boolean sendKeyEvent(KeyEvent event) {
+                if (event.getAction() == KeyEvent.ACTION_DOWN) {
+                    return handleKey(event);
+                }
+                return true;
+            }
+        };
+    }
+
+    // --- State ---
+
+    @Nullable
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        Bundle state = new Bundle();
+        state.putParcelable("super", super.onSaveInstanceState());
+        state.putInt("firstLine", getFirstVisibleLine());
+        return state;
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        if (state instanceof Bundle) {
+            Bundle bundle = (Bundle) state;
+            super.onRestoreInstanceState(bundle.getParcelable("super"));
+            pendingFirstLine = bundle.getInt("firstLine", -1);
+            if (source != null && pendingFirstLine >= 0) {
+                scrollToLine(pendingFirstLine);
+                pendingFirstLine = -1;
+            }
+        } else {
+            super.onRestoreInstanceState(state);
+        }
+    }
+
+    public interface MatchSource {
+        /**
+         * The matches that start in [start, end) as (start, end) offset pairs.
+         */
+        int[] getMatches(int start, int end);
+    }
+
+    public interface OnTextEditedListener {
+        void onTextEdited(int start, CharSequence removed, CharSequence inserted);
+    }
+}
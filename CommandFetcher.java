@@ -112,7 +112,7 @@ public class CommandFetcher {
         }
     }
 
-    private static String mapExtensionToKey(String ext) {
+    static String mapExtensionToKey(String ext) {
         switch (ext) {
             case "py":
                 return "py";
@@ -0,0 +1,164 @@
+package com.codestudio.mobile;
+
+import java.util.Arrays;
+
+/**
+ * Per-block hashes of a document as it was last loaded or saved.
+ * <p>
+ * Combined with a {@link DirtyRange}, this tells whether an edited document really differs
+ * from the file on disk: only the blocks overlapping the edited range are re-hashed and
+ * compared, so typing a character and deleting it again leaves the tab clean without
+ * comparing the whole text.
+ * <p>
+ * A {@link Builder} fingerprints text as it is read, e.g. a file on disk, without holding it.
+ */
+public final class ContentFingerprint {
+
+    public static final int BLOCK_CHARS = 4096;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int length;
+    private final long utf8Length;
+    private final long[] blockHashes;
+
+    private ContentFingerprint(int length, long utf8Length, long[] blockHashes) {
+        this.length = length;
+        this.utf8Length = utf8Length;
+        this.blockHashes = blockHashes;
+    }
+
+    /**
+     * Hashes the whole text. Linear in its length, so call it off the main thread for large
+     * documents (a PieceTable snapshot is safe to read from any thread).
+     */
+    public static ContentFingerprint of(CharSequence text) {
+        int length = text.length();
+        long[] hashes = new long[(length + BLOCK_CHARS - 1) / BLOCK_CHARS];
+        char[] buffer = new char[BLOCK_CHARS];
+        long utf8Length = 0;
+        for (int block = 0; block < hashes.length; block++) {
+            int count = readBlock(text, block, length, buffer);
+            hashes[block] = hash(buffer, count);
+            utf8Length += utf8Length(buffer, count);
+        }
+        return new ContentFingerprint(length, utf8Length, hashes);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Size of the text encoded as UTF-8, to compare with a file's size before reading it.
+     */
+    public long utf8Length() {
+        return utf8Length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ContentFingerprint)) return false;
+        ContentFingerprint other = (ContentFingerprint) o;
+        return length == other.length && Arrays.equals(blockHashes, other.blockHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * length + Arrays.hashCode(blockHashes);
+    }
+
+    /**
+     * Whether text, which must be as long as the fingerprinted text, hashes the same in every
+     * block overlapping [start, end).
+     */
+    public boolean matches(CharSequence text, int start, int end) {
+        if (text.length() != length) return false;
+        if (length == 0) return true;
+        int firstBlock = Math.max(0, start) / BLOCK_CHARS;
+        int lastBlock = Math.min(blockHashes.length - 1, Math.max(start, end - 1) / BLOCK_CHARS);
+        char[] buffer = new char[BLOCK_CHARS];
+        for (int block = firstBlock; block <= lastBlock; block++) {
+            if (hash(buffer, readBlock(text, block, length, buffer)) != blockHashes[block]) return false;
+        }
+        return true;
+    }
+
+    // Copies one block into buffer and returns its length.
+    private static int readBlock(CharSequence text, int block, int length, char[] buffer) {
+        int start = block * BLOCK_CHARS;
+        int count = Math.min(BLOCK_CHARS, length - start);
+        if (text instanceof PieceTable) {
+            ((PieceTable) text).getChars(start, start + count, buffer, 0);
+        } else {
+            for (int i = 0; i < count; i++) buffer[i] = text.charAt(start + i);
+        }
+        return count;
+    }
+
+    // FNV-1a over the chars of one block.
+    private static long hash(char[] buffer, int count) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < count; i++) {
+            char c = buffer[i];
+            hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    // A surrogate pair takes four bytes, so each half counts two.
+    private static long utf8Length(char[] buffer, int count) {
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            char c = buffer[i];
+            bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+        return bytes;
+    }
+
+    /**
+     * Fingerprints text appended in pieces; each block is hashed as soon as it is full.
+     */
+    public static final class Builder {
+        private final char[] block = new char[BLOCK_CHARS];
+        private int filled;
+        private int length;
+        private long utf8Length;
+        private long[] hashes = new long[16];
+        private int blockCount;
+
+        public Builder append(char[] chars, int offset, int count) {
+            while (count > 0) {
+                int n = Math.min(count, BLOCK_CHARS - filled);
+                System.arraycopy(chars, offset, block, filled, n);
+                filled += n;
+                offset += n;
+                count -= n;
+                if (filled == BLOCK_CHARS) finishBlock();
+            }
+            return this;
+        }
+
+        /**
+         * Chars appended so far.
+         */
+        public int length() {
+            return length + filled;
+        }
+
+        public ContentFingerprint build() {
+            if (filled > 0) finishBlock();
+            return new ContentFingerprint(length, utf8Length, Arrays.copyOf(hashes, blockCount));
+        }
+
+        private void finishBlock() {
+            if (blockCount == hashes.length) hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            hashes[blockCount++] = hash(block, filled);
+            utf8Length += ContentFingerprint.utf8Length(block, filled);
+            length += filled;
+            filled = 0;
+        }
+    }
+}
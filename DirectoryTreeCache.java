@@ -0,0 +1,296 @@
+package com.codestudio.mobile;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory model of the SAF tree shown in the file drawer, keyed by document ID.
+ * <p>
+ * A directory is queried once; expanding it again, collapsing and re-expanding or rebuilding
+ * the drawer is served from memory. {@link #revalidate} turns a refresh into a diff: each
+ * listed directory is checked with a single-row query of its own last-modified time (or with
+ * the time its parent's fresh listing just reported) and only directories whose time changed
+ * are listed again. Providers that do not report times for directories are always re-listed.
+ * Listings of collapsed folders stay cached for the crawler and the indexes; they are checked
+ * against the time their parent's listing reports when next read, and dropped together with
+ * their subtree once the folder no longer appears in its parent's listing.
+ * <p>
+ * Listings are immutable and published through a concurrent map, so the cache can be read
+ * from any thread while a refresh runs.
+ */
+public class DirectoryTreeCache {
+
+    private static final String TAG = "DirectoryTreeCache";
+    private static final String[] CHILD_COLUMNS = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED
+    };
+    private static final String GENERIC_TYPE = "application/octet-stream";
+    private static final String[] MODIFIED_COLUMNS = {DocumentsContract.Document.COLUMN_LAST_MODIFIED};
+
+    private final ContentResolver resolver;
+    private final Uri treeUri;
+    private final String rootDocumentId;
+    private final Map<String, Listing> listings = new ConcurrentHashMap<>();
+    // Last-modified time of every directory seen in a listing, for directories listed lazily.
+    private final Map<String, Long> directoryTimes = new ConcurrentHashMap<>();
+    private final AtomicInteger queryCount = new AtomicInteger();
+
+    public DirectoryTreeCache(ContentResolver resolver, Uri treeUri) {
+        this.resolver = resolver;
+        this.treeUri = treeUri;
+        this.rootDocumentId = DocumentsContract.getTreeDocumentId(treeUri);
+    }
+
+    /**
+     * Whether this cache models the tree that uri (a tree or a document in a tree) belongs to.
+     */
+    public boolean isTreeOf(Uri uri) {
+        try {
+            return treeUri.getAuthority() != null && treeUri.getAuthority().equals(uri.getAuthority())
+                    && rootDocumentId.equals(DocumentsContract.getTreeDocumentId(uri));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    public String getRootDocumentId() {
+        return rootDocumentId;
+    }
+
+    public Uri getDocumentUri(String documentId) {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId);
+    }
+
+    /**
+     * Number of provider queries issued so far, for diagnostics.
+     */
+    public int getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Children of a directory, folders first and each group sorted by name. Queries the
+     * provider only if the directory has not been listed yet or its parent's listing reports a
+     * newer time. Call off the main thread.
+     */
+    public List<Entry> getChildren(String documentId) {
+        Listing listing = listings.get(documentId);
+        Long modified = directoryTimes.get(documentId);
+        // The parent was listed again since and reports a different time: the listing is stale.
+        boolean stale = listing != null && modified != null && modified != 0 && modified != listing.modified;
+        if (listing == null || stale) {
+            Listing current = list(documentId, modified != null ? modified : 0);
+            if (listing != null) evictRemoved(listing, current);
+            listing = current;
+        }
+        return listing.children;
+    }
+
+    /**
+     * The drawer rows under a directory: its children at depth, each expanded folder followed
+     * by its own rows. Unlisted expanded folders are queried. Call off the main thread.
+     */
+    public FileTree flatten(String documentId, int depth, Set<String> expandedIds) {
+        FileTree.Builder rows = new FileTree.Builder(treeUri, documentId, depth);
+        appendRows(rows, -1, documentId, expandedIds);
+        return rows.build();
+    }
+
+    private void appendRows(FileTree.Builder rows, int parent, String documentId, Set<String> expandedIds) {
+        for (Entry child : getChildren(documentId)) {
+            boolean expanded = child.isDirectory && expandedIds.contains(child.documentId);
+            int row = rows.add(parent, child.documentId, child.name, child.mimeType, child.isDirectory, expanded);
+            if (expanded) appendRows(rows, row, child.documentId, expandedIds);
+        }
+    }
+
+    /**
+     * Lists the given directories again, e.g. after a change notification. Call off the main
+     * thread.
+     *
+     * @return the document IDs of children that were added, removed or modified
+     */
+    public Set<String> relist(Collection<String> documentIds) {
+        Set<String> changed = new HashSet<>();
+        for (String documentId : documentIds) {
+            Listing old = listings.get(documentId);
+            Listing current = list(documentId, queryModified(documentId));
+            Map<String, Long> before = new HashMap<>();
+            if (old != null) {
+                for (Entry child : old.children) before.put(child.documentId, child.lastModified);
+                evictRemoved(old, current);
+            }
+            for (Entry child : current.children) {
+                Long previous = before.remove(child.documentId);
+                if (previous == null || previous != child.lastModified) changed.add(child.documentId);
+            }
+            changed.addAll(before.keySet());
+        }
+        return changed;
+    }
+
+    /**
+     * Forgets a directory's listing, e.g. after the app itself created or deleted a child.
+     */
+    public void invalidate(String documentId) {
+        listings.remove(documentId);
+    }
+
+    public void clear() {
+        listings.clear();
+        directoryTimes.clear();
+    }
+
+    /**
+     * Re-lists the directories among expandedIds (and the root) whose last-modified time
+     * changed; cached listings of folders that disappeared from a re-listed parent are dropped.
+     * Call off the main thread.
+     *
+     * @return the number of directories that were listed again
+     */
+    public int revalidate(Collection<String> expandedIds) {
+        Set<String> expanded = new HashSet<>(expandedIds);
+        int relisted = 0;
+        List<Entry> level = new ArrayList<>();
+        level.add(new Entry(rootDocumentId, null, DocumentsContract.Document.MIME_TYPE_DIR, queryModified(rootDocumentId), true));
+        // Breadth-first, so a directory's time comes from its parent's listing when that was refreshed.
+        while (!level.isEmpty()) {
+            List<Entry> next = new ArrayList<>();
+            for (Entry directory : level) {
+                Listing cached = listings.get(directory.documentId);
+                Listing current = cached;
+                if (cached == null || directory.lastModified == 0 || directory.lastModified != cached.modified) {
+                    current = list(directory.documentId, directory.lastModified);
+                    if (cached != null) evictRemoved(cached, current);
+                    relisted++;
+                }
+                for (Entry child : current.children) {
+                    if (!child.isDirectory || !expanded.contains(child.documentId)) continue;
+                    // A child that came from the cached listing needs its own time checked.
+                    next.add(current == cached ? child.withModified(queryModified(child.documentId)) : child);
+                }
+            }
+            level = next;
+        }
+        return relisted;
+    }
+
+    // Drops the cached subtrees of folders that were in old but are missing from current.
+    private void evictRemoved(Listing old, Listing current) {
+        Set<String> present = new HashSet<>();
+        for (Entry child : current.children) {
+            if (child.isDirectory) present.add(child.documentId);
+        }
+        List<String> pending = new ArrayList<>();
+        for (Entry child : old.children) {
+            if (child.isDirectory && !present.contains(child.documentId)) pending.add(child.documentId);
+        }
+        while (!pending.isEmpty()) {
+            String documentId = pending.remove(pending.size() - 1);
+            directoryTimes.remove(documentId);
+            Listing removed = listings.remove(documentId);
+            if (removed == null) continue;
+            for (Entry child : removed.children) {
+                if (child.isDirectory) pending.add(child.documentId);
+            }
+        }
+    }
+
+    private Listing list(String documentId, long modified) {
+        List<Entry> folders = new ArrayList<>();
+        List<Entry> files = new ArrayList<>();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        queryCount.incrementAndGet();
+        boolean complete = true;
+        try (Cursor cursor = resolver.query(childrenUri, CHILD_COLUMNS, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(1);
+                    String mimeType = cursor.getString(2);
+                    // Providers report source files they do not recognize as generic binaries.
+                    if (mimeType == null || GENERIC_TYPE.equals(mimeType)) {
+                        String byName = FileUtils.getMimeTypeFromName(name);
+                        if (byName != null) mimeType = byName;
+                    }
+                    Entry entry = new Entry(cursor.getString(0), name, mimeType,
+                            cursor.isNull(3) ? 0 : cursor.getLong(3),
+                            DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType));
+                    if (entry.isDirectory) {
+                        folders.add(entry);
+                        directoryTimes.put(entry.documentId, entry.lastModified);
+                    } else {
+                        files.add(entry);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error listing " + documentId + ": " + e.getMessage());
+            complete = false;
+        }
+        Collections.sort(folders, (a, b) -> a.name.compareToIgnoreCase(b.name));
+        Collections.sort(files, (a, b) -> a.name.compareToIgnoreCase(b.name));
+        folders.addAll(files);
+        Listing listing = new Listing(modified, Collections.unmodifiableList(folders));
+        // A failed query is not cached, so the next access tries again.
+        if (complete) listings.put(documentId, listing);
+        return listing;
+    }
+
+    // 0 when the provider does not report it, which forces a re-list.
+    private long queryModified(String documentId) {
+        queryCount.incrementAndGet();
+        try (Cursor cursor = resolver.query(getDocumentUri(documentId), MODIFIED_COLUMNS, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) return cursor.getLong(0);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not stat " + documentId + ": " + e.getMessage());
+        }
+        return 0;
+    }
+
+    private static final class Listing {
+        final long modified;
+        final List<Entry> children;
+
+        Listing(long modified, List<Entry> children) {
+            this.modified = modified;
+            this.children = children;
+        }
+    }
+
+    public static final class Entry {
+        public final String documentId;
+        public final String name;
+        public final String mimeType;
+        public final long lastModified;
+        public final boolean isDirectory;
+
+        Entry(String documentId, String name, String mimeType, long lastModified, boolean isDirectory) {
+            this.documentId = documentId;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.lastModified = lastModified;
+            this.isDirectory = isDirectory;
+        }
+
+        Entry withModified(long modified) {
+            return new Entry(documentId, name, mimeType, modified, isDirectory);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.codestudio.mobile;
+
+/**
+ * The span of a document, in current offsets, that may differ from a baseline. Edits widen it
+ * and shift it along with the text; it never shrinks until {@link #reset()}.
+ */
+public class DirtyRange {
+
+    private int start = -1;
+    private int end = -1;
+
+    public boolean isEmpty() {
+        return start < 0;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public void reset() {
+        start = -1;
+        end = -1;
+    }
+
+    public void set(DirtyRange other) {
+        start = other.start;
+        end = other.end;
+    }
+
+    /**
+     * Records that [editStart, editStart + removedLength) was replaced by insertedLength chars.
+     */
+    public void onReplaced(int editStart, int removedLength, int insertedLength) {
+        int editEnd = editStart + insertedLength;
+        if (start < 0) {
+            start = editStart;
+            end = editEnd;
+            return;
+        }
+        // Text after the removed range moved by the length delta.
+        if (end > editStart) end = Math.max(editEnd, end + insertedLength - removedLength);
+        start = Math.min(start, editStart);
+        end = Math.max(end, editEnd);
+    }
+}
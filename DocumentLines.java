@@ -0,0 +1,79 @@
+package com.codestudio.mobile;
+
+/**
+ * Editable {@link LineSource} over a {@link PieceTable}, with a {@link LineIndex} kept in sync
+ * on every edit.
+ */
+public class DocumentLines implements LineSource {
+
+    private final PieceTable document;
+    private final LineIndex lineIndex;
+
+    public DocumentLines(PieceTable document) {
+        this.document = document;
+        this.lineIndex = new LineIndex(document);
+    }
+
+    public PieceTable getDocument() {
+        return document;
+    }
+
+    public LineIndex getLineIndex() {
+        return lineIndex;
+    }
+
+    @Override
+    public int getLineCount() {
+        return lineIndex.getLineCount();
+    }
+
+    @Override
+    public int getLineLength(int line) {
+        return lineIndex.getLineEnd(line) - lineIndex.getLineStart(line);
+    }
+
+    @Override
+    public void getChars(int line, int start, int end, char[] dst, int dstBegin) {
+        int lineStart = lineIndex.getLineStart(line);
+        document.getChars(lineStart + start, lineStart + end, dst, dstBegin);
+    }
+
+    @Override
+    public boolean isEditable() {
+        return !document.isReadOnly();
+    }
+
+    @Override
+    public boolean supportsOffsets() {
+        return true;
+    }
+
+    @Override
+    public int getLineStart(int line) {
+        return lineIndex.getLineStart(line);
+    }
+
+    @Override
+    public int getLineForOffset(int offset) {
+        return lineIndex.getLineForOffset(offset);
+    }
+
+    @Override
+    public int length() {
+        return document.length();
+    }
+
+    /**
+     * Appends text at the end of the document, used while a file is still streaming in.
+     */
+    public void append(CharSequence text) {
+        lineIndex.append(text, 0, text.length());
+        document.append(text);
+    }
+
+    @Override
+    public void replace(int start, int end, CharSequence text) {
+        document.replace(start, end, text);
+        lineIndex.replace(start, end - start, text, 0, text.length());
+    }
+}
@@ -0,0 +1,158 @@
+package com.codestudio.mobile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Streams a text file into the editor in chunks.
+ * <p>
+ * Opening, sniffing and UTF-8 decoding all happen on the worker executor; decoded chunks are
+ * handed to the callback executor (normally the main thread) as they become available. The
+ * first chunk is kept small so something is on screen almost immediately, later chunks grow
+ * to keep the number of UI dispatches low.
+ */
+public class DocumentLoader {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int FIRST_CHUNK_CHARS = 16 * 1024;
+    private static final int MAX_CHUNK_CHARS = 256 * 1024;
+
+    private final ExecutorService worker;
+    private final Executor callbacks;
+
+    public DocumentLoader(ExecutorService worker, Executor callbacks) {
+        this.worker = worker;
+        this.callbacks = callbacks;
+    }
+
+    public Task load(Source source, Callback callback) {
+        Task task = new Task(source, callback);
+        task.future = worker.submit(task::run);
+        return task;
+    }
+
+    public interface Source {
+        /**
+         * Opens the content on the worker thread, or returns null if it should not be
+         * loaded as text.
+         */
+        InputStream open() throws IOException;
+
+        /**
+         * Size in bytes once {@link #open()} has returned, or -1 if unknown.
+         */
+        long length();
+    }
+
+    public interface Callback {
+        void onStart(long totalBytes);
+
+        /**
+         * @param percent progress in [0, 100], or -1 when the total size is unknown.
+         */
+        void onChunk(String text, int percent);
+
+        void onComplete();
+
+        void onUnsupported();
+
+        void onError(Exception e);
+    }
+
+    public class Task {
+        private final Source source;
+        private final Callback callback;
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        private Task(Source source, Callback callback) {
+            this.source = source;
+            this.callback = callback;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            if (future != null) future.cancel(true);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void run() {
+            try (InputStream in = source.open()) {
+                if (in == null) {
+                    post(callback::onUnsupported);
+                    return;
+                }
+                long total = source.length();
+                post(() -> callback.onStart(total));
+
+                CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                ByteBuffer bytes = ByteBuffer.allocate(READ_BUFFER_BYTES);
+                CharBuffer chars = CharBuffer.allocate(FIRST_CHUNK_CHARS);
+                long bytesRead = 0;
+                boolean eof = false;
+
+                while (!eof) {
+                    if (cancelled) return;
+                    int n = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+                    if (n < 0) {
+                        eof = true;
+                    } else {
+                        bytes.position(bytes.position() + n);
+                        bytesRead += n;
+                    }
+                    bytes.flip();
+                    while (decoder.decode(bytes, chars, eof).isOverflow()) {
+                        chars = deliver(chars, percent(bytesRead, total));
+                    }
+                    bytes.compact();
+                }
+                CoderResult result;
+                while ((result = decoder.flush(chars)).isOverflow()) {
+                    chars = deliver(chars, percent(bytesRead, total));
+                }
+                if (result.isError()) result.throwException();
+                if (chars.position() > 0) deliver(chars, percent(bytesRead, total));
+                post(callback::onComplete);
+            } catch (Exception e) {
+                if (!cancelled) post(() -> callback.onError(e));
+            }
+        }
+
+        // Hands the decoded chars to the UI and returns the buffer for the next chunk.
+        private CharBuffer deliver(CharBuffer chars, int percent) {
+            String text = new String(chars.array(), 0, chars.position());
+            post(() -> callback.onChunk(text, percent));
+            int nextSize = Math.min(MAX_CHUNK_CHARS, chars.capacity() * 2);
+            if (nextSize == chars.capacity()) {
+                chars.clear();
+                return chars;
+            }
+            return CharBuffer.allocate(nextSize);
+        }
+
+        private void post(Runnable action) {
+            callbacks.execute(() -> {
+                if (!cancelled) action.run();
+            });
+        }
+    }
+
+    private static int percent(long done, long total) {
+        if (total <= 0) return -1;
+        return (int) Math.min(100, done * 100 / total);
+    }
+}
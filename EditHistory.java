@@ -0,0 +1,314 @@
+package com.codestudio.mobile;
+
+/**
+ * Undo/redo history stored as deltas rather than document snapshots.
+ * <p>
+ * Every edit is one record (start, removed length, inserted length, text position) in parallel
+ * primitive arrays, and the removed and inserted characters go into a single char ring. When
+ * the ring would exceed its cap the oldest records are dropped, so memory stays bounded no
+ * matter how large the document is, and undoing or redoing an edit costs only its own size.
+ * <p>
+ * Consecutive typing, backspacing, forward deletes and IME recomposition of the same word are
+ * coalesced into a single record until a pause, a newline or a cursor jump.
+ */
+public class EditHistory {
+
+    public static final int DEFAULT_MAX_CHARS = 2 * 1024 * 1024;
+    private static final int DEFAULT_MAX_RECORDS = 10000;
+    private static final long COALESCE_WINDOW_NANOS = 2000_000_000L;
+    private static final int INITIAL_CHARS = 4096;
+    private static final int INITIAL_RECORDS = 64;
+
+    // Set on deletion records whose removed text is stored back to front (backspace runs).
+    private static final int FLAG_REVERSED = 1;
+
+    private final int maxChars;
+    private final int maxRecords;
+
+    private int[] starts = new int[INITIAL_RECORDS];
+    private int[] removedLengths = new int[INITIAL_RECORDS];
+    private int[] insertedLengths = new int[INITIAL_RECORDS];
+    private int[] flags = new int[INITIAL_RECORDS];
+    private long[] textPositions = new long[INITIAL_RECORDS];
+    // Records live in [first, first + count) modulo the array length; [0, undoable) can be undone.
+    private int first;
+    private int count;
+    private int undoable;
+
+    // Text lives in [textTail, textHead) as absolute positions, stored modulo text.length.
+    private char[] text = new char[0];
+    private long textTail;
+    private long textHead;
+
+    private boolean coalescing;
+    private long lastRecordNanos;
+    private boolean applying;
+
+    public EditHistory() {
+        this(DEFAULT_MAX_CHARS, DEFAULT_MAX_RECORDS);
+    }
+
+    public EditHistory(int maxChars, int maxRecords) {
+        this.maxChars = Math.max(1, maxChars);
+        this.maxRecords = Math.max(1, maxRecords);
+    }
+
+    public boolean canUndo() {
+        return undoable > 0;
+    }
+
+    public boolean canRedo() {
+        return undoable < count;
+    }
+
+    /**
+     * True while {@link #undo} or {@link #redo} is applying an edit; the resulting change
+     * notifications are not recorded.
+     */
+    public boolean isApplying() {
+        return applying;
+    }
+
+    public void clear() {
+        first = 0;
+        count = 0;
+        undoable = 0;
+        textTail = 0;
+        textHead = 0;
+        coalescing = false;
+    }
+
+    /**
+     * Ends the current coalescing run, e.g. when the cursor was moved explicitly.
+     */
+    public void breakCoalescing() {
+        coalescing = false;
+    }
+
+    /**
+     * Records that removed[removedStart, removedEnd) at start was replaced by
+     * inserted[insertedStart, insertedEnd). Ignored while an undo or redo is being applied.
+     */
+    public void record(int start, CharSequence removed, int removedStart, int removedEnd,
+                       CharSequence inserted, int insertedStart, int insertedEnd) {
+        if (applying) return;
+        int removedLength = removedEnd - removedStart;
+        int insertedLength = insertedEnd - insertedStart;
+        if (removedLength == 0 && insertedLength == 0) return;
+
+        // A new edit discards everything that could have been redone.
+        if (undoable < count) {
+            count = undoable;
+            textHead = count > 0 ? recordEnd(count - 1) : textTail;
+            coalescing = false;
+        }
+
+        long now = System.nanoTime();
+        if (coalescing && now - lastRecordNanos > COALESCE_WINDOW_NANOS) coalescing = false;
+        lastRecordNanos = now;
+        if (coalescing && count > 0 && coalesce(start, removed, removedStart, removedLength, inserted, insertedStart, insertedLength)) {
+            return;
+        }
+
+        int total = removedLength + insertedLength;
+        if (!reserve(total)) return;
+        if (count == maxRecords) dropOldest();
+        ensureRecordCapacity(count + 1);
+        int slot = slot(count);
+        starts[slot] = start;
+        removedLengths[slot] = removedLength;
+        insertedLengths[slot] = insertedLength;
+        flags[slot] = 0;
+        textPositions[slot] = textHead;
+        append(removed, removedStart, removedEnd, false);
+        append(inserted, insertedStart, insertedEnd, false);
+        count++;
+        undoable = count;
+        coalescing = !containsNewline(inserted, insertedStart, insertedEnd);
+    }
+
+    /**
+     * Reverts the most recent edit through target.
+     *
+     * @return the offset just after the restored text, or -1 if there was nothing to undo
+     */
+    public int undo(Target target) {
+        if (!canUndo()) return -1;
+        coalescing = false;
+        int slot = slot(undoable - 1);
+        int start = starts[slot];
+        String restored = readText(textPositions[slot], removedLengths[slot], (flags[slot] & FLAG_REVERSED) != 0);
+        apply(target, start, start + insertedLengths[slot], restored);
+        undoable--;
+        return start + restored.length();
+    }
+
+    /**
+     * Re-applies the most recently undone edit through target.
+     *
+     * @return the offset just after the re-inserted text, or -1 if there was nothing to redo
+     */
+    public int redo(Target target) {
+        if (!canRedo()) return -1;
+        coalescing = false;
+        int slot = slot(undoable);
+        int start = starts[slot];
+        String reinserted = readText(textPositions[slot] + removedLengths[slot], insertedLengths[slot], false);
+        apply(target, start, start + removedLengths[slot], reinserted);
+        undoable++;
+        return start + reinserted.length();
+    }
+
+    private void apply(Target target, int start, int end, String replacement) {
+        applying = true;
+        try {
+            target.replace(start, end, replacement);
+        } finally {
+            applying = false;
+        }
+    }
+
+    // Tries to merge the edit into the last record; its text always ends at textHead.
+    private boolean coalesce(int start, CharSequence removed, int removedStart, int removedLength,
+                             CharSequence inserted, int insertedStart, int insertedLength) {
+        int slot = slot(count - 1);
+        int lastStart = starts[slot];
+        int lastRemoved = removedLengths[slot];
+        int lastInserted = insertedLengths[slot];
+        boolean reversed = (flags[slot] & FLAG_REVERSED) != 0;
+        // Keep the merged record within the cap so making room never evicts it.
+        if ((long) lastRemoved + lastInserted + removedLength + insertedLength > maxChars) return false;
+
+        if (removedLength == 0 && !reversed && start == lastStart + lastInserted
+                && (lastRemoved == 0 || lastInserted > 0)) {
+            // Typing continues the previous insertion.
+            if (containsNewline(inserted, insertedStart, insertedStart + insertedLength)) return false;
+            if (!reserve(insertedLength)) return true;
+            append(inserted, insertedStart, insertedStart + insertedLength, false);
+            insertedLengths[slot] += insertedLength;
+            return true;
+        }
+        if (insertedLength == 0 && lastInserted == 0) {
+            if (start == lastStart && !reversed) {
+                // Forward delete at the same position.
+                if (!reserve(removedLength)) return true;
+                append(removed, removedStart, removedStart + removedLength, false);
+                removedLengths[slot] += removedLength;
+                return true;
+            }
+            if (start + removedLength == lastStart && (reversed || lastRemoved == 1)) {
+                // Backspace: the new chars precede the old ones, so the run is kept reversed.
+                if (!reserve(removedLength)) return true;
+                append(removed, removedStart, removedStart + removedLength, true);
+                removedLengths[slot] += removedLength;
+                starts[slot] = start;
+                flags[slot] |= FLAG_REVERSED;
+                return true;
+            }
+            return false;
+        }
+        if (!reversed && start == lastStart && removedLength == lastInserted && insertedLength > 0) {
+            // The IME replaced the word it is composing; keep the original removed text.
+            textHead -= lastInserted;
+            if (!reserve(insertedLength)) return true;
+            append(inserted, insertedStart, insertedStart + insertedLength, false);
+            insertedLengths[slot] = insertedLength;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes room for n more chars, dropping the oldest records as needed. If the text cannot
+     * fit at all the history is cleared, since it could no longer restore this edit.
+     */
+    private boolean reserve(int n) {
+        if (n > maxChars) {
+            clear();
+            return false;
+        }
+        while (textHead + n - textTail > maxChars && count > 0) dropOldest();
+        if (count == 0) {
+            textTail = textHead;
+        }
+        long needed = textHead + n - textTail;
+        if (needed > text.length) growText((int) needed);
+        return true;
+    }
+
+    private void dropOldest() {
+        first = (first + 1) % starts.length;
+        count--;
+        undoable = Math.max(0, undoable - 1);
+        textTail = count > 0 ? textPositions[slot(0)] : textHead;
+        if (count == 0) coalescing = false;
+    }
+
+    private void growText(int needed) {
+        int capacity = Math.min(maxChars, Math.max(needed, Math.max(INITIAL_CHARS, text.length * 2)));
+        char[] grown = new char[capacity];
+        for (long pos = textTail; pos < textHead; pos++) {
+            grown[(int) (pos % capacity)] = text[(int) (pos % text.length)];
+        }
+        text = grown;
+    }
+
+    private void ensureRecordCapacity(int needed) {
+        if (needed <= starts.length) return;
+        int capacity = Math.min(maxRecords, Math.max(needed, starts.length * 2));
+        int oldLength = starts.length;
+        starts = unwrap(starts, oldLength, capacity);
+        removedLengths = unwrap(removedLengths, oldLength, capacity);
+        insertedLengths = unwrap(insertedLengths, oldLength, capacity);
+        flags = unwrap(flags, oldLength, capacity);
+        long[] positions = new long[capacity];
+        for (int i = 0; i < count; i++) positions[i] = textPositions[(first + i) % oldLength];
+        textPositions = positions;
+        first = 0;
+    }
+
+    private int[] unwrap(int[] values, int oldLength, int capacity) {
+        int[] copy = new int[capacity];
+        for (int i = 0; i < count; i++) copy[i] = values[(first + i) % oldLength];
+        return copy;
+    }
+
+    private void append(CharSequence source, int start, int end, boolean reversed) {
+        int capacity = text.length;
+        if (reversed) {
+            for (int i = end - 1; i >= start; i--) text[(int) (textHead++ % capacity)] = source.charAt(i);
+        } else {
+            for (int i = start; i < end; i++) text[(int) (textHead++ % capacity)] = source.charAt(i);
+        }
+    }
+
+    private String readText(long position, int length, boolean reversed) {
+        char[] chars = new char[length];
+        int capacity = text.length;
+        for (int i = 0; i < length; i++) {
+            char c = text[(int) ((position + i) % capacity)];
+            chars[reversed ? length - 1 - i : i] = c;
+        }
+        return new String(chars);
+    }
+
+    private long recordEnd(int index) {
+        int slot = slot(index);
+        return textPositions[slot] + removedLengths[slot] + insertedLengths[slot];
+    }
+
+    private int slot(int index) {
+        return (first + index) % starts.length;
+    }
+
+    private static boolean containsNewline(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') return true;
+        }
+        return false;
+    }
+
+    public interface Target {
+        void replace(int start, int end, CharSequence text);
+    }
+}
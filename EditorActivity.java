@@ -3,7 +3,10 @@ package com.codestudio.mobile;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.MenuItem;
+import android.widget.EditText;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -14,9 +17,83 @@ public class EditorActivity extends AppCompatActivity {
     public static final String PREFS_NAME = "AppPreferences";
     public static final String KEY_EDITOR_STARTUP = "openEditorOnStartup";
     public static final String KEY_WELCOME_STARTUP = "openWelcomeScreenOnStartup";
+    public static final String KEY_LARGE_FILE_THRESHOLD_MB = "largeFileThresholdMb";
+    public static final int DEFAULT_LARGE_FILE_THRESHOLD_MB = 16;
+    public static final String KEY_UNDO_HISTORY_KB = "undoHistoryKb";
+    public static final int DEFAULT_UNDO_HISTORY_KB = 4096;
+    public static final String KEY_SAVE_PARALLELISM = "saveParallelism";
+    public static final int DEFAULT_SAVE_PARALLELISM = 4;
+    public static final String KEY_SAVE_PER_PROVIDER = "saveConnectionsPerProvider";
+    public static final int DEFAULT_SAVE_PER_PROVIDER = 2;
+    private static final int MAX_SAVE_PARALLELISM = 16;
+    public static final String KEY_MAX_RUNNING_SESSIONS = "maxRunningSessions";
+    public static final int DEFAULT_MAX_RUNNING_SESSIONS = 3;
+    private static final int MAX_RUNNING_SESSIONS = 16;
+    public static final String KEY_RUN_TIMEOUT_SECONDS = "runTimeoutSeconds";
+    public static final String KEY_RUN_CPU_SECONDS = "runCpuSeconds";
+    public static final String KEY_RUN_MEMORY_MB = "runMemoryMb";
 
     private SwitchCompat openEditorOnStartup;
     private SwitchCompat openWelcomeScreenOnStartup;
+    private EditText largeFileThreshold;
+    private EditText undoHistoryLimit;
+    private EditText saveParallelism;
+    private EditText savePerProvider;
+    private EditText maxRunningSessions;
+    private EditText runTimeoutSeconds;
+    private EditText runCpuSeconds;
+    private EditText runMemoryMb;
+
+    /**
+     * Files at or above this size (in bytes) open in the read-only large file viewer.
+     */
+    public static long getLargeFileThreshold(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        int megabytes = prefs.getInt(KEY_LARGE_FILE_THRESHOLD_MB, DEFAULT_LARGE_FILE_THRESHOLD_MB);
+        return Math.max(1, megabytes) * 1024L * 1024L;
+    }
+
+    /**
+     * Memory cap of each editor tab's undo history, in chars.
+     */
+    public static int getUndoHistoryChars(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        int kilobytes = prefs.getInt(KEY_UNDO_HISTORY_KB, DEFAULT_UNDO_HISTORY_KB);
+        return Math.max(1, kilobytes) * 1024 / 2;
+    }
+
+    /**
+     * How many files Save All writes at the same time.
+     */
+    public static int getSaveParallelism(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return Math.max(1, Math.min(MAX_SAVE_PARALLELISM, prefs.getInt(KEY_SAVE_PARALLELISM, DEFAULT_SAVE_PARALLELISM)));
+    }
+
+    /**
+     * How many of those writes may go to the same documents provider.
+     */
+    public static int getSavePerProvider(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return Math.max(1, Math.min(MAX_SAVE_PARALLELISM, prefs.getInt(KEY_SAVE_PER_PROVIDER, DEFAULT_SAVE_PER_PROVIDER)));
+    }
+
+    /**
+     * How many programs run at the same time; further runs wait in the session queue.
+     */
+    public static int getMaxRunningSessions(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return Math.max(1, Math.min(MAX_RUNNING_SESSIONS, prefs.getInt(KEY_MAX_RUNNING_SESSIONS, DEFAULT_MAX_RUNNING_SESSIONS)));
+    }
+
+    /**
+     * Wall-clock, CPU time and memory limits for every run; 0 means no limit.
+     */
+    public static ProcessSupervisor.Limits getRunLimits(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return new ProcessSupervisor.Limits(prefs.getInt(KEY_RUN_TIMEOUT_SECONDS, 0),
+                prefs.getInt(KEY_RUN_CPU_SECONDS, 0), prefs.getInt(KEY_RUN_MEMORY_MB, 0));
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -29,6 +106,14 @@ public class EditorActivity extends AppCompatActivity {
         }
         openEditorOnStartup = findViewById(R.id.openEditorOnStartup);
         openWelcomeScreenOnStartup = findViewById(R.id.openWelcomeScreenOnStartup);
+        largeFileThreshold = findViewById(R.id.largeFileThreshold);
+        undoHistoryLimit = findViewById(R.id.undoHistoryLimit);
+        saveParallelism = findViewById(R.id.saveParallelism);
+        savePerProvider = findViewById(R.id.savePerProvider);
+        maxRunningSessions = findViewById(R.id.maxRunningSessions);
+        runTimeoutSeconds = findViewById(R.id.runTimeoutSeconds);
+        runCpuSeconds = findViewById(R.id.runCpuSeconds);
+        runMemoryMb = findViewById(R.id.runMemoryMb);
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         boolean editorStartup = prefs.getBoolean(KEY_EDITOR_STARTUP, false);
         boolean welcomeStartup = prefs.getBoolean(KEY_WELCOME_STARTUP, true);
@@ -58,6 +143,37 @@ public class EditorActivity extends AppCompatActivity {
             }
             editor.apply();
         });
+        bindInt(largeFileThreshold, prefs, KEY_LARGE_FILE_THRESHOLD_MB, DEFAULT_LARGE_FILE_THRESHOLD_MB, 1);
+        bindInt(undoHistoryLimit, prefs, KEY_UNDO_HISTORY_KB, DEFAULT_UNDO_HISTORY_KB, 1);
+        bindInt(saveParallelism, prefs, KEY_SAVE_PARALLELISM, DEFAULT_SAVE_PARALLELISM, 1);
+        bindInt(savePerProvider, prefs, KEY_SAVE_PER_PROVIDER, DEFAULT_SAVE_PER_PROVIDER, 1);
+        bindInt(maxRunningSessions, prefs, KEY_MAX_RUNNING_SESSIONS, DEFAULT_MAX_RUNNING_SESSIONS, 1);
+        bindInt(runTimeoutSeconds, prefs, KEY_RUN_TIMEOUT_SECONDS, 0, 0);
+        bindInt(runCpuSeconds, prefs, KEY_RUN_CPU_SECONDS, 0, 0);
+        bindInt(runMemoryMb, prefs, KEY_RUN_MEMORY_MB, 0, 0);
+    }
+
+    private static void bindInt(EditText field, SharedPreferences prefs, String key, int defaultValue, int min) {
+        field.setText(String.valueOf(prefs.getInt(key, defaultValue)));
+        field.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                try {
+                    int value = Integer.parseInt(s.toString().trim());
+                    if (value >= min) prefs.edit().putInt(key, value).apply();
+                } catch (NumberFormatException ignored) {
+                    // Keep the previous value while the field is being edited
+                }
+            }
+        });
     }
 
     @Override
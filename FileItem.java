@@ -10,8 +10,12 @@ public class FileItem {
     public boolean isDirectory;
     public boolean isExpanded;
     public int depth;
+    // Null until first needed when the item was not created from a listing; read it through getMimeType().
     public String mimeType;
+    // 0 until first needed; read it through getIconResource().
     public int iconResource;
+    // Set when mimeType still has to be resolved, and cleared once it is.
+    private Context context;
 
     public FileItem(Context context, Uri uri, String displayName, boolean isDirectory, int depth) {
         this.uri = uri;
@@ -19,11 +23,11 @@ public class FileItem {
         this.isDirectory = isDirectory;
         this.isExpanded = false;
         this.depth = depth;
-        this.mimeType = resolveMimeType(context, uri);
-        this.iconResource = R.drawable.ic_unsupported_file; // default icon, can be updated later
+        // Resolved lazily: asking the provider is an IPC, and most items never need their type.
+        this.context = context.getApplicationContext();
     }
-// Inside your FileItem class (assuming it has a public field int iconResource)
 
+    // For rows from a directory listing, which already carries the MIME type.
     public FileItem(Uri uri, String displayName, boolean isDirectory, int depth, String mimeType) {
         this.uri = uri;
         this.displayName = displayName;
@@ -31,7 +35,24 @@ public class FileItem {
         this.isExpanded = false;
         this.depth = depth;
         this.mimeType = mimeType;
-        this.iconResource = R.drawable.ic_unsupported_file;
+    }
+
+    /**
+     * The MIME type, resolved on first use: from the file name's extension where that is
+     * known, otherwise from the provider.
+     */
+    public String getMimeType() {
+        if (context != null) {
+            String type = FileUtils.getMimeTypeFromName(displayName);
+            mimeType = type != null ? type : resolveMimeType(context, uri);
+            context = null;
+        }
+        return mimeType;
+    }
+
+    public int getIconResource() {
+        if (iconResource == 0) iconResource = getIconResource(getMimeType());
+        return iconResource;
     }
 
     public static String resolveMimeType(Context context, Uri uri) {
@@ -51,18 +72,26 @@ public class FileItem {
     }
 
     public void updateIconResource(String mimeType) {
+        this.iconResource = getIconResource(mimeType);
+    }
+
+    /**
+     * The drawer icon for a file of the given type.
+     */
+    public static int getIconResource(String mimeType) {
         if (mimeType == null) {
-            this.iconResource = R.drawable.ic_unsupported_file;
+            return R.drawable.ic_unsupported_file;
         } else if (mimeType.startsWith("image/")) {
-            this.iconResource = R.drawable.ic_image_file;
+            return R.drawable.ic_image_file;
         } else if (mimeType.startsWith("audio/")) {
-            this.iconResource = R.drawable.ic_audio_file;
+            return R.drawable.ic_audio_file;
         } else if (mimeType.startsWith("video/")) {
-            this.iconResource = R.drawable.ic_video_file;
-        } else if (mimeType.startsWith("text/") || mimeType.equals("application/json") || mimeType.equals("application/xml")) {
-            this.iconResource = R.drawable.ic_text_file;
+            return R.drawable.ic_video_file;
+        } else if (mimeType.startsWith("text/") || mimeType.equals("application/json") || mimeType.equals("application/xml")
+                || mimeType.equals("application/javascript")) {
+            return R.drawable.ic_text_file;
         } else {
-            this.iconResource = R.drawable.ic_unsupported_file;
+            return R.drawable.ic_unsupported_file;
         }
     }
 }
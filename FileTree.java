@@ -0,0 +1,452 @@
+package com.codestudio.mobile;
+
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The drawer rows as a pre-order flattened tree held in primitive arrays.
+ * <p>
+ * Each row is the distance to its parent, a depth, a subtree size, a flags byte and ids into a
+ * table of interned strings (names, MIME types), instead of a FileItem with its own Uri and
+ * Strings. The table is shared by the trees of one tree URI; opening another folder starts a
+ * new one, so the old table goes away with the last tree that uses it. Document IDs are not
+ * stored when they are the parent's ID plus "/" plus the name, which is how the external
+ * storage provider builds them, so a row costs a few dozen bytes; they are built the first
+ * time they are asked for and then cached per row, and the cache is carried over to the trees
+ * derived from this one.
+ * <p>
+ * Because a folder's descendants are the subtreeSize - 1 rows after it, and parents are kept
+ * as distances, which rows keep when they move, collapsing and expanding copy the arrays
+ * around the subtree as whole blocks. Only the subtree's own rows, the folder's ancestors and
+ * the later children of those ancestors are written one by one.
+ * <p>
+ * Instances are immutable; the editing methods return new trees. As a List it materializes a
+ * FileItem per access, which is meant for binding a row, not for bulk work.
+ */
+public final class FileTree extends AbstractList<FileItem> {
+
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_EXPANDED = 2;
+    // The document ID is the parent's ID + "/" + name.
+    private static final int FLAG_CHILD_ID = 4;
+
+    // The table of the folder opened last. Guarded by FileTree.class.
+    private static StringTable currentTable;
+
+    private final Uri treeUri;
+    private final StringTable table;
+    // Document ID of the folder the top-level rows belong to.
+    private final String baseDocumentId;
+    private final int size;
+    // row - parent, or 0 for a top-level row.
+    private final int[] parentDistances;
+    private final int[] depths;
+    private final int[] subtreeSizes;
+    private final byte[] flags;
+    private final int[] names;
+    private final int[] mimeTypes;
+    // Interned document ID for rows without FLAG_CHILD_ID, otherwise -1.
+    private final int[] documentIds;
+    // Document IDs built so far, shared with the trees that have the same rows. Filled lazily
+    // from any thread; a racing fill stores an equal String.
+    private final String[] documentIdCache;
+
+    private FileTree(Uri treeUri, StringTable table, String baseDocumentId, int size, int[] parentDistances, int[] depths,
+                     int[] subtreeSizes, byte[] flags, int[] names, int[] mimeTypes, int[] documentIds,
+                     String[] documentIdCache) {
+        this.treeUri = treeUri;
+        this.table = table;
+        this.baseDocumentId = baseDocumentId;
+        this.size = size;
+        this.parentDistances = parentDistances;
+        this.depths = depths;
+        this.subtreeSizes = subtreeSizes;
+        this.flags = flags;
+        this.names = names;
+        this.mimeTypes = mimeTypes;
+        this.documentIds = documentIds;
+        this.documentIdCache = documentIdCache;
+    }
+
+    public static FileTree empty(Uri treeUri) {
+        return new Builder(treeUri, treeUri != null ? DocumentsContract.getTreeDocumentId(treeUri) : "", 0).build();
+    }
+
+    private static StringTable tableFor(Uri treeUri) {
+        // The placeholder tree shown before a folder is opened.
+        if (treeUri == null) return new StringTable(null);
+        synchronized (FileTree.class) {
+            if (currentTable == null || !Objects.equals(currentTable.treeUri, treeUri)) {
+                currentTable = new StringTable(treeUri);
+            }
+            return currentTable;
+        }
+    }
+
+    private String string(int id) {
+        return table.get(id);
+    }
+
+    public Uri getTreeUri() {
+        return treeUri;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public FileItem get(int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        FileItem item = new FileItem(getDocumentUri(row), getName(row), isDirectory(row), depths[row], getMimeType(row));
+        item.isExpanded = isExpanded(row);
+        return item;
+    }
+
+    public int getParent(int row) {
+        return parentOf(parentDistances, row);
+    }
+
+    private static int parentOf(int[] parentDistances, int row) {
+        int distance = parentDistances[row];
+        return distance == 0 ? -1 : row - distance;
+    }
+
+    public int getDepth(int row) {
+        return depths[row];
+    }
+
+    /**
+     * One past the last descendant of row.
+     */
+    public int getSubtreeEnd(int row) {
+        return row + subtreeSizes[row];
+    }
+
+    public boolean isDirectory(int row) {
+        return (flags[row] & FLAG_DIRECTORY) != 0;
+    }
+
+    public boolean isExpanded(int row) {
+        return (flags[row] & FLAG_EXPANDED) != 0;
+    }
+
+    public String getName(int row) {
+        return string(names[row]);
+    }
+
+    int getNameId(int row) {
+        return names[row];
+    }
+
+    public String getMimeType(int row) {
+        return string(mimeTypes[row]);
+    }
+
+    public String getDocumentId(int row) {
+        if ((flags[row] & FLAG_CHILD_ID) == 0) return string(documentIds[row]);
+        String documentId = documentIdCache[row];
+        if (documentId != null) return documentId;
+        int parent = getParent(row);
+        String parentId = parent < 0 ? baseDocumentId : getDocumentId(parent);
+        documentId = parentId + "/" + getName(row);
+        documentIdCache[row] = documentId;
+        return documentId;
+    }
+
+    public Uri getDocumentUri(int row) {
+        return DocumentsContract.buildDocumentUriUsingTree(treeUri, getDocumentId(row));
+    }
+
+    /**
+     * Document IDs of the expanded folders.
+     */
+    public Set<String> getExpandedDocumentIds() {
+        Set<String> expanded = new HashSet<>();
+        for (int row = 0; row < size; row++) {
+            if ((flags[row] & FLAG_EXPANDED) != 0) expanded.add(getDocumentId(row));
+        }
+        return expanded;
+    }
+
+    /**
+     * Row index of a document, or -1. Names are compared as interned ids first, so this is a
+     * cheap scan.
+     */
+    public int indexOf(String documentId, String name) {
+        int nameId = name != null ? table.find(name) : -1;
+        if (name != null && nameId < 0) return -1;
+        for (int row = 0; row < size; row++) {
+            if (names[row] == nameId && getDocumentId(row).equals(documentId)) return row;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether two rows show the same thing (ignoring their position).
+     */
+    boolean sameContents(int row, FileTree other, int otherRow) {
+        if (flags[row] != other.flags[otherRow] || depths[row] != other.depths[otherRow]) return false;
+        if (table == other.table) return names[row] == other.names[otherRow] && mimeTypes[row] == other.mimeTypes[otherRow];
+        return Objects.equals(getName(row), other.getName(otherRow)) && Objects.equals(getMimeType(row), other.getMimeType(otherRow));
+    }
+
+    public FileTree withExpanded(int row, boolean expanded) {
+        byte[] newFlags = flags.clone();
+        newFlags[row] = (byte) (expanded ? newFlags[row] | FLAG_EXPANDED : newFlags[row] & ~FLAG_EXPANDED);
+        return new FileTree(treeUri, table, baseDocumentId, size, parentDistances, depths, subtreeSizes, newFlags, names,
+                mimeTypes, documentIds, documentIdCache);
+    }
+
+    /**
+     * Marks row collapsed and drops its descendants.
+     */
+    public FileTree collapse(int row) {
+        int start = row + 1;
+        int removed = subtreeSizes[row] - 1;
+        FileTree result = splice(start, removed, null);
+        result.flags[row] &= ~FLAG_EXPANDED;
+        return result;
+    }
+
+    /**
+     * Marks row expanded and inserts children (built with row's document ID as base and
+     * depth + 1) as its descendants, replacing any it had.
+     */
+    public FileTree expand(int row, FileTree children) {
+        FileTree result = splice(row + 1, subtreeSizes[row] - 1, children);
+        result.flags[row] |= FLAG_EXPANDED;
+        return result;
+    }
+
+    /**
+     * Only the top-level rows, all collapsed.
+     */
+    public FileTree collapseAll() {
+        Builder builder = new Builder(treeUri, table, baseDocumentId, size > 0 ? depths[0] : 0);
+        for (int row = 0; row < size; row = getSubtreeEnd(row)) {
+            builder.addRow(-1, flags[row] & ~FLAG_EXPANDED, names[row], mimeTypes[row], documentIds[row]);
+        }
+        return builder.build();
+    }
+
+    // Replaces rows [start, start + removed), which must be the whole subtree below row start - 1,
+    // with inserted (whose top-level rows become children of row start - 1). The rows before and
+    // after the subtree are block copies.
+    private FileTree splice(int start, int removed, FileTree inserted) {
+        if (inserted != null && inserted.table != table) inserted = inserted.reinterned(table);
+        int added = inserted != null ? inserted.size : 0;
+        int delta = added - removed;
+        int newSize = size + delta;
+        int from = start + removed;
+        int to = start + added;
+        int[] newDistances = splice(parentDistances, start, from, to, newSize, inserted != null ? inserted.parentDistances : null);
+        int[] newDepths = splice(depths, start, from, to, newSize, inserted != null ? inserted.depths : null);
+        int[] newSubtrees = splice(subtreeSizes, start, from, to, newSize, inserted != null ? inserted.subtreeSizes : null);
+        int[] newNames = splice(names, start, from, to, newSize, inserted != null ? inserted.names : null);
+        int[] newMimeTypes = splice(mimeTypes, start, from, to, newSize, inserted != null ? inserted.mimeTypes : null);
+        int[] newIds = splice(documentIds, start, from, to, newSize, inserted != null ? inserted.documentIds : null);
+        byte[] newFlags = new byte[newSize];
+        System.arraycopy(flags, 0, newFlags, 0, start);
+        if (inserted != null) System.arraycopy(inserted.flags, 0, newFlags, start, added);
+        System.arraycopy(flags, from, newFlags, to, size - from);
+        String[] newCache = new String[newSize];
+        System.arraycopy(documentIdCache, 0, newCache, 0, start);
+        // The inserted rows were built with row start - 1's document ID as their base.
+        if (inserted != null) System.arraycopy(inserted.documentIdCache, 0, newCache, start, added);
+        System.arraycopy(documentIdCache, from, newCache, to, size - from);
+
+        for (int i = start; i < to; i++) {
+            if (newDistances[i] == 0) newDistances[i] = i - (start - 1);
+        }
+        // Every ancestor of the splice point grows or shrinks by delta, and its children after
+        // the subtree move delta rows away from it.
+        for (int ancestor = start - 1; ancestor >= 0; ancestor = parentOf(newDistances, ancestor)) {
+            newSubtrees[ancestor] += delta;
+        }
+        for (int child = start - 1; child >= 0 && newDistances[child] != 0; ) {
+            int parent = child - newDistances[child];
+            int end = parent + newSubtrees[parent];
+            for (int sibling = child + newSubtrees[child]; sibling < end; sibling += newSubtrees[sibling]) {
+                newDistances[sibling] += delta;
+            }
+            child = parent;
+        }
+        return new FileTree(treeUri, table, baseDocumentId, newSize, newDistances, newDepths, newSubtrees, newFlags,
+                newNames, newMimeTypes, newIds, newCache);
+    }
+
+    // values with [start, from) replaced by inserted (or removed if it is null); the rest is
+    // copied as two blocks.
+    private int[] splice(int[] values, int start, int from, int to, int newSize, int[] inserted) {
+        int[] spliced = new int[newSize];
+        System.arraycopy(values, 0, spliced, 0, start);
+        if (inserted != null) System.arraycopy(inserted, 0, spliced, start, to - start);
+        System.arraycopy(values, from, spliced, to, size - from);
+        return spliced;
+    }
+
+    // This tree with its strings moved to target, for splicing into a tree of another table.
+    private FileTree reinterned(StringTable target) {
+        int[] newNames = new int[size];
+        int[] newMimeTypes = new int[size];
+        int[] newIds = new int[size];
+        for (int row = 0; row < size; row++) {
+            newNames[row] = target.intern(string(names[row]));
+            newMimeTypes[row] = target.intern(string(mimeTypes[row]));
+            newIds[row] = target.intern(string(documentIds[row]));
+        }
+        return new FileTree(treeUri, target, baseDocumentId, size, parentDistances, depths, subtreeSizes, flags,
+                newNames, newMimeTypes, newIds, documentIdCache);
+    }
+
+    // Interned strings of the trees of one tree URI, looked up by id without locking.
+    private static final class StringTable {
+        final Uri treeUri;
+        // Guarded by itself.
+        private final Map<String, Integer> ids = new HashMap<>();
+        private volatile String[] strings = new String[1024];
+        private int count;
+
+        StringTable(Uri treeUri) {
+            this.treeUri = treeUri;
+        }
+
+        int intern(String value) {
+            if (value == null) return -1;
+            synchronized (ids) {
+                Integer id = ids.get(value);
+                if (id != null) return id;
+                String[] table = strings;
+                if (count == table.length) {
+                    String[] grown = new String[table.length * 2];
+                    System.arraycopy(table, 0, grown, 0, table.length);
+                    table = grown;
+                }
+                table[count] = value;
+                strings = table;
+                ids.put(value, count);
+                return count++;
+            }
+        }
+
+        // The id of value, or -1 if it was never interned.
+        int find(String value) {
+            synchronized (ids) {
+                Integer id = ids.get(value);
+                return id != null ? id : -1;
+            }
+        }
+
+        String get(int id) {
+            return id < 0 ? null : strings[id];
+        }
+    }
+
+    /**
+     * Appends rows in pre-order.
+     */
+    public static final class Builder {
+        private final Uri treeUri;
+        private final StringTable table;
+        private final String baseDocumentId;
+        private final int baseDepth;
+        private int size;
+        private int[] parents = new int[64];
+        private int[] depths = new int[64];
+        private byte[] flags = new byte[64];
+        private int[] names = new int[64];
+        private int[] mimeTypes = new int[64];
+        private int[] documentIds = new int[64];
+        // Document IDs of rows added so far that may still get children.
+        private final Map<Integer, String> directoryIds = new HashMap<>();
+
+        public Builder(Uri treeUri, String baseDocumentId, int baseDepth) {
+            this(treeUri, tableFor(treeUri), baseDocumentId, baseDepth);
+        }
+
+        private Builder(Uri treeUri, StringTable table, String baseDocumentId, int baseDepth) {
+            this.treeUri = treeUri;
+            this.table = table;
+            this.baseDocumentId = baseDocumentId;
+            this.baseDepth = baseDepth;
+        }
+
+        /**
+         * @param parent the row index of the parent, or -1 for a top-level row
+         * @return the new row's index
+         */
+        public int add(int parent, String documentId, String name, String mimeType, boolean isDirectory, boolean expanded) {
+            String parentId = parent < 0 ? baseDocumentId : directoryIds.get(parent);
+            int rowFlags = (isDirectory ? FLAG_DIRECTORY : 0) | (expanded ? FLAG_EXPANDED : 0);
+            int idString = -1;
+            if (parentId != null && name != null && documentId.length() == parentId.length() + 1 + name.length()
+                    && documentId.startsWith(parentId) && documentId.charAt(parentId.length()) == '/' && documentId.endsWith(name)) {
+                rowFlags |= FLAG_CHILD_ID;
+            } else {
+                idString = table.intern(documentId);
+            }
+            int row = addRow(parent, rowFlags, table.intern(name), table.intern(mimeType), idString);
+            if (isDirectory) directoryIds.put(row, documentId);
+            return row;
+        }
+
+        private int addRow(int parent, int rowFlags, int name, int mimeType, int documentId) {
+            if (size == parents.length) grow();
+            parents[size] = parent;
+            depths[size] = parent < 0 ? baseDepth : depths[parent] + 1;
+            flags[size] = (byte) rowFlags;
+            names[size] = name;
+            mimeTypes[size] = mimeType;
+            documentIds[size] = documentId;
+            return size++;
+        }
+
+        private void grow() {
+            int capacity = parents.length * 2;
+            parents = copyOf(parents, capacity);
+            depths = copyOf(depths, capacity);
+            names = copyOf(names, capacity);
+            mimeTypes = copyOf(mimeTypes, capacity);
+            documentIds = copyOf(documentIds, capacity);
+            byte[] grownFlags = new byte[capacity];
+            System.arraycopy(flags, 0, grownFlags, 0, size);
+            flags = grownFlags;
+        }
+
+        private int[] copyOf(int[] values, int capacity) {
+            int[] copy = new int[capacity];
+            System.arraycopy(values, 0, copy, 0, size);
+            return copy;
+        }
+
+        public FileTree build() {
+            int[] subtreeSizes = new int[size];
+            int[] distances = new int[size];
+            // Children come after their parents, so one backwards pass accumulates the sizes.
+            for (int row = size - 1; row >= 0; row--) {
+                subtreeSizes[row] += 1;
+                if (parents[row] >= 0) {
+                    subtreeSizes[parents[row]] += subtreeSizes[row];
+                    distances[row] = row - parents[row];
+                }
+            }
+            return new FileTree(treeUri, table, baseDocumentId, size, distances, copyOf(depths, size), subtreeSizes,
+                    trim(flags, size), copyOf(names, size), copyOf(mimeTypes, size), copyOf(documentIds, size), new String[size]);
+        }
+
+        private static byte[] trim(byte[] values, int size) {
+            byte[] copy = new byte[size];
+            System.arraycopy(values, 0, copy, 0, size);
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.codestudio.mobile;
+
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact on-disk copy of the drawer rows of the last opened folder, so they can be shown
+ * immediately on the next launch while the tree is revalidated in the background.
+ * <p>
+ * Rows are stored in drawer order. Document IDs are front-coded against the previous row
+ * (siblings and children share long path prefixes) and MIME types go through a small table,
+ * so even large trees take a few bytes per row. Writes go to a temporary file that is renamed
+ * into place; a missing, stale or corrupt snapshot simply loads as null.
+ */
+public final class FileTreeSnapshot {
+
+    private static final String TAG = "FileTreeSnapshot";
+    private static final int MAGIC = 0x43534654; // "CSFT"
+    private static final int VERSION = 1;
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_EXPANDED = 2;
+
+    private FileTreeSnapshot() {
+    }
+
+    public static File fileIn(File directory) {
+        return new File(directory, "file_tree.bin");
+    }
+
+    /**
+     * Writes rows (documents of treeUri) to file. Call off the main thread.
+     */
+    public static void save(File file, Uri treeUri, FileTree rows) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            List<String> mimeTypes = new ArrayList<>();
+            Map<String, Integer> mimeIndex = new HashMap<>();
+            for (int row = 0; row < rows.size(); row++) {
+                String mimeType = rows.getMimeType(row) != null ? rows.getMimeType(row) : "";
+                if (!mimeIndex.containsKey(mimeType)) {
+                    mimeIndex.put(mimeType, mimeTypes.size());
+                    mimeTypes.add(mimeType);
+                }
+            }
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(treeUri.toString());
+            writeVarInt(out, mimeTypes.size());
+            for (String mimeType : mimeTypes) out.writeUTF(mimeType);
+            writeVarInt(out, rows.size());
+            String previousId = "";
+            for (int row = 0; row < rows.size(); row++) {
+                String documentId = rows.getDocumentId(row);
+                String mimeType = rows.getMimeType(row);
+                int shared = commonPrefix(previousId, documentId);
+                out.writeByte((rows.isDirectory(row) ? FLAG_DIRECTORY : 0) | (rows.isExpanded(row) ? FLAG_EXPANDED : 0));
+                writeVarInt(out, rows.getDepth(row));
+                writeVarInt(out, shared);
+                out.writeUTF(documentId.substring(shared));
+                out.writeUTF(rows.getName(row));
+                writeVarInt(out, mimeIndex.get(mimeType != null ? mimeType : ""));
+                previousId = documentId;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) temp.delete();
+    }
+
+    /**
+     * Reads the rows saved for treeUri, or null if there are none. Call off the main thread.
+     */
+    public static FileTree load(File file, Uri treeUri) {
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) return null;
+            if (!treeUri.toString().equals(in.readUTF())) return null;
+            String[] mimeTypes = new String[readVarInt(in)];
+            for (int i = 0; i < mimeTypes.length; i++) mimeTypes[i] = in.readUTF();
+            int count = readVarInt(in);
+            FileTree.Builder rows = new FileTree.Builder(treeUri, DocumentsContract.getTreeDocumentId(treeUri), 0);
+            // Row index of the latest folder at each depth: the parent of the next deeper row.
+            int[] parents = new int[16];
+            int previousDepth = -1;
+            String previousId = "";
+            for (int i = 0; i < count; i++) {
+                int flags = in.readByte();
+                int depth = readVarInt(in);
+                int shared = readVarInt(in);
+                String documentId = previousId.substring(0, shared) + in.readUTF();
+                String name = in.readUTF();
+                String mimeType = mimeTypes[readVarInt(in)];
+                if (depth >= parents.length) parents = Arrays.copyOf(parents, Math.max(depth + 1, parents.length * 2));
+                if (depth > previousDepth + 1) throw new IOException("Row " + i + " skips a level");
+                parents[depth] = rows.add(depth == 0 ? -1 : parents[depth - 1], documentId, name,
+                        mimeType.isEmpty() ? null : mimeType, (flags & FLAG_DIRECTORY) != 0, (flags & FLAG_EXPANDED) != 0);
+                previousDepth = depth;
+                previousId = documentId;
+            }
+            return rows.build();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static int commonPrefix(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) i++;
+        return i;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+}
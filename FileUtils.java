@@ -6,8 +6,35 @@ import android.net.Uri;
 import android.provider.OpenableColumns;
 import android.webkit.MimeTypeMap;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class FileUtils {
 
+    // Marks extensions MimeTypeMap does not know, so they are not looked up again.
+    private static final String UNKNOWN_TYPE = new String("");
+    private static final Map<String, String> EXTENSION_TYPES = new ConcurrentHashMap<>();
+
+    static {
+        EXTENSION_TYPES.put("java", "text/x-java-source");
+        EXTENSION_TYPES.put("py", "text/x-python");
+        EXTENSION_TYPES.put("c", "text/x-c");
+        EXTENSION_TYPES.put("cpp", "text/x-cpp");
+        EXTENSION_TYPES.put("cxx", "text/x-cpp");
+        EXTENSION_TYPES.put("cc", "text/x-cpp");
+        EXTENSION_TYPES.put("js", "application/javascript");
+        EXTENSION_TYPES.put("php", "text/x-php");
+        EXTENSION_TYPES.put("rb", "text/x-ruby");
+        EXTENSION_TYPES.put("go", "text/x-go");
+        EXTENSION_TYPES.put("kt", "text/x-kotlin");
+        EXTENSION_TYPES.put("sh", "text/x-shellscript");
+        EXTENSION_TYPES.put("bash", "text/x-shellscript");
+        EXTENSION_TYPES.put("cs", "text/x-csharp");
+        EXTENSION_TYPES.put("pl", "text/x-perl");
+        EXTENSION_TYPES.put("lua", "text/x-lua");
+    }
+
     public static String getMimeType(Context context, Uri uri) {
         String mimeType = context.getContentResolver().getType(uri);
 
@@ -28,45 +55,34 @@ public class FileUtils {
             }
 
             if (extension != null) {
-                switch (extension) {
-                    case "java":
-                        return "text/x-java-source";
-                    case "py":
-                        return "text/x-python";
-                    case "c":
-                        return "text/x-c";
-                    case "cpp":
-                    case "cxx":
-                    case "cc":
-                        return "text/x-cpp";
-                    case "js":
-                        return "application/javascript";
-                    case "php":
-                        return "text/x-php";
-                    case "rb":
-                        return "text/x-ruby";
-                    case "go":
-                        return "text/x-go";
-                    case "kt":
-                        return "text/x-kotlin";
-                    case "sh":
-                    case "bash":
-                        return "text/x-shellscript";
-                    case "cs":
-                        return "text/x-csharp";
-                    case "pl":
-                        return "text/x-perl";
-                    case "lua":
-                        return "text/x-lua";
-                    default:
-                        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-                }
+                return getMimeTypeFromExtension(extension);
             }
         }
 
         return mimeType;
     }
 
+    /**
+     * MIME type for a file name from its extension, without asking the provider. Source types
+     * the platform does not know come from our own table; lookups are memoized, so this is
+     * cheap enough to call for every row of a listing. Null when the extension is unknown.
+     */
+    public static String getMimeTypeFromName(String name) {
+        if (name == null) return null;
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) return null;
+        return getMimeTypeFromExtension(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static String getMimeTypeFromExtension(String extension) {
+        String type = EXTENSION_TYPES.get(extension);
+        if (type == null) {
+            type = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            EXTENSION_TYPES.put(extension, type != null ? type : UNKNOWN_TYPE);
+        }
+        return type == UNKNOWN_TYPE ? null : type;
+    }
+
     public static String getFileName(Context context, Uri uri) {
         String result = null;
         if ("content".equals(uri.getScheme())) {
@@ -84,7 +100,7 @@ public class FileUtils {
 
     public static FileItem getFileItemFromUri(Context context, Uri uri) {
         String name = FileUtils.getFileName(context, uri); // You likely already have this
-        String mimeType = FileUtils.getMimeType(context, uri);
+        // The MIME type is resolved by the item when first needed.
         return new FileItem(context, uri, name, true, 0);
     }
 }
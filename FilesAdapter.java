@@ -2,11 +2,7 @@ package com.codestudio.mobile;
 
 import android.app.Activity;
 import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
-import android.os.Handler;
-import android.os.Looper;
-import android.provider.DocumentsContract;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -17,18 +13,29 @@ import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.core.view.ViewCompat;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
+import androidx.recyclerview.widget.BatchingListUpdateCallback;
+import androidx.recyclerview.widget.ListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHolder> {
 
     private static final String TAG = "FilesAdapter";
-    public final List<FileItem> fileList;
+    private static final ExecutorService DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+    // The drawer rows are immutable snapshots. rows is what the RecyclerView shows; latestRows
+    // is the last snapshot submitted, which rows catches up with once its diff is dispatched.
+    private FileTree rows = FileTree.empty(null);
+    private FileTree latestRows = rows;
     private final Context context;
     private final OnFileClickListener onFileClickListener;
     private final SaveAsCallback saveAsCallback; // New member for handling 'Save As'
@@ -36,9 +43,8 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
     // Assuming FileItem is a separate class defined elsewhere with necessary fields/methods.
     // Assuming MainActivity is the hosting Activity.
 
-    public FilesAdapter(Context context, List<FileItem> fileList, OnFileClickListener onFileClickListener, SaveAsCallback saveAsCallback) {
+    public FilesAdapter(Context context, OnFileClickListener onFileClickListener, SaveAsCallback saveAsCallback) {
         this.context = context;
-        this.fileList = fileList;
         this.onFileClickListener = onFileClickListener;
         this.saveAsCallback = saveAsCallback; // Initialize the callback
     }
@@ -52,8 +58,8 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
 
     @Override
     public void onBindViewHolder(@NonNull FileViewHolder holder, int position) {
-        FileItem item = fileList.get(position);
-        holder.bind(item, position);
+        FileItem item = rows.get(position);
+        holder.bind(item);
         holder.itemView.setOnLongClickListener(v -> {
             if (onFileClickListener != null) {
                 onFileClickListener.onFileContextMenuRequest(item.uri, v);
@@ -68,17 +74,133 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
 
     @Override
     public int getItemCount() {
-        return fileList.size();
+        return rows.size();
     }
 
-    public void refresh() {
-        // Must be called on the UI thread
-        if (context instanceof Activity) {
+    /**
+     * The rows as last submitted.
+     */
+    public FileTree getRows() {
+        return latestRows;
+    }
+
+    /**
+     * Shows new rows. The diff against the previous snapshot is computed on a background
+     * thread and dispatched as batched range updates, so unchanged rows keep their views and
+     * animations. Must be called on the main thread; snapshots are applied in submission order.
+     */
+    public void submitRows(FileTree next) {
+        submitRows(next, null);
+    }
+
+    // operations, when known, are the edit script from latestRows to next and skip the diff.
+    private void submitRows(FileTree next, List<int[]> operations) {
+        FileTree previous = latestRows;
+        latestRows = next;
+        DIFF_EXECUTOR.execute(() -> {
+            List<int[]> script = operations != null ? operations : diff(previous, next);
             ((Activity) context).runOnUiThread(() -> {
-                fileList.clear();
-                notifyDataSetChanged();
+                rows = next;
+                BatchingListUpdateCallback updates = new BatchingListUpdateCallback(new AdapterListUpdateCallback(this));
+                for (int[] operation : script) dispatch(operation, updates);
+                updates.dispatchLastEvent();
+                ((MainActivity) context).updateWatchedFolders(next);
             });
+        });
+    }
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_REMOVE = 1;
+    private static final int OP_CHANGE = 2;
+
+    /**
+     * Edit script from old to next, as {op, position, count} in dispatch order.
+     * <p>
+     * Both lists are pre-order walks of the same sorted tree, so rows present in both keep their
+     * relative order and a keyed merge by document ID finds the changes in linear time. A general
+     * DiffUtil run is quadratic in the number of changes, which is exactly what expanding or
+     * collapsing a folder with thousands of children produces.
+     */
+    static List<int[]> diff(FileTree old, FileTree next) {
+        Map<String, Integer> nextIndex = new HashMap<>(next.size() * 2);
+        for (int i = 0; i < next.size(); i++) nextIndex.put(next.getDocumentId(i), i);
+        String[] oldIds = new String[old.size()];
+        Set<String> oldIdSet = new HashSet<>(old.size() * 2);
+        for (int i = 0; i < old.size(); i++) {
+            oldIds[i] = old.getDocumentId(i);
+            oldIdSet.add(oldIds[i]);
         }
+
+        List<int[]> operations = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        while (i < old.size() || j < next.size()) {
+            if (i < old.size()) {
+                Integer target = nextIndex.get(oldIds[i]);
+                if (target == null || target < j) {
+                    add(operations, OP_REMOVE, position, 1);
+                    i++;
+                    continue;
+                }
+            }
+            if (j < next.size()) {
+                String id = next.getDocumentId(j);
+                if (!oldIdSet.contains(id) || i >= old.size()) {
+                    add(operations, OP_INSERT, position++, 1);
+                    j++;
+                    continue;
+                }
+                if (!oldIds[i].equals(id)) {
+                    // A row that moved up: inserted here, its old copy is removed when reached.
+                    add(operations, OP_INSERT, position++, 1);
+                    j++;
+                    continue;
+                }
+                if (!old.sameContents(i, next, j)) add(operations, OP_CHANGE, position, 1);
+                position++;
+                i++;
+                j++;
+            }
+        }
+        return operations;
+    }
+
+    // Extends the previous operation when this one continues it.
+    private static void add(List<int[]> operations, int op, int position, int count) {
+        if (!operations.isEmpty()) {
+            int[] last = operations.get(operations.size() - 1);
+            if (last[0] == op && ((op == OP_REMOVE && last[1] == position) || (op != OP_REMOVE && last[1] + last[2] == position))) {
+                last[2] += count;
+                return;
+            }
+        }
+        operations.add(new int[]{op, position, count});
+    }
+
+    private static void dispatch(int[] operation, ListUpdateCallback updates) {
+        if (operation[0] == OP_INSERT) {
+            updates.onInserted(operation[1], operation[2]);
+        } else if (operation[0] == OP_REMOVE) {
+            updates.onRemoved(operation[1], operation[2]);
+        } else {
+            updates.onChanged(operation[1], operation[2], null);
+        }
+    }
+
+    private static List<int[]> operations(int[]... operations) {
+        List<int[]> list = new ArrayList<>(operations.length);
+        for (int[] operation : operations) {
+            if (operation[2] > 0) list.add(operation);
+        }
+        return list;
+    }
+
+    // Index in latestRows of the row shown at position, or -1 if it is gone.
+    private int toLatestRow(int position) {
+        if (position < 0 || position >= rows.size()) return -1;
+        if (rows == latestRows) return position;
+        return latestRows.indexOf(rows.getDocumentId(position), rows.getName(position));
     }
 
     /**
@@ -91,41 +213,28 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
             return;
         }
 
-        new Thread(() -> {
-            if (filesToSave == null || filesToSave.isEmpty()) {
-                return;
-            }
+        if (filesToSave == null || filesToSave.isEmpty()) {
+            return;
+        }
 
-            Handler mainHandler = new Handler(Looper.getMainLooper());
-            int savedCount = 0;
-
-            for (FileContentItem file : filesToSave) {
-                // ... (Handling for UNTITLED_FILE_URI remains the same)
-
-                // Logic for saving existing files
-                try {
-                    // *** THE MOST ROBUST FIX: Use "rwt" (Read/Write/Truncate) mode. ***
-                    // This explicitly requests the Document Provider to clear the file before writing.
-                    try (OutputStream os = context.getContentResolver().openOutputStream(file.getUri(), "rwt")) {
-                        if (os != null) {
-                            os.write(file.getContent());
-                            savedCount++;
-                        }
-                    }
-                } catch (IOException e) {
-                    // ... (Error handling remains the same)
-                    Log.e(TAG, "Error saving file " + file.getUri().toString() + ": " + e.getMessage());
-                    mainHandler.post(() -> Toast.makeText(context.getApplicationContext(), "Failed to save: " + file.getUri().getLastPathSegment(), Toast.LENGTH_LONG).show());
-                }
+        // Files are written in parallel by the shared save pipeline; one result for the batch.
+        SavePipeline pipeline = SavePipeline.get(context);
+        pipeline.setLimits(EditorActivity.getSaveParallelism(context), EditorActivity.getSavePerProvider(context));
+        pipeline.saveAll(filesToSave, result -> {
+            Log.i(TAG, "Save All: " + result);
+            if (result.isSuccessful()) {
+                Toast.makeText(context.getApplicationContext(), "Successfully saved " + result.saved.size() + " file(s).", Toast.LENGTH_SHORT).show();
+                return;
             }
-
-            // ... (Success message remains the same)
-            final int finalSavedCount = savedCount;
-            if (finalSavedCount > 0) {
-                mainHandler.post(() -> Toast.makeText(context.getApplicationContext(), "Successfully saved " + finalSavedCount + " file(s).", Toast.LENGTH_SHORT).show());
+            StringBuilder names = new StringBuilder();
+            for (Map.Entry<Uri, Exception> failure : result.failures.entrySet()) {
+                Log.e(TAG, "Error saving file " + failure.getKey() + ": " + failure.getValue().getMessage());
+                if (names.length() > 0) names.append(", ");
+                names.append(failure.getKey().getLastPathSegment());
             }
-
-        }).start();
+            Toast.makeText(context.getApplicationContext(), "Failed to save " + result.failures.size() + " of "
+                    + filesToSave.size() + " file(s): " + names, Toast.LENGTH_LONG).show();
+        });
     }
 
     /**
@@ -136,40 +245,77 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
     }
 
     public void collapseAllFolders() {
-        // CRITICAL CORRECTION: Use Context to runOnUiThread safely.
-        if (context instanceof Activity) {
-            ((Activity) context).runOnUiThread(() -> {
-                // Optimization: Removing items from the end is better than the middle,
-                // but the depth logic ensures correct removal.
-                for (int i = fileList.size() - 1; i >= 0; i--) {
-                    FileItem item = fileList.get(i);
-                    // Only remove items that are children of a root folder (depth > 0)
-                    if (item.depth > 0) {
-                        fileList.remove(i);
-                    }
-                    if (item.isDirectory) {
-                        item.isExpanded = false;
-                    }
-                }
-                notifyDataSetChanged();
-            });
-        }
+        submitRows(latestRows.collapseAll());
     }
 
-    // Renamed to match the inner ViewHolder's method for consistency
-    public void expandFolder(final int position) {
-        // Delegating to the new, corrected expandFolder implementation inside FileViewHolder.
-        // This method is rarely needed outside the ViewHolder but kept for completeness.
-        // Since this adapter method runs on the main thread, it's safer to use this structure.
+    /**
+     * Shows the folder's children below it. They come from the drawer's tree cache, so a
+     * folder is only queried the first time.
+     */
+    public void expandFolder(int position) {
+        int row = toLatestRow(position);
+        if (row < 0 || !latestRows.isDirectory(row) || latestRows.isExpanded(row)) return;
+        FileTree flagged = latestRows.withExpanded(row, true);
+        submitRows(flagged, operations(new int[]{OP_CHANGE, row, 1}));
+
+        String documentId = latestRows.getDocumentId(row);
+        String name = latestRows.getName(row);
+        int depth = latestRows.getDepth(row);
+        MainActivity activity = (MainActivity) context;
+        activity.getTreeExecutor().execute(() -> {
+            DirectoryTreeCache cache = activity.getTreeCache(flagged.getTreeUri());
+            FileTree children = cache.flatten(documentId, depth + 1, Collections.emptySet());
+            activity.runOnUiThread(() -> {
+                // The folder may have been collapsed or the rows rebuilt in the meantime.
+                int at = latestRows == flagged ? row : latestRows.indexOf(documentId, name);
+                if (at < 0 || !latestRows.isExpanded(at) || children.isEmpty() || latestRows.getSubtreeEnd(at) != at + 1)
+                    return;
+                submitRows(latestRows.expand(at, children), operations(new int[]{OP_INSERT, at + 1, children.size()}));
+            });
+        });
+    }
 
-        final FileItem folder = fileList.get(position);
-        if (!folder.isExpanded) {
-            new FileViewHolder(LayoutInflater.from(context).inflate(R.layout.item_file_list, null)).expandFolderLogic(position);
-        }
+    /**
+     * Rebuilds the rows below the given folders from the tree cache, after they were listed
+     * again, and leaves the rest of the drawer as it is.
+     */
+    public void refreshFolders(Set<String> folderIds) {
+        FileTree base = latestRows;
+        if (base.getTreeUri() == null) return;
+        MainActivity activity = (MainActivity) context;
+        activity.getTreeExecutor().execute(() -> {
+            DirectoryTreeCache cache = activity.getTreeCache(base.getTreeUri());
+            Set<String> expanded = base.getExpandedDocumentIds();
+            FileTree next = base;
+            if (folderIds.contains(cache.getRootDocumentId())) {
+                next = cache.flatten(cache.getRootDocumentId(), 0, expanded);
+            } else {
+                // Last row first, so a splice never moves the rows still to be visited.
+                for (int row = base.size() - 1; row >= 0; row--) {
+                    if (!base.isExpanded(row)) continue;
+                    String documentId = base.getDocumentId(row);
+                    if (!folderIds.contains(documentId)) continue;
+                    next = next.expand(row, cache.flatten(documentId, base.getDepth(row) + 1, expanded));
+                }
+            }
+            FileTree result = next;
+            activity.runOnUiThread(() -> {
+                // Rows changed meanwhile: start over from the current ones.
+                if (latestRows != base) {
+                    refreshFolders(folderIds);
+                } else if (result != base) {
+                    submitRows(result);
+                }
+            });
+        });
     }
 
-    // Original expandFolderPreserveThreadSafe is removed in favor of the clean internal logic
-    // of expandFolder (renamed to expandFolderLogic)
+    public void collapseFolder(int position) {
+        int row = toLatestRow(position);
+        if (row < 0 || !latestRows.isExpanded(row)) return;
+        int descendants = latestRows.getSubtreeEnd(row) - row - 1;
+        submitRows(latestRows.collapse(row), operations(new int[]{OP_CHANGE, row, 1}, new int[]{OP_REMOVE, row + 1, descendants}));
+    }
 
     // Interface for the callback
     public interface OnFileClickListener {
@@ -183,22 +329,29 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
         void requestSaveAs(byte[] content);
     }
 
-    // FileContentItem definition is good, kept as is.
+    // A read-only document snapshot from an open tab, to be saved without materializing it.
     public static class FileContentItem {
         private final Uri uri;
-        private final byte[] content;
+        private final PieceTable document;
+        private final Runnable onSaved;
 
-        public FileContentItem(Uri uri, byte[] content) {
+        // onSaved runs on the main thread after the document has been written successfully.
+        public FileContentItem(Uri uri, PieceTable document, Runnable onSaved) {
             this.uri = uri;
-            this.content = content;
+            this.document = document;
+            this.onSaved = onSaved;
         }
 
         public Uri getUri() {
             return uri;
         }
 
-        public byte[] getContent() {
-            return content;
+        public PieceTable getDocument() {
+            return document;
+        }
+
+        public void notifySaved() {
+            if (onSaved != null) onSaved.run();
         }
     }
 
@@ -213,16 +366,16 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
             itemView.setOnClickListener(v -> handleItemClick());
         }
 
-        public void bind(FileItem item, int position) {
+        public void bind(FileItem item) {
             // ... (bind logic remains the same)
             fileName.setText(item.displayName);
             itemView.setOnClickListener(v -> {
                 if (item.isDirectory) {
                     // Toggle expand/collapse
                     if (item.isExpanded) {
-                        collapseFolder(position);
+                        collapseFolder(getAdapterPosition());
                     } else {
-                        expandFolder(position);
+                        expandFolder(getAdapterPosition());
                     }
                 } else {
                     onFileClickListener.onFileClicked(item.uri, item.displayName);
@@ -237,30 +390,19 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
                 fileIcon.setImageResource(item.isExpanded ? R.drawable.ic_folder_open : R.drawable.ic_folder_closed);
                 return;
             }
-            String mime = item.mimeType != null ? item.mimeType : "";
-            if (mime.startsWith("image/")) {
-                fileIcon.setImageResource(R.drawable.ic_image_file);
-            } else if (mime.startsWith("audio/")) {
-                fileIcon.setImageResource(R.drawable.ic_audio_file);
-            } else if (mime.startsWith("video/")) {
-                fileIcon.setImageResource(R.drawable.ic_video_file);
-            } else if (mime.startsWith("text/") || mime.equals("application/json")) {
-                fileIcon.setImageResource(R.drawable.ic_text_file);
-            } else {
-                fileIcon.setImageResource(R.drawable.ic_unsupported_file);
-            }
+            fileIcon.setImageResource(item.getIconResource());
         }
 
         private void handleItemClick() {
             int position = getAdapterPosition();
             if (position == RecyclerView.NO_POSITION) return; // Simplified check
 
-            FileItem clickedItem = fileList.get(position);
+            FileItem clickedItem = rows.get(position);
             if (clickedItem.isDirectory) {
                 if (clickedItem.isExpanded) {
                     collapseFolder(position);
                 } else {
-                    expandFolderLogic(position); // Renamed for clarity
+                    expandFolder(position);
                 }
             } else {
                 if (onFileClickListener != null) {
@@ -270,89 +412,5 @@ public class FilesAdapter extends RecyclerView.Adapter<FilesAdapter.FileViewHold
                 }
             }
         }
-
-        // Consolidated and corrected expand logic
-        private void expandFolderLogic(final int position) {
-            final FileItem folder = fileList.get(position);
-            folder.isExpanded = true;
-
-            // Ensure UI update happens on the main thread
-            ((Activity) context).runOnUiThread(() -> notifyItemChanged(position));
-
-            new Thread(() -> {
-                String documentId = DocumentsContract.getDocumentId(folder.uri);
-                Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(folder.uri, documentId);
-
-                final List<FileItem> folders = new ArrayList<>();
-                final List<FileItem> files = new ArrayList<>();
-
-                try (Cursor cursor = context.getContentResolver().query(childrenUri,
-                        new String[]{
-                                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                                DocumentsContract.Document.COLUMN_MIME_TYPE
-                        }, null, null, null)) {
-
-                    if (cursor != null && cursor.moveToFirst()) {
-                        do {
-                            String childDocId = cursor.getString(0);
-                            String childName = cursor.getString(1);
-                            String mimeType = cursor.getString(2);
-                            boolean isDirectory = DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
-
-                            Uri childUri = DocumentsContract.buildDocumentUriUsingTree(folder.uri, childDocId);
-
-                            FileItem childItem = new FileItem(context, childUri, childName, isDirectory, folder.depth + 1);
-
-                            if (isDirectory) {
-                                folders.add(childItem);
-                            } else {
-                                files.add(childItem);
-                            }
-                        } while (cursor.moveToNext());
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Error querying folder contents: " + e.getMessage());
-                }
-
-                // Sort alphabetically (folders first, then files)
-                Collections.sort(folders, (a, b) -> a.displayName.compareToIgnoreCase(b.displayName));
-                Collections.sort(files, (a, b) -> a.displayName.compareToIgnoreCase(b.displayName));
-
-                final List<FileItem> newItems = new ArrayList<>();
-                newItems.addAll(folders);
-                newItems.addAll(files);
-
-                ((Activity) context).runOnUiThread(() -> {
-                    if (!newItems.isEmpty()) {
-                        fileList.addAll(position + 1, newItems);
-                        notifyItemRangeInserted(position + 1, newItems.size());
-                    }
-                });
-            }).start();
-        }
-
-
-        private void collapseFolder(int position) {
-            FileItem folder = fileList.get(position);
-            folder.isExpanded = false;
-            notifyItemChanged(position);
-
-            int count = 0;
-            // Iterate backward to simplify index management during removal
-            for (int i = fileList.size() - 1; i > position; i--) {
-                if (fileList.get(i).depth > folder.depth) {
-                    fileList.remove(i);
-                    count++;
-                } else {
-                    break; // Stop when an item at the same or shallower depth is found
-                }
-            }
-            if (count > 0) {
-                // The position we removed items from (the start of the children)
-                int startPosition = position + 1;
-                notifyItemRangeRemoved(startPosition, count);
-            }
-        }
     }
 }
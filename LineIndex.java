@@ -0,0 +1,154 @@
+package com.codestudio.mobile;
+
+/**
+ * Start offsets of every line of a document, kept in a gap buffer of ints.
+ * <p>
+ * The gap sits at the line of the last edit. Line starts before it are stored as they are;
+ * those after it are stored relative to a pending delta, so an edit that changes the length
+ * of the document only adjusts that delta instead of every following line start. Edits only
+ * remove the line starts inside the replaced range and add the newlines of the inserted text,
+ * so typing costs O(edit); an edit elsewhere first moves the gap there, which costs the number
+ * of lines in between.
+ */
+public class LineIndex {
+
+    private int[] starts = new int[64];
+    // Lines [0, gapStart) are at starts[0, gapStart), lines [gapStart, count) at starts[gapEnd, length).
+    private int gapStart = 1;
+    private int gapEnd = starts.length;
+    // Added to every stored line start after the gap.
+    private int tailDelta;
+    private int count = 1;
+    private int length;
+
+    public LineIndex() {
+    }
+
+    public LineIndex(CharSequence text) {
+        rebuild(text);
+    }
+
+    public void rebuild(CharSequence text) {
+        count = 1;
+        starts[0] = 0;
+        gapStart = 1;
+        gapEnd = starts.length;
+        tailDelta = 0;
+        length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') add(i + 1);
+        }
+    }
+
+    /**
+     * Appends text[start, end) at the end of the document, used while a file is streamed in.
+     */
+    public void append(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') add(length + (i - start) + 1);
+        }
+        length += end - start;
+    }
+
+    /**
+     * Updates the index for document.replace(start, start + removedLength, text[textStart, textEnd)).
+     */
+    public void replace(int start, int removedLength, CharSequence text, int textStart, int textEnd) {
+        int removedEnd = start + removedLength;
+        // Line starts in (start, removedEnd] belonged to newlines that were removed.
+        int first = upperBound(start);
+        int last = upperBound(removedEnd);
+        int delta = (textEnd - textStart) - removedLength;
+
+        int inserted = 0;
+        for (int i = textStart; i < textEnd; i++) {
+            if (text.charAt(i) == '\n') inserted++;
+        }
+
+        moveGap(first);
+        gapEnd += last - first;
+        count -= last - first;
+        // Every line after the edit moves by delta.
+        tailDelta = gapEnd == starts.length ? 0 : tailDelta + delta;
+        ensureGap(inserted);
+        for (int i = textStart; i < textEnd; i++) {
+            if (text.charAt(i) == '\n') {
+                starts[gapStart++] = start + (i - textStart) + 1;
+                count++;
+            }
+        }
+        length += delta;
+    }
+
+    public int getLineCount() {
+        return count;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getLineStart(int line) {
+        return line < gapStart ? starts[line] : starts[line - gapStart + gapEnd] + tailDelta;
+    }
+
+    /**
+     * End of the line, excluding its '\n' terminator.
+     */
+    public int getLineEnd(int line) {
+        return line + 1 < count ? getLineStart(line + 1) - 1 : length;
+    }
+
+    public int getLineForOffset(int offset) {
+        return Math.max(0, upperBound(offset) - 1);
+    }
+
+    // Index of the first line whose start is greater than offset.
+    private int upperBound(int offset) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getLineStart(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void add(int start) {
+        moveGap(count);
+        ensureGap(1);
+        starts[gapStart++] = start;
+        count++;
+    }
+
+    // Moves the gap so that it starts at line, converting the lines it passes over.
+    private void moveGap(int line) {
+        if (line < gapStart) {
+            int shift = gapEnd - gapStart;
+            // Backwards, since the target range may overlap the source.
+            for (int i = gapStart - 1; i >= line; i--) starts[i + shift] = starts[i] - tailDelta;
+            gapEnd -= gapStart - line;
+            gapStart = line;
+        } else if (line > gapStart) {
+            int shift = gapEnd - gapStart;
+            for (int i = gapStart; i < line; i++) starts[i] = starts[i + shift] + tailDelta;
+            gapEnd += line - gapStart;
+            gapStart = line;
+        }
+        if (gapEnd == starts.length) tailDelta = 0;
+    }
+
+    private void ensureGap(int needed) {
+        if (gapEnd - gapStart >= needed) return;
+        int tail = starts.length - gapEnd;
+        int[] grown = new int[Math.max(count + needed, starts.length * 2)];
+        System.arraycopy(starts, 0, grown, 0, gapStart);
+        System.arraycopy(starts, gapEnd, grown, grown.length - tail, tail);
+        gapEnd = grown.length - tail;
+        starts = grown;
+    }
+}
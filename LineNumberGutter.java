@@ -0,0 +1,195 @@
+package com.codestudio.mobile;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.text.Layout;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+import android.widget.EditText;
+import android.widget.ScrollView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Line number column for the text editor.
+ * <p>
+ * The line count is maintained from the edit ranges reported to the fragment's TextWatcher,
+ * so typing only costs a scan of the changed characters. Drawing uses the attached EditText's
+ * layout for line positions and only paints the rows the enclosing ScrollView shows, plus one
+ * screen above and below. The clip cannot be used for that: with hardware acceleration the
+ * whole gutter is recorded at once. Scrolling only redraws once it leaves the painted rows.
+ */
+public class LineNumberGutter extends View {
+
+    private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final char[] digits = new char[11];
+    private final int[] visible = new int[2];
+    private final ViewTreeObserver.OnScrollChangedListener scrollListener = this::onScrolled;
+    private EditText editor;
+    @Nullable
+    private ScrollView scroller;
+    // The part of the gutter painted by the last draw, in its own coordinates.
+    private int paintedTop;
+    private int paintedBottom = -1;
+    private int lineCount = 1;
+    private int digitCount = 1;
+
+    public LineNumberGutter(Context context) {
+        this(context, null);
+    }
+
+    public LineNumberGutter(Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        paint.setTypeface(Typeface.MONOSPACE);
+        paint.setTextAlign(Paint.Align.RIGHT);
+
+        TypedArray a = context.obtainStyledAttributes(attrs, new int[]{android.R.attr.textSize, android.R.attr.textColor});
+        float textSize = a.getDimension(0, TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 20, getResources().getDisplayMetrics()));
+        int textColor = a.getColor(1, 0);
+        a.recycle();
+        if (textColor == 0) {
+            TypedArray theme = context.getTheme().obtainStyledAttributes(new int[]{android.R.attr.textColorSecondary});
+            textColor = theme.getColor(0, 0xFF888888);
+            theme.recycle();
+        }
+        paint.setTextSize(textSize);
+        paint.setColor(textColor);
+    }
+
+    /**
+     * Counts '\n' characters in text[start, end).
+     */
+    public static int countNewlines(CharSequence text, int start, int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') count++;
+        }
+        return count;
+    }
+
+    public void attachTo(EditText editor) {
+        this.editor = editor;
+        invalidate();
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public void setLineCount(int count) {
+        count = Math.max(1, count);
+        if (count == lineCount) return;
+        lineCount = count;
+        int newDigitCount = String.valueOf(count).length();
+        if (newDigitCount != digitCount) {
+            digitCount = newDigitCount;
+            requestLayout();
+        }
+        invalidate();
+    }
+
+    /**
+     * Applies the line delta of one edit: removedNewlines left the document, insertedNewlines
+     * entered it.
+     */
+    public void onLinesReplaced(int removedNewlines, int insertedNewlines) {
+        if (removedNewlines != insertedNewlines) {
+            setLineCount(lineCount - removedNewlines + insertedNewlines);
+        }
+    }
+
+    public void setTextSize(int unit, float size) {
+        paint.setTextSize(TypedValue.applyDimension(unit, size, getResources().getDisplayMetrics()));
+        requestLayout();
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        scroller = null;
+        for (ViewParent parent = getParent(); parent instanceof View; parent = parent.getParent()) {
+            if (parent instanceof ScrollView) {
+                scroller = (ScrollView) parent;
+                break;
+            }
+        }
+        getViewTreeObserver().addOnScrollChangedListener(scrollListener);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(scrollListener);
+        scroller = null;
+        super.onDetachedFromWindow();
+    }
+
+    private void onScrolled() {
+        findVisibleRange();
+        if (Math.max(0, visible[0]) < paintedTop || Math.min(getHeight(), visible[1]) > paintedBottom) invalidate();
+    }
+
+    // Sets visible to the [top, bottom) of the gutter that the ScrollView shows.
+    private void findVisibleRange() {
+        if (scroller == null) {
+            visible[0] = 0;
+            visible[1] = getHeight();
+            return;
+        }
+        int offset = 0;
+        View view = this;
+        while (view != scroller) {
+            offset += view.getTop();
+            ViewParent parent = view.getParent();
+            if (!(parent instanceof View)) break;
+            view = (View) parent;
+        }
+        visible[0] = scroller.getScrollY() - offset;
+        visible[1] = visible[0] + scroller.getHeight();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = getPaddingLeft() + getPaddingRight() + (int) Math.ceil(paint.measureText("0") * digitCount);
+        setMeasuredDimension(resolveSize(width, widthMeasureSpec), getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        if (editor == null) return;
+        Layout layout = editor.getLayout();
+        if (layout == null) return;
+        findVisibleRange();
+        int screen = visible[1] - visible[0];
+        paintedTop = Math.max(0, visible[0] - screen);
+        paintedBottom = Math.min(getHeight(), visible[1] + screen);
+
+        int offsetY = editor.getTotalPaddingTop();
+        int layoutLines = Math.min(layout.getLineCount(), lineCount);
+        int first = layout.getLineForVertical(Math.max(0, paintedTop - offsetY));
+        int last = layout.getLineForVertical(Math.max(0, paintedBottom - offsetY));
+        float x = getWidth() - getPaddingRight();
+        for (int line = first; line <= last && line < layoutLines; line++) {
+            int length = formatNumber(line + 1);
+            float y = offsetY + layout.getLineBaseline(line);
+            canvas.drawText(digits, digits.length - length, length, x, y, paint);
+        }
+    }
+
+    private int formatNumber(int value) {
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return digits.length - pos;
+    }
+}
@@ -0,0 +1,42 @@
+package com.codestudio.mobile;
+
+/**
+ * Line-oriented, random-access view of a text document used by {@link CodeView}.
+ * Implementations only have to produce the lines that are actually on screen.
+ */
+public interface LineSource {
+
+    int getLineCount();
+
+    /**
+     * Length of the line in chars, excluding the line terminator.
+     */
+    int getLineLength(int line);
+
+    /**
+     * Copies chars [start, end) of the given line into dst at dstBegin.
+     */
+    void getChars(int line, int start, int end, char[] dst, int dstBegin);
+
+    /**
+     * Whether the source accepts edits through {@link #replace}.
+     */
+    boolean isEditable();
+
+    /**
+     * Whether {@link #getLineStart} and {@link #getLineForOffset} map between lines and
+     * document offsets; without them nothing can be selected or copied.
+     */
+    boolean supportsOffsets();
+
+    /**
+     * Absolute document offset of the start of the line.
+     */
+    int getLineStart(int line);
+
+    int getLineForOffset(int offset);
+
+    int length();
+
+    void replace(int start, int end, CharSequence text);
+}
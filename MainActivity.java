@@ -13,13 +13,20 @@ import android.os.Looper;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.webkit.MimeTypeMap;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.PopupMenu;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -44,10 +51,11 @@ import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.tabs.TabLayoutMediator;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -62,7 +70,6 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
     public final ArrayList<Uri> folderUris = new ArrayList<>();
     public final ArrayList<String> folderNames = new ArrayList<>();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
-    private final List<FileItem> fileItems = new ArrayList<>();
     public Uri currentFileUri;
     public String currentMimeType;
     private TerminalFragment terminalFragment;
@@ -75,12 +82,33 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
     private TextView currentFolderTitle;
     private ImageButton refreshFolder;
     private ImageButton collapseAllFolders;
+    private ImageButton expandAllFolders;
+    private ImageButton searchProject;
+    private static final int MAX_SEARCH_HITS = 500;
+    private ProjectIndex projectIndex;
+    private SavePipeline.SaveObserver projectIndexObserver;
+    private ImageButton quickOpen;
+    // Main thread only; dropped when a folder of its tree changes and rebuilt on the next open.
+    private QuickOpenIndex quickOpenIndex;
+    // Bounded pool for folder listings: drawer expansion and the project crawler.
+    private final ExecutorService treeExecutor = Executors.newFixedThreadPool(ProjectCrawler.DEFAULT_MAX_IN_FLIGHT);
+    private ProjectCrawler.Task expandAllTask;
     private View headerView;
     private boolean runMenuVisible = false;
     private boolean editMenuVisible = false;
     private boolean stopMenuVisible = false;
     private Uri folderUri = null;
+    private DirectoryTreeCache treeCache;
+    // Reports folder changes made outside the app while the activity is started.
+    private TreeChangeWatcher treeWatcher;
+    private DirectoryTreeCache watchedCache;
+    private boolean watching;
     private CodeExecutionManager executionManager;
+    // The terminal tab each unfinished session writes to.
+    private final SparseArray<TerminalFragment> sessionTerminals = new SparseArray<>();
+    // Unfinished sessions started for a tab by startSession; they never get a tab of their own,
+    // even after theirs was closed.
+    private final SparseBooleanArray tabSessions = new SparseBooleanArray();
     private Uri selectedFileUri;
     private FileItem selectedFileItem;
     private ProgressBar progressBar;
@@ -135,6 +163,12 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         currentFolderTitle = headerView.findViewById(R.id.currentFolderTitle);
         refreshFolder = headerView.findViewById(R.id.refreshFilesFolders);
         collapseAllFolders = headerView.findViewById(R.id.collapseAllFolders);
+        expandAllFolders = headerView.findViewById(R.id.expandAllFolders);
+        expandAllFolders.setOnClickListener(v -> expandAllFolders());
+        searchProject = headerView.findViewById(R.id.searchProject);
+        searchProject.setOnClickListener(v -> showProjectSearch());
+        quickOpen = headerView.findViewById(R.id.quickOpen);
+        quickOpen.setOnClickListener(v -> showQuickOpen());
 
         tabLayout = findViewById(R.id.tabLayout);
         viewPager2 = findViewById(R.id.viewPager2);
@@ -224,10 +258,43 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         }
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        watching = true;
+        if (folderUri != null && filesAdapter != null && filesAdapter.getRows().getTreeUri() != null) {
+            // Nothing was watched while stopped, so catch up first.
+            refreshFileList();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        watching = false;
+        stopWatchingFolders();
+        // Keep the drawer rows for an instant start next time.
+        if (folderUri != null && filesAdapter != null && !executor.isShutdown()) {
+            Uri treeUri = folderUri;
+            FileTree rows = filesAdapter.getRows();
+            File snapshotFile = FileTreeSnapshot.fileIn(getFilesDir());
+            executor.execute(() -> FileTreeSnapshot.save(snapshotFile, treeUri, rows));
+        }
+        if (projectIndex != null && !executor.isShutdown()) {
+            ProjectIndex index = projectIndex;
+            File indexFile = ProjectIndex.fileIn(getFilesDir());
+            executor.execute(() -> index.save(indexFile));
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         executor.shutdown();
+        cancelExpandAll();
+        stopWatchingFolders();
+        if (projectIndexObserver != null) SavePipeline.get(this).removeObserver(projectIndexObserver);
+        treeExecutor.shutdown();
         // ⬇️ NEW: Shutdown execution manager's executor
         if (executionManager != null) {
             executionManager.shutdown();
@@ -246,6 +313,7 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             } else if (id == R.id.close_all_tabs) {
                 viewPagerAdapter.removeAllTabs();
             }
+            stopOrphanedSessions();
             return true;
         });
         popup.show();
@@ -324,6 +392,7 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                         tabLayout.selectTab(tabLayout.getTabAt(originalFileTabPos));
                         viewPager2.setCurrentItem(originalFileTabPos);
                         viewPagerAdapter.removeTab(currentTabPos);
+                        stopOrphanedSessions();
                     }
                 }
             }
@@ -333,6 +402,13 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             editMenuVisible = false;
             invalidateOptionsMenu();
             return true;
+        } else if (id == R.id.stopExecution) {
+            TerminalFragment terminal = getSelectedTerminal();
+            if (terminal != null && executionManager != null && sessionTerminals.get(terminal.getSessionId()) == terminal
+                    && executionManager.stop(terminal.getSessionId())) {
+                terminal.appendOutput("Stopping…");
+            }
+            return true;
         } else if (id == R.id.openWelcomeScreen) {
             int newTabIndex = viewPagerAdapter.addTab(ViewPagerAdapter.WELCOME_URI, "Welcome", false);
             if (newTabIndex != -1) {
@@ -384,7 +460,8 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                 return;
             }
 
-            if (item.mimeType != null && (item.mimeType.equals("text/html") || item.mimeType.equals("application/xhtml+xml"))) {
+            String mimeType = item.getMimeType();
+            if (mimeType != null && (mimeType.equals("text/html") || mimeType.equals("application/xhtml+xml"))) {
                 openHtmlInBrowser(item.uri);
                 return;
             }
@@ -399,6 +476,10 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             }
 
             String command = CommandFetcher.getCommand(this, item.uri);
+            if (command == null) {
+                Toast.makeText(this, "Execution failed: No run command for this file.", Toast.LENGTH_LONG).show();
+                return;
+            }
             Uri fileUri = item.uri;
             Uri runUri = new Uri.Builder().scheme("run").authority("local").appendPath(fileName).build();
 
@@ -411,6 +492,9 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             // Step 2: Remove old terminal tab
             viewPagerAdapter.removeTerminalFor(fileUri);
 
+            // The old tab's program, if still running, goes with it.
+            stopOrphanedSessions();
+
             // Step 3: Add new terminal tab next to file tab
             int terminalIndex = viewPagerAdapter.addTab(runUri, "Running (" + fileName + ")", true);
 
@@ -419,10 +503,52 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             tabLayout.selectTab(tabLayout.getTabAt(terminalIndex));
 
             // Step 5: Run command
-            new TermuxRunner(this).executeCommandInternally(command, this);
+            TerminalFragment terminal = (TerminalFragment) viewPagerAdapter.createFragment(terminalIndex);
+            terminal.appendOutput("Executing: " + command);
+            startSession(terminal, fileName, command, SessionScheduler.PRIORITY_NORMAL);
         });
     }
 
+    // Runs command as a new session whose output goes to terminal.
+    private void startSession(TerminalFragment terminal, String name, String command, int priority) {
+        int sessionId = executionManager.runCommand(name, command, priority);
+        sessionTerminals.put(sessionId, terminal);
+        tabSessions.put(sessionId, true);
+        terminal.attachSession(sessionId);
+        if (executionManager.isQueued(sessionId)) {
+            terminal.appendOutput("Waiting for a free slot (" + executionManager.getRunningCount() + " running)…");
+        }
+        updateStopMenu();
+    }
+
+    private TerminalFragment getSelectedTerminal() {
+        Fragment fragment = viewPagerAdapter.createFragment(tabLayout.getSelectedTabPosition());
+        return fragment instanceof TerminalFragment ? (TerminalFragment) fragment : null;
+    }
+
+    private boolean isSelectedTerminalRunning() {
+        TerminalFragment terminal = getSelectedTerminal();
+        return terminal != null && sessionTerminals.get(terminal.getSessionId()) == terminal;
+    }
+
+    private void updateStopMenu() {
+        stopMenuVisible = isSelectedTerminalRunning();
+        invalidateOptionsMenu();
+    }
+
+    // Stops the programs whose terminal tab has been closed, so none keeps running unseen.
+    private void stopOrphanedSessions() {
+        if (executionManager == null) return;
+        for (int i = sessionTerminals.size() - 1; i >= 0; i--) {
+            TerminalFragment terminal = sessionTerminals.valueAt(i);
+            if (!viewPagerAdapter.hasTab(terminal, terminal.getUri())) {
+                executionManager.stop(sessionTerminals.keyAt(i));
+                sessionTerminals.removeAt(i);
+            }
+        }
+        updateStopMenu();
+    }
+
     @Nullable
     public String getAbsolutePathFromUri(Context context, Uri uri) {
         if (uri == null) return null;
@@ -553,33 +679,48 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             stopMenuVisible = false;
             editMenuVisible = false;
         }
+        // A terminal tab can be stopped while its program runs.
+        if (isSelectedTerminalRunning()) stopMenuVisible = true;
         invalidateOptionsMenu();
     }
 
     @Override
-    public void onUserInputSubmitted(String input) {
-        // 1. Send the input to Termux via the manager
-        if (executionManager != null) {
-            executionManager.sendInput(input);
+    public void onUserInputSubmitted(TerminalFragment terminal, String input) {
+        if (executionManager == null) return;
+        // While the tab's program runs, lines go to its stdin, echoed like a terminal would.
+        if (sessionTerminals.get(terminal.getSessionId()) == terminal) {
+            if (executionManager.sendInput(terminal.getSessionId(), input + "\n")) {
+                terminal.appendStreamOutput(input + "\n");
+            } else {
+                terminal.appendOutput("[input not delivered: the program is not reading it]");
+            }
+            return;
         }
+        if (input.trim().isEmpty()) return;
+        terminal.setAwaitingInput(false);
+        terminal.appendOutput("\n$ " + input);
+        // Each typed command is an interactive session, so it does not wait behind a long run.
+        startSession(terminal, input, input, SessionScheduler.PRIORITY_INTERACTIVE);
+    }
 
-        // 2. Hide input bar temporarily
-        if (terminalFragment != null) {
-            terminalFragment.setAwaitingInput(false);
+    @Override
+    public void onEndOfInputSubmitted(TerminalFragment terminal, String pending) {
+        int sessionId = terminal.getSessionId();
+        if (executionManager == null || sessionTerminals.get(sessionId) != terminal) return;
+        if (!pending.isEmpty() && executionManager.sendInput(sessionId, pending)) {
+            terminal.appendStreamOutput(pending);
         }
-
-        if (terminalFragment != null) {
-            terminalFragment.appendOutput("\n$ " + input + "\n");
+        if (executionManager.sendEndOfInput(sessionId)) {
+            terminal.appendStreamOutput("^D\n");
         }
-
     }
 
     @Override
-    public void onOutputReceived(String output) {
+    public void onOutputReceived(CharSequence output) {
         int currentTab = tabLayout.getSelectedTabPosition();
         Fragment fragment = viewPagerAdapter.createFragment(currentTab);
         if (fragment instanceof TerminalFragment) {
-            ((TerminalFragment) fragment).appendOutput(output);
+            ((TerminalFragment) fragment).appendStreamOutput(output);
         }
     }
 
@@ -597,30 +738,55 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
     }
 
     @Override
-    public void onExecutionError(String message) {
-        if (terminalFragment != null) {
-            terminalFragment.appendOutput("\n[ERROR] " + message + "\n");
-            terminalFragment.setAwaitingInput(false);
+    public void onOutputReceived(int sessionId, CharSequence output) {
+        TerminalFragment terminal = sessionTerminals.get(sessionId);
+        if (terminal != null) {
+            terminal.appendStreamOutput(output);
+        }
+    }
+
+    @Override
+    public void onExecutionComplete(int sessionId, ProcessSupervisor.Result result) {
+        TerminalFragment terminal = sessionTerminals.get(sessionId);
+        sessionTerminals.remove(sessionId);
+        tabSessions.delete(sessionId);
+        if (terminal != null) {
+            terminal.appendOutput("\n" + result.describe() + ".\n");
+            terminal.setAwaitingInput(true);
+        }
+        updateStopMenu();
+    }
+
+    @Override
+    public void onExecutionError(int sessionId, String message) {
+        TerminalFragment terminal = sessionTerminals.get(sessionId);
+        sessionTerminals.remove(sessionId);
+        tabSessions.delete(sessionId);
+        if (terminal != null) {
+            terminal.appendOutput("\n[ERROR] " + message + "\n");
+            terminal.setAwaitingInput(false);
         }
         new Handler(Looper.getMainLooper()).post(() -> Toast.makeText(this, "Execution Error.", Toast.LENGTH_LONG).show());
         Log.d("Executionerror", "onExecutionError: " + message);
         // Reset menu visibility
         runMenuVisible = true;
-        stopMenuVisible = false;
+        stopMenuVisible = isSelectedTerminalRunning();
         editMenuVisible = false;
         invalidateOptionsMenu();
     }
 
     @Override
-    public void onExecutionStarted(String command, String fileName) {
-        // Open TerminalFragment and pass the command or output path
-        TerminalFragment fragment = new TerminalFragment();
-        Bundle args = new Bundle();
-        args.putString("command", command);
-        fragment.setArguments(args);
-        Uri runUri = Uri.parse("run://" + fileName + "?ts=" + System.currentTimeMillis());
-        viewPagerAdapter.addTab(runUri, "Running(" + fileName + ")", false);
-        viewPager2.setCurrentItem(viewPagerAdapter.getItemCount() - 1, true);
+    public void onExecutionStarted(int sessionId, String command, String name) {
+        if (sessionTerminals.get(sessionId) != null || tabSessions.get(sessionId)) return;
+        // A session started without a tab of its own, e.g. by runCodeInNewTermuxSession.
+        Uri runUri = new Uri.Builder().scheme("run").authority("local").appendPath(name).build();
+        int index = viewPagerAdapter.addTab(runUri, "Running (" + name + ")", true);
+        TerminalFragment terminal = (TerminalFragment) viewPagerAdapter.createFragment(index);
+        sessionTerminals.put(sessionId, terminal);
+        terminal.attachSession(sessionId);
+        terminal.appendOutput("Executing: " + command);
+        viewPager2.setCurrentItem(index, true);
+        updateStopMenu();
     }
 
     @Override
@@ -676,7 +842,7 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                 refreshFolder = findViewById(R.id.refreshFilesFolders);
                 collapseAllFolders = findViewById(R.id.collapseAllFolders);
 
-                filesAdapter = new FilesAdapter(MainActivity.this, fileItems, this, this::requestSaveAs);
+                filesAdapter = new FilesAdapter(MainActivity.this, this, this::requestSaveAs);
 
                 filesList.setLayoutManager(new LinearLayoutManager(this));
                 filesList.setAdapter(filesAdapter);
@@ -689,7 +855,10 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
 
                 // Set Listeners
                 if (collapseAllFolders != null) {
-                    collapseAllFolders.setOnClickListener(v -> filesAdapter.collapseAllFolders());
+                    collapseAllFolders.setOnClickListener(v -> {
+                        cancelExpandAll();
+                        filesAdapter.collapseAllFolders();
+                    });
                 }
                 if (refreshFolder != null) {
                     refreshFolder.setOnClickListener(v -> refreshFileList());
@@ -707,10 +876,6 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
 
                     // 5. Update UI on Main Thread after loading
                     runOnUiThread(() -> {
-                        if (filesAdapter != null) {
-                            filesAdapter.notifyDataSetChanged();
-                        }
-
                         if (filesLoadingProgressBar != null)
                             filesLoadingProgressBar.setVisibility(View.GONE);
                         if (refreshFolder != null) refreshFolder.setVisibility(View.VISIBLE);
@@ -754,6 +919,7 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
 
     private void refreshFileList() {
         if (folderUri != null && filesAdapter != null) {
+            cancelExpandAll();
             runOnUiThread(() -> {
                 ProgressBar filesLoadingProgressBar = findViewById(R.id.filesLoadingProgress);
                 filesLoadingProgressBar.setVisibility(View.VISIBLE);
@@ -761,11 +927,14 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                 collapseAllFolders.setVisibility(View.GONE);
             });
 
+            Set<String> expandedFolders = getExpandedFolderIds();
             executor.execute(() -> {
-                filesAdapter.refresh();
-                populateFileList(folderUri, 0);
+                // Only folders that changed since they were cached are queried again.
+                DirectoryTreeCache cache = getTreeCache(folderUri);
+                cache.revalidate(expandedFolders);
+                FileTree rows = cache.flatten(cache.getRootDocumentId(), 0, expandedFolders);
                 runOnUiThread(() -> {
-                    filesAdapter.notifyDataSetChanged();
+                    filesAdapter.submitRows(rows);
                     ProgressBar filesLoadingProgressBar = findViewById(R.id.filesLoadingProgress);
                     filesLoadingProgressBar.setVisibility(View.GONE);
                     refreshFolder.setVisibility(View.VISIBLE);
@@ -876,14 +1045,14 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         popup.getMenu().findItem(R.id.new_file).setVisible(fileItem.isDirectory);
         this.selectedFileUri = fileItem.uri;
         this.currentFileUri = fileItem.uri;
-        this.currentMimeType = fileItem.mimeType;
+        this.currentMimeType = fileItem.getMimeType();
         if (fileItem.isDirectory) {
             this.folderUri = fileItem.uri;
         }
         this.selectedFileItem = fileItem;
 
         // Optional: Add menu item for code execution
-        if (!fileItem.isDirectory && isRunnableFile(fileItem.mimeType)) {
+        if (!fileItem.isDirectory && isRunnableFile(fileItem.getMimeType())) {
             popup.getMenu().findItem(R.id.run_file).setVisible(true);
         }
 
@@ -972,6 +1141,7 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         int index = viewPagerAdapter.fileUris.indexOf(uri);
         if (index != -1) {
             viewPagerAdapter.removeFragment(index);
+            stopOrphanedSessions();
         }
     }
 
@@ -999,43 +1169,27 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         return mimeType != null && (mimeType.contains("python") || mimeType.contains("java") || mimeType.contains("csrc") || mimeType.contains("c++src") || mimeType.contains("javascript") || mimeType.contains("html"));
     }
 
+    private void showFileRows(Uri treeUri, FileTree rows) {
+        currentFolderTitle.setText(getFolderTitle(treeUri));
+        filesAdapter.submitRows(rows);
+    }
+
+    private static String getFolderTitle(Uri treeUri) {
+        return "Storage/" + DocumentsContract.getTreeDocumentId(treeUri).substring(8);
+    }
+
     public void populateFileList(final Uri uri, final int depth) {
         new Thread(() -> {
             try {
-                String documentId = DocumentsContract.getTreeDocumentId(uri);
-                Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(uri, documentId);
-
-                final List<FileItem> folders = new ArrayList<>();
-                final List<FileItem> files = new ArrayList<>();
-                final String folderName = DocumentsContract.getTreeDocumentId(uri);
-                String folderNameToDisplay = "Storage/" + folderName.substring(8);
+                // Served from the tree cache; only folders not listed before are queried.
+                DirectoryTreeCache cache = getTreeCache(uri);
+                final FileTree items = cache.flatten(cache.getRootDocumentId(), depth, Collections.emptySet());
+                String folderNameToDisplay = getFolderTitle(uri);
                 Log.d("FileName", "populateFileList: folder name:" + folderNameToDisplay);
-                try (Cursor cursor = getContentResolver().query(childrenUri, new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_DISPLAY_NAME, DocumentsContract.Document.COLUMN_MIME_TYPE}, null, null, null)) {
-
-                    if (cursor != null && cursor.moveToFirst()) {
-                        do {
-                            String childDocId = cursor.getString(0);
-                            String childName = cursor.getString(1);
-                            String mimeType = cursor.getString(2);
-                            boolean isDirectory = DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
-                            Uri childUri = DocumentsContract.buildDocumentUriUsingTree(uri, childDocId);
-                            if (isDirectory) {
-                                folders.add(new FileItem(childUri, childName, true, depth, mimeType));
-                            } else {
-                                files.add(new FileItem(childUri, childName, false, depth, mimeType));
-                            }
-                        } while (cursor.moveToNext());
-                    }
-                }
 
                 runOnUiThread(() -> {
                     currentFolderTitle.setText(folderNameToDisplay);
-                    fileItems.clear();
-                    folders.sort((a, b) -> a.displayName.compareToIgnoreCase(b.displayName));
-                    files.sort((a, b) -> a.displayName.compareToIgnoreCase(b.displayName));
-                    fileItems.addAll(folders);
-                    fileItems.addAll(files);
-                    filesAdapter.notifyDataSetChanged();
+                    filesAdapter.submitRows(items);
                 });
 
             } catch (Exception e) {
@@ -1044,6 +1198,20 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         }).start();
     }
 
+    /**
+     * The cached model of the tree uri belongs to; a new one when another folder was opened.
+     */
+    public ExecutorService getTreeExecutor() {
+        return treeExecutor;
+    }
+
+    public synchronized DirectoryTreeCache getTreeCache(Uri uri) {
+        if (treeCache == null || !treeCache.isTreeOf(uri)) {
+            treeCache = new DirectoryTreeCache(getContentResolver(), uri);
+        }
+        return treeCache;
+    }
+
     public void openLeftNavigation() {
         if (drawerLayout != null) {
             drawerLayout.openDrawer(GravityCompat.START);
@@ -1117,6 +1285,7 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         // 1. Initial check for essential components
         if (folderUri == null || filesAdapter == null || viewPagerAdapter == null || executor == null)
             return;
+        cancelExpandAll();
 
         // 2. Start UI updates (must run on Main Thread)
         runOnUiThread(() -> {
@@ -1129,52 +1298,27 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
             if (collapseAllFolders != null) collapseAllFolders.setVisibility(View.GONE);
         });
 
+        // Expanded folders, by document ID, are read here on the main thread.
+        Set<String> expandedFolders = getExpandedFolderIds();
+
         // 3. Execute file system/list manipulation on the background thread
         executor.execute(() -> {
 
             // ... (File system and file list logic remains the same)
 
             // Get URIs of open and potentially modified files to preserve their state/tab.
-            List<Uri> openFileUris = new ArrayList<>();
-            for (FilesAdapter.FileContentItem file : viewPagerAdapter.getOpenFilesContent()) {
-                openFileUris.add(file.getUri());
-            }
-
-            // 4. Capture current expanded state using URIs
-            List<Uri> expandedFolders = new ArrayList<>();
-            // Iterate over a copy or use the adapter's list safely
-            for (FileItem item : filesAdapter.fileList) {
-                if (item.isDirectory && item.isExpanded) {
-                    expandedFolders.add(item.uri);
-                }
-            }
+            List<Uri> openFileUris = viewPagerAdapter.getUnsavedFileUris();
 
-            // 5. Refresh the list data (Thread-safe operation on adapter's list)
-            filesAdapter.fileList.clear(); // Clear the underlying data list directly
-            populateFileList(folderUri, 0); // Repopulate the list
+            // 4. Re-list only the folders that changed since they were cached, then rebuild the
+            //    rows with the same folders expanded.
+            DirectoryTreeCache cache = getTreeCache(folderUri);
+            int relisted = cache.revalidate(expandedFolders);
+            FileTree rows = cache.flatten(cache.getRootDocumentId(), 0, expandedFolders);
+            Log.d("MainActivity", "refreshAll: re-listed " + relisted + " folder(s), " + cache.getQueryCount() + " queries in total");
 
-            // 6. Final UI Updates and Re-expansion (must run on Main Thread)
+            // 5. Final UI Updates (must run on Main Thread)
             runOnUiThread(() -> {
-
-                // Re-expand folders and refresh file icons
-                for (int i = 0; i < filesAdapter.fileList.size(); i++) {
-                    FileItem item = filesAdapter.fileList.get(i);
-
-                    // Re-expansion: If the folder was expanded before refresh, expand it again.
-                    if (item.isDirectory && expandedFolders.contains(item.uri)) {
-                        // Call the correct, thread-safe expand method, which will queue the children load
-                        filesAdapter.expandFolder(i);
-                    }
-
-                    // Icon Logic: This logic should ideally be inside the FileItem constructor or adapter's bind,
-                    // but if it must be here, ensure 'getMimeType' is accessible and correct.
-                    if (!item.isDirectory) {
-                        // Note: If you have a cleaner way to get the MimeType outside the list loop, use it.
-                        String type = item.mimeType != null ? item.mimeType : getMimeType(item.uri);
-                        // Assuming FileItem has an updateIconResource method
-                        // item.updateIconResource(type);
-                    }
-                }
+                filesAdapter.submitRows(rows);
 
                 // *** NEW LOGIC: Refresh the content of the currently visible fragment ***
                 int currentTabPos = tabLayout.getSelectedTabPosition();
@@ -1192,8 +1336,6 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                 }
                 // *** END NEW LOGIC ***
 
-                filesAdapter.notifyDataSetChanged();
-
                 // Set final visibility
                 ProgressBar filesLoadingProgressBar = findViewById(R.id.filesLoadingProgress);
                 if (filesLoadingProgressBar != null)
@@ -1204,6 +1346,244 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
         });
     }
 
+    /**
+     * Crawls the whole folder (every level, several listings at a time) and shows it with every
+     * folder expanded. Listings end up in the tree cache, so later expands are free.
+     */
+    private void expandAllFolders() {
+        if (folderUri == null || filesAdapter == null) return;
+        cancelExpandAll();
+        DirectoryTreeCache cache = getTreeCache(folderUri);
+        Set<String> expanded = new HashSet<>();
+        ProgressBar filesLoadingProgressBar = findViewById(R.id.filesLoadingProgress);
+        filesLoadingProgressBar.setVisibility(View.VISIBLE);
+        expandAllTask = new ProjectCrawler(cache, treeExecutor, this::runOnUiThread).crawl(cache.getRootDocumentId(),
+                ProjectCrawler.DEFAULT_MAX_IN_FLIGHT, new ProjectCrawler.Callback() {
+                    @Override
+                    public void onBatch(List<FileItem> items) {
+                        for (FileItem item : items) {
+                            if (item.isDirectory) expanded.add(DocumentsContract.getDocumentId(item.uri));
+                        }
+                    }
+
+                    @Override
+                    public void onComplete(int directories, int files, long elapsedNanos) {
+                        Log.d("MainActivity", "Expand all: " + directories + " folder(s), " + files + " file(s) in " + elapsedNanos / 1_000_000 + " ms");
+                        expandAllTask = null;
+                        Uri treeUri = folderUri;
+                        // Every listing is cached by now, so this is pure memory work.
+                        treeExecutor.execute(() -> {
+                            FileTree rows = cache.flatten(cache.getRootDocumentId(), 0, expanded);
+                            runOnUiThread(() -> {
+                                filesLoadingProgressBar.setVisibility(View.GONE);
+                                if (cache.isTreeOf(treeUri)) showFileRows(treeUri, rows);
+                            });
+                        });
+                    }
+                });
+    }
+
+    /**
+     * The search index of the open folder. A new one is loaded from app storage and brought up
+     * to date on the executor, so searches queued behind it see a current index.
+     */
+    private ProjectIndex getProjectIndex() {
+        DirectoryTreeCache cache = getTreeCache(folderUri);
+        if (projectIndex == null || projectIndex.getCache() != cache) {
+            SavePipeline pipeline = SavePipeline.get(this);
+            if (projectIndexObserver != null) pipeline.removeObserver(projectIndexObserver);
+            ProjectIndex index = new ProjectIndex(getContentResolver(), cache);
+            projectIndex = index;
+            projectIndexObserver = index::onFileSaved;
+            pipeline.addObserver(projectIndexObserver);
+            File indexFile = ProjectIndex.fileIn(getFilesDir());
+            executor.execute(() -> {
+                long startNanos = System.nanoTime();
+                boolean loaded = index.load(indexFile);
+                int read = index.update(treeExecutor);
+                index.save(indexFile);
+                Log.d("MainActivity", "Project index: " + index.getFileCount() + " file(s), " + read + " read"
+                        + (loaded ? "" : " (new)") + " in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+            });
+        }
+        return projectIndex;
+    }
+
+    private void showProjectSearch() {
+        if (folderUri == null) {
+            Toast.makeText(this, "Open a folder first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ProjectIndex index = getProjectIndex();
+        EditText input = new EditText(this);
+        input.setHint("Text to find");
+        new AlertDialog.Builder(this).setTitle("Search in folder").setView(input).setPositiveButton("Search", (dialog, which) -> {
+            String query = input.getText().toString();
+            if (query.isEmpty()) return;
+            executor.execute(() -> {
+                long startNanos = System.nanoTime();
+                List<ProjectIndex.Hit> hits = index.search(query, MAX_SEARCH_HITS, treeExecutor);
+                long millis = (System.nanoTime() - startNanos) / 1_000_000;
+                runOnUiThread(() -> showSearchResults(query, hits, millis));
+            });
+        }).setNegativeButton(android.R.string.cancel, null).show();
+    }
+
+    private void showSearchResults(String query, List<ProjectIndex.Hit> hits, long millis) {
+        if (hits.isEmpty()) {
+            Toast.makeText(this, "No matches for \"" + query + "\".", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String[] labels = new String[hits.size()];
+        for (int i = 0; i < labels.length; i++) labels[i] = hits.get(i).toString();
+        String title = hits.size() + (hits.size() == MAX_SEARCH_HITS ? "+" : "") + " match(es) for \"" + query + "\" (" + millis + " ms)";
+        new AlertDialog.Builder(this).setTitle(title).setItems(labels, (dialog, which) -> {
+            ProjectIndex.Hit hit = hits.get(which);
+            closeLeftNavigation();
+            onFileClicked(hit.uri, hit.name);
+        }).show();
+    }
+
+    /**
+     * "Go to file": every file of the open folder, filtered and ranked per keystroke. The path
+     * index is built from the tree cache on first use, so it lists only folders the drawer has
+     * not read yet.
+     */
+    private void showQuickOpen() {
+        if (folderUri == null) {
+            Toast.makeText(this, "Open a folder first.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        DirectoryTreeCache cache = getTreeCache(folderUri);
+        EditText input = new EditText(this);
+        input.setHint("File name");
+        input.setSingleLine(true);
+        ListView results = new ListView(this);
+        ArrayAdapter<String> resultsAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<>());
+        results.setAdapter(resultsAdapter);
+        LinearLayout content = new LinearLayout(this);
+        content.setOrientation(LinearLayout.VERTICAL);
+        content.addView(input);
+        content.addView(results);
+        AlertDialog dialog = new AlertDialog.Builder(this).setTitle("Go to file").setView(content)
+                .setNegativeButton(android.R.string.cancel, null).create();
+
+        int[][] shown = {new int[0]};
+        Runnable update = () -> {
+            QuickOpenIndex index = quickOpenIndex;
+            if (index == null || index.getCache() != cache) return;
+            shown[0] = index.query(input.getText().toString(), QuickOpenIndex.DEFAULT_LIMIT);
+            resultsAdapter.clear();
+            for (int i : shown[0]) resultsAdapter.add(index.getPath(i));
+        };
+        input.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                update.run();
+            }
+        });
+        results.setOnItemClickListener((parent, view, position, id) -> {
+            QuickOpenIndex index = quickOpenIndex;
+            if (index == null || position >= shown[0].length) return;
+            int i = shown[0][position];
+            dialog.dismiss();
+            closeLeftNavigation();
+            onFileClicked(index.getUri(i), index.getName(i));
+        });
+        dialog.show();
+
+        if (quickOpenIndex == null || quickOpenIndex.getCache() != cache) {
+            treeExecutor.execute(() -> {
+                long startNanos = System.nanoTime();
+                QuickOpenIndex index = QuickOpenIndex.build(cache);
+                Log.d("MainActivity", "Quick open: " + index.size() + " path(s) in " + (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+                runOnUiThread(() -> {
+                    if (folderUri == null || cache != getTreeCache(folderUri)) return;
+                    quickOpenIndex = index;
+                    if (dialog.isShowing()) update.run();
+                });
+            });
+        }
+    }
+
+    private void cancelExpandAll() {
+        if (expandAllTask != null) {
+            expandAllTask.cancel();
+            expandAllTask = null;
+            ProgressBar filesLoadingProgressBar = findViewById(R.id.filesLoadingProgress);
+            if (filesLoadingProgressBar != null) filesLoadingProgressBar.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Points the folder watcher at the drawer's root and expanded folders, top rows first.
+     * Called whenever the drawer shows new rows.
+     */
+    public void updateWatchedFolders(FileTree rows) {
+        if (!watching || rows.getTreeUri() == null || treeExecutor.isShutdown()) return;
+        DirectoryTreeCache cache = getTreeCache(rows.getTreeUri());
+        if (treeWatcher == null || watchedCache != cache) {
+            stopWatchingFolders();
+            watchedCache = cache;
+            treeWatcher = new TreeChangeWatcher(getContentResolver(), rows.getTreeUri(), new Handler(Looper.getMainLooper()),
+                    TreeChangeWatcher.DEFAULT_DEBOUNCE_MS, folderIds -> onFoldersChanged(cache, folderIds));
+        }
+        List<String> folders = new ArrayList<>();
+        folders.add(cache.getRootDocumentId());
+        for (int row = 0; row < rows.size() && folders.size() < TreeChangeWatcher.MAX_WATCHED; row++) {
+            if (rows.isExpanded(row)) folders.add(rows.getDocumentId(row));
+        }
+        TreeChangeWatcher watcher = treeWatcher;
+        treeExecutor.execute(() -> watcher.watch(folders));
+    }
+
+    private void stopWatchingFolders() {
+        if (treeWatcher != null) {
+            treeWatcher.stop();
+            treeWatcher = null;
+            watchedCache = null;
+        }
+    }
+
+    // Re-lists only the folders that changed, then updates their rows and the open tabs of changed files.
+    private void onFoldersChanged(DirectoryTreeCache cache, Set<String> folderIds) {
+        if (cache != watchedCache || filesAdapter == null || treeExecutor.isShutdown()) return;
+        treeExecutor.execute(() -> {
+            Set<String> changedDocuments = cache.relist(folderIds);
+            Log.d("MainActivity", "Folder change: re-listed " + folderIds.size() + " folder(s), " + changedDocuments.size() + " changed entries");
+            ProjectIndex index = projectIndex;
+            if (index != null && index.getCache() == cache && !executor.isShutdown()) {
+                // Only the files whose times changed are read again.
+                executor.execute(() -> index.update(treeExecutor));
+            }
+            runOnUiThread(() -> {
+                if (quickOpenIndex != null && quickOpenIndex.getCache() == cache) quickOpenIndex = null;
+                if (cache != watchedCache) return;
+                filesAdapter.refreshFolders(folderIds);
+                List<Uri> openUris = viewPagerAdapter.getFileUris();
+                for (int i = 0; i < openUris.size(); i++) {
+                    Uri uri = openUris.get(i);
+                    if (uri == null || !cache.isTreeOf(uri) || !changedDocuments.contains(DocumentsContract.getDocumentId(uri)))
+                        continue;
+                    Fragment fragment = viewPagerAdapter.getFragment(i);
+                    if (fragment instanceof TextFragment) ((TextFragment) fragment).onChangedOnDisk();
+                }
+            });
+        });
+    }
+
+    private Set<String> getExpandedFolderIds() {
+        return filesAdapter.getRows().getExpandedDocumentIds();
+    }
+
     public String getMimeType(Uri uri) {
         String type = getContentResolver().getType(uri);
         if (type == null) {
@@ -1240,9 +1620,12 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                 if (filesList == null) {
                     filesList = findViewById(R.id.filesList);
                     filesList.setLayoutManager(new LinearLayoutManager(this));
-                    filesAdapter = new FilesAdapter(MainActivity.this, fileItems, this, this::requestSaveAs);
+                    filesAdapter = new FilesAdapter(MainActivity.this, this, this::requestSaveAs);
                     filesList.setAdapter(filesAdapter);
-                    collapseAllFolders.setOnClickListener(v -> filesAdapter.collapseAllFolders());
+                    collapseAllFolders.setOnClickListener(v -> {
+                        cancelExpandAll();
+                        filesAdapter.collapseAllFolders();
+                    });
                     refreshFolder.setOnClickListener(v -> refreshFileList());
                 }
 
@@ -1252,15 +1635,29 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
                 collapseAllFolders.setVisibility(View.GONE);
 
                 executor.execute(() -> {
-                    populateFileList(lastFolderUri, 0);
+                    // Show the rows saved last time right away, then reconcile them with the provider.
+                    File snapshotFile = FileTreeSnapshot.fileIn(getFilesDir());
+                    FileTree snapshot = FileTreeSnapshot.load(snapshotFile, lastFolderUri);
+                    if (snapshot == null) {
+                        populateFileList(lastFolderUri, 0);
+                    } else {
+                        runOnUiThread(() -> showFileRows(lastFolderUri, snapshot));
+                    }
                     runOnUiThread(() -> {
-                        if (filesAdapter != null) {
-                            filesAdapter.notifyDataSetChanged();
-                        }
                         filesLoadingProgressBar.setVisibility(View.GONE);
                         refreshFolder.setVisibility(View.VISIBLE);
                         collapseAllFolders.setVisibility(View.VISIBLE);
                     });
+                    if (snapshot != null) {
+                        Set<String> expanded = snapshot.getExpandedDocumentIds();
+                        DirectoryTreeCache cache = getTreeCache(lastFolderUri);
+                        FileTree rows = cache.flatten(cache.getRootDocumentId(), 0, expanded);
+                        runOnUiThread(() -> {
+                            // Skipped if the user already expanded or collapsed something.
+                            if (lastFolderUri.equals(folderUri) && filesAdapter.getRows() == snapshot)
+                                showFileRows(lastFolderUri, rows);
+                        });
+                    }
                 });
             } catch (SecurityException e) {
                 e.printStackTrace();
@@ -1287,36 +1684,32 @@ public class MainActivity extends AppCompatActivity implements TabLayout.OnTabSe
     }
 
     private void saveContentToFile(Uri fileUri, byte[] content, String fileName) {
-        new Thread(() -> {
-            try {
-                // Write the content to the new URI
-                try (OutputStream os = getContentResolver().openOutputStream(fileUri)) {
-                    if (os != null) {
-                        os.write(content);
-                    }
-                }
+        // The pipeline writes in the background and reports back on the main thread.
+        SavePipeline.get(this).save(fileUri, content, new SavePipeline.Listener() {
+            @Override
+            public void onProgress(Uri uri, long bytesWritten, long totalChars) {
+            }
 
-                // After successful save, update the UI on the main thread
-                runOnUiThread(() -> {
-                    // Remove the old 'Untitled' tab and open the new file tab
-                    // First, find and remove the 'Untitled' tab
-                    int untitledPos = viewPagerAdapter.findTabPositionByName("Untitled");
-                    if (untitledPos != -1) {
-                        viewPagerAdapter.removeTab(untitledPos);
-                    }
+            @Override
+            public void onSaved(SavePipeline.Result result) {
+                // Remove the old 'Untitled' tab and open the new file tab
+                // First, find and remove the 'Untitled' tab
+                int untitledPos = viewPagerAdapter.findTabPositionByName("Untitled");
+                if (untitledPos != -1) {
+                    viewPagerAdapter.removeTab(untitledPos);
+                }
 
-                    // Now, open the newly saved file
-                    openFileInViewPager(fileUri, fileName);
-                    Toast.makeText(this, "File saved successfully!", Toast.LENGTH_SHORT).show();
-                });
+                // Now, open the newly saved file
+                openFileInViewPager(fileUri, fileName);
+                Toast.makeText(MainActivity.this, "File saved successfully!", Toast.LENGTH_SHORT).show();
+            }
 
-            } catch (IOException e) {
+            @Override
+            public void onFailed(Uri uri, Exception e) {
                 e.printStackTrace();
-                runOnUiThread(() -> {
-                    Toast.makeText(this, "Error saving file: " + e.getMessage(), Toast.LENGTH_LONG).show();
-                });
+                Toast.makeText(MainActivity.this, "Error saving file: " + e.getMessage(), Toast.LENGTH_LONG).show();
             }
-        }).start();
+        });
     }// In EditorActivity.java
 
     private void openFileInViewPager(Uri fileUri, String fileName) {
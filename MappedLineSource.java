@@ -0,0 +1,278 @@
+package com.codestudio.mobile;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only {@link LineSource} over a file, used for logs and data files that are too big to
+ * materialize.
+ * <p>
+ * The file is read with positional reads rather than mapped: logs get truncated or rotated
+ * while they are open, and touching a mapped page past the new end of the file raises SIGBUS,
+ * which kills the process. A read past the end just comes back short, so a file that shrinks
+ * shows empty lines at the end instead.
+ * <p>
+ * A background pass records the byte offset of every {@value #SPARSE_STEP}th line; a line is
+ * located by jumping to the nearest checkpoint and scanning forward, and only the lines being
+ * drawn are decoded, through an LRU cache bounded by the number of chars it holds.
+ * Heap use is therefore bounded by the sparse index plus the cache, independent of the file
+ * size. Lines longer than {@value #MAX_DECODED_LINE_BYTES} bytes are cut off and end with
+ * {@link #TRUNCATION_MARKER}; {@link #hasTruncatedLines()} tells whether the file has any.
+ */
+public class MappedLineSource implements LineSource, Closeable {
+
+    private static final int SPARSE_STEP = 64;
+    private static final int BLOCK_BYTES = 64 * 1024;
+    private static final int MAX_DECODED_LINE_BYTES = 256 * 1024;
+    private static final int CACHE_LINES = 512;
+    // About 4 MB of decoded text; a few minified lines fill it on their own.
+    private static final int CACHE_CHARS = 2 * 1024 * 1024;
+    static final String TRUNCATION_MARKER = " … [line cut off at 256 KB]";
+    private static final long PROGRESS_INTERVAL_BYTES = 8L * 1024 * 1024;
+
+    private final FileInputStream input;
+    private final Closeable owner;
+    private final FileChannel channel;
+    private final long size;
+    // Bytes [blockStart, blockStart + block.limit()) of the file, for decodeLine. Guarded by itself.
+    private final ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+    private long blockStart;
+
+    // checkpoints[i] is the byte offset of line i * SPARSE_STEP. Published through lineCount.
+    private volatile long[] checkpoints = new long[1024];
+    private volatile int lineCount;
+    private volatile boolean indexComplete;
+    private volatile boolean truncatedLines;
+    private volatile boolean closed;
+
+    // Access-ordered, so the first entry is the least recently drawn. Guarded by itself.
+    private final LinkedHashMap<Integer, char[]> decodedLines = new LinkedHashMap<>(CACHE_LINES, 0.75f, true);
+    private int cachedChars;
+
+    /**
+     * Opens the file behind fd. The owner (e.g. the ParcelFileDescriptor) is closed together
+     * with this source.
+     */
+    public MappedLineSource(FileDescriptor fd, Closeable owner) throws IOException {
+        this.input = new FileInputStream(fd);
+        this.owner = owner;
+        this.channel = input.getChannel();
+        this.size = channel.size();
+        block.limit(0);
+        lineCount = size > 0 ? 0 : 1;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public boolean isIndexComplete() {
+        return indexComplete;
+    }
+
+    /**
+     * Whether the index pass found lines that are shown cut off.
+     */
+    public boolean hasTruncatedLines() {
+        return truncatedLines;
+    }
+
+    /**
+     * Scans the file for line starts on the calling (background) thread. Lines become visible
+     * through {@link #getLineCount()} as the scan progresses.
+     */
+    public void buildIndex(IndexListener listener) {
+        long[] marks = checkpoints;
+        int lines = 0;
+        long lineStart = 0;
+        long nextReport = PROGRESS_INTERVAL_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_BYTES);
+        byte[] bytes = buffer.array();
+        long position = 0;
+        while (position < size && !closed) {
+            buffer.clear();
+            int read = readAt(buffer, position);
+            // The file shrank; the lines past its new end read as empty.
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (bytes[i] != '\n') continue;
+                if (position + i - lineStart > MAX_DECODED_LINE_BYTES) truncatedLines = true;
+                lines++;
+                lineStart = position + i + 1;
+                if (lines % SPARSE_STEP == 0) {
+                    int slot = lines / SPARSE_STEP;
+                    if (slot == marks.length) {
+                        long[] grown = new long[marks.length * 2];
+                        System.arraycopy(marks, 0, grown, 0, marks.length);
+                        marks = grown;
+                        checkpoints = marks;
+                    }
+                    marks[slot] = lineStart;
+                }
+                if (lineStart >= nextReport) {
+                    nextReport += PROGRESS_INTERVAL_BYTES;
+                    lineCount = lines;
+                    if (closed) return;
+                    if (listener != null) listener.onIndexProgress(lines, (int) (lineStart * 100 / size));
+                }
+            }
+            position += read;
+        }
+        if (closed) return;
+        if (position - lineStart > MAX_DECODED_LINE_BYTES) truncatedLines = true;
+        // Like LineIndex, a trailing '\n' starts one more (empty) line.
+        lineCount = lines + 1;
+        indexComplete = true;
+        if (listener != null) listener.onIndexProgress(lineCount, 100);
+    }
+
+    @Override
+    public int getLineCount() {
+        return Math.max(1, lineCount);
+    }
+
+    @Override
+    public int getLineLength(int line) {
+        return decodeLine(line).length;
+    }
+
+    @Override
+    public void getChars(int line, int start, int end, char[] dst, int dstBegin) {
+        System.arraycopy(decodeLine(line), start, dst, dstBegin, end - start);
+    }
+
+    @Override
+    public boolean isEditable() {
+        return false;
+    }
+
+    // Only every SPARSE_STEPth line start is known, and as a byte offset.
+    @Override
+    public boolean supportsOffsets() {
+        return false;
+    }
+
+    @Override
+    public int getLineStart(int line) {
+        return 0;
+    }
+
+    @Override
+    public int getLineForOffset(int offset) {
+        return 0;
+    }
+
+    @Override
+    public int length() {
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public void replace(int start, int end, CharSequence text) {
+        throw new UnsupportedOperationException("Large files are opened read-only");
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (decodedLines) {
+            decodedLines.clear();
+            cachedChars = 0;
+        }
+        try {
+            input.close();
+        } finally {
+            if (owner != null) owner.close();
+        }
+    }
+
+    private char[] decodeLine(int line) {
+        synchronized (decodedLines) {
+            char[] cached = decodedLines.get(line);
+            if (cached != null) return cached;
+        }
+        if (closed || line >= getLineCount()) return new char[0];
+
+        byte[] bytes;
+        boolean truncated;
+        synchronized (block) {
+            long start = checkpoints[line / SPARSE_STEP];
+            for (int skip = line % SPARSE_STEP; skip > 0 && start < size; skip--) {
+                int b;
+                while ((b = byteAt(start)) >= 0 && b != '\n') start++;
+                start++;
+            }
+            long end = Math.min(size, start);
+            long limit = Math.min(size, start + MAX_DECODED_LINE_BYTES);
+            int b = -1;
+            while (end < limit && (b = byteAt(end)) >= 0 && b != '\n') end++;
+            truncated = end == limit && end < size && (b = byteAt(end)) >= 0 && b != '\n';
+            if (end > start && byteAt(end - 1) == '\r') end--;
+
+            bytes = new byte[(int) Math.max(0, end - start)];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            // Short if the file shrank meanwhile; only what was read is decoded.
+            int read = readAt(buffer, start);
+            if (read < bytes.length) bytes = Arrays.copyOf(bytes, Math.max(0, read));
+        }
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        char[] chars = (truncated ? text + TRUNCATION_MARKER : text).toCharArray();
+        synchronized (decodedLines) {
+            char[] previous = decodedLines.put(line, chars);
+            if (previous != null) cachedChars -= previous.length;
+            cachedChars += chars.length;
+            // Evict least recently drawn lines, but always keep the one just decoded.
+            Iterator<Map.Entry<Integer, char[]>> eldest = decodedLines.entrySet().iterator();
+            while ((cachedChars > CACHE_CHARS || decodedLines.size() > CACHE_LINES) && decodedLines.size() > 1) {
+                Map.Entry<Integer, char[]> entry = eldest.next();
+                cachedChars -= entry.getValue().length;
+                eldest.remove();
+            }
+        }
+        return chars;
+    }
+
+    // The byte at offset, or -1 past the end of the file. Called holding block.
+    private int byteAt(long offset) {
+        if (offset < blockStart || offset >= blockStart + block.limit()) {
+            block.clear();
+            blockStart = offset;
+            readAt(block, offset);
+            block.flip();
+            if (block.limit() == 0) return -1;
+        }
+        return block.get((int) (offset - blockStart)) & 0xFF;
+    }
+
+    // Fills dst from position on; returns the bytes read, fewer at the end of the file. A
+    // closed source reads as empty.
+    private int readAt(ByteBuffer dst, long position) {
+        int total = 0;
+        try {
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position + total);
+                if (read <= 0) break;
+                total += read;
+            }
+        } catch (IOException e) {
+            // Closed while reading.
+        }
+        return total;
+    }
+
+    public interface IndexListener {
+        /**
+         * Called from the indexing thread.
+         */
+        void onIndexProgress(int linesIndexed, int percent);
+    }
+}
@@ -0,0 +1,369 @@
+package com.codestudio.mobile;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.ForegroundColorSpan;
+import android.view.Choreographer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Moves a process's output to the terminal in frames instead of one UI message per line.
+ * <p>
+ * Reader threads read raw bytes into a reusable buffer, decode them and append the text to a
+ * shared pending buffer. The main thread takes what is pending once per display frame (a
+ * Choreographer callback), so a program printing 100k lines costs at most one dispatch per
+ * vsync instead of 100k messages, and each frame hands over at most MAX_FRAME_CHARS. When the
+ * pending buffer is full the readers either block, which lets the pipe fill up and pauses the
+ * program (backpressure), or keep reading and only count what they drop, which then shows up
+ * as a one-line summary.
+ * <p>
+ * Stdout and stderr are pumped by their own threads into the same buffer, so text lands in
+ * the order it was read. Each stream's unfinished last line is held back until its newline
+ * arrives, so a flood on one stream does not split the lines of the other; a line that stays
+ * unfinished for a whole frame, like a prompt, is shown anyway, and if the other stream then
+ * cuts in, its text starts on a line of its own. Stderr lines are prefixed and colored.
+ */
+public class OutputPump {
+
+    public static final int DEFAULT_MAX_PENDING_CHARS = 256 * 1024;
+    private static final int MAX_FRAME_CHARS = 32 * 1024;
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+    // An unfinished line longer than this is passed on in pieces rather than held back.
+    private static final int MAX_HELD_CHARS = 4 * READ_BUFFER_BYTES;
+    public static final String STDERR_PREFIX = "❌ ";
+    private static final int STDERR_COLOR = 0xFFE57373;
+
+    private final Handler mainHandler;
+    private final Sink sink;
+    private final int maxPendingChars;
+    private final boolean dropWhenFull;
+    private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> deliverFrame();
+    private final Runnable postFrame = () -> Choreographer.getInstance().postFrameCallback(frameCallback);
+
+    // Guarded by this.
+    private final StringBuilder pending = new StringBuilder();
+    // Stderr text in pending, as (start, end) pairs in pending's coordinates.
+    private int[] errorRanges = new int[8];
+    private int errorRangeCount;
+    // Which stream appended last, and whether each stream's last text ended mid-line.
+    private boolean lastWasStderr;
+    private boolean stdoutLineOpen;
+    private boolean stderrLineOpen;
+    // Each stream's unfinished last line, and whether it has waited through a frame already.
+    private final StringBuilder heldStdout = new StringBuilder();
+    private final StringBuilder heldStderr = new StringBuilder();
+    private boolean stdoutHeldAFrame;
+    private boolean stderrHeldAFrame;
+    private boolean frameScheduled;
+    private boolean closed;
+    private long droppedLines;
+    private long droppedChars;
+    private long totalDroppedLines;
+    private Runnable onDrained;
+
+    // Main thread only.
+    private final long startMillis = SystemClock.uptimeMillis();
+    private long lastFrameMillis;
+    private long linesDelivered;
+    private int frameCount;
+
+    public interface Sink {
+        /**
+         * Called on the main thread with the output of one frame, in order. Stderr text in it
+         * carries a ForegroundColorSpan.
+         */
+        void onOutput(CharSequence text);
+    }
+
+    /**
+     * @param dropWhenFull whether a full buffer drops new output (summarized) instead of
+     *                     blocking the readers
+     */
+    public OutputPump(Handler mainHandler, Sink sink, int maxPendingChars, boolean dropWhenFull) {
+        this.mainHandler = mainHandler;
+        this.sink = sink;
+        this.maxPendingChars = Math.max(MAX_FRAME_CHARS, maxPendingChars);
+        this.dropWhenFull = dropWhenFull;
+    }
+
+    /**
+     * Reads in to its end on the calling thread. Stdout and stderr can be pumped concurrently
+     * from two threads; see {@link ProcessStreams}.
+     */
+    public void pump(InputStream in, boolean stderr) throws IOException {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        CharBuffer chars = CharBuffer.allocate(READ_BUFFER_BYTES);
+        StringBuilder staged = new StringBuilder();
+        boolean atLineStart = true;
+        boolean eof = false;
+        while (!eof) {
+            int n = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            if (n < 0) {
+                eof = true;
+            } else {
+                bytes.position(bytes.position() + n);
+            }
+            bytes.flip();
+            boolean more;
+            boolean flushed = false;
+            do {
+                more = decoder.decode(bytes, chars, eof).isOverflow();
+                if (eof && !more && !flushed) {
+                    more = decoder.flush(chars).isOverflow();
+                    flushed = !more;
+                }
+                char[] array = chars.array();
+                int count = chars.position();
+                if (!stderr) {
+                    staged.append(array, 0, count);
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        if (atLineStart) staged.append(STDERR_PREFIX);
+                        staged.append(array[i]);
+                        atLineStart = array[i] == '\n';
+                    }
+                }
+                chars.clear();
+            } while (more);
+            bytes.compact();
+            if (staged.length() > 0 || eof) {
+                offer(staged, stderr, eof);
+                staged.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Runs onDrained on the main thread once everything pumped so far has been delivered.
+     */
+    public synchronized void finish(Runnable onDrained) {
+        releaseHeld(false);
+        releaseHeld(true);
+        appendDroppedSummary();
+        this.onDrained = onDrained;
+        scheduleFrame();
+    }
+
+    /**
+     * Drops pending output and makes readers discard what they read from now on, e.g. when
+     * the terminal goes away. Blocked readers are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.setLength(0);
+        errorRangeCount = 0;
+        heldStdout.setLength(0);
+        heldStderr.setLength(0);
+        notifyAll();
+    }
+
+    // Passes on text up to its last newline, or all of it at the end of the stream, and holds
+    // the rest. Waits for room unless output is dropped.
+    private synchronized void offer(CharSequence text, boolean stderr, boolean eof) throws InterruptedIOException {
+        if (dropWhenFull) {
+            if (closed || pending.length() >= maxPendingChars) {
+                long lines = countLines(text, text.length());
+                droppedLines += lines;
+                totalDroppedLines += lines;
+                droppedChars += text.length();
+                return;
+            }
+        } else {
+            while (!closed && pending.length() >= maxPendingChars) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Output pump interrupted");
+                }
+            }
+            if (closed) return;
+        }
+        StringBuilder held = stderr ? heldStderr : heldStdout;
+        int end = text.length();
+        if (!eof) {
+            end = TextUtils.lastIndexOf(text, '\n') + 1;
+            if (end == 0 && held.length() + text.length() < MAX_HELD_CHARS) {
+                held.append(text);
+                holdUntilNextFrame(stderr);
+                return;
+            }
+            if (end == 0) end = text.length();
+        }
+        appendDroppedSummary();
+        if (held.length() > 0) {
+            append(held, held.length(), stderr);
+            held.setLength(0);
+        }
+        if (end > 0) append(text, end, stderr);
+        if (end < text.length()) {
+            held.append(text, end, text.length());
+            holdUntilNextFrame(stderr);
+        }
+        scheduleFrame();
+    }
+
+    // Called with the lock held.
+    private void holdUntilNextFrame(boolean stderr) {
+        if (stderr) {
+            stderrHeldAFrame = false;
+        } else {
+            stdoutHeldAFrame = false;
+        }
+        scheduleFrame();
+    }
+
+    // Moves a stream's unfinished line to pending. Called with the lock held.
+    private void releaseHeld(boolean stderr) {
+        StringBuilder held = stderr ? heldStderr : heldStdout;
+        if (held.length() == 0) return;
+        append(held, held.length(), stderr);
+        held.setLength(0);
+    }
+
+    // Appends text[0, end) from one stream to pending. Called with the lock held.
+    private void append(CharSequence text, int end, boolean stderr) {
+        if (stderr != lastWasStderr && (lastWasStderr ? stderrLineOpen : stdoutLineOpen)) {
+            pending.append('\n');
+        }
+        int start = pending.length();
+        if (stderr && stderrLineOpen && !lastWasStderr) {
+            // The rest of a stderr line that stdout cut into.
+            pending.append(STDERR_PREFIX);
+        }
+        pending.append(text, 0, end);
+        boolean lineOpen = text.charAt(end - 1) != '\n';
+        if (stderr) {
+            stderrLineOpen = lineOpen;
+        } else {
+            stdoutLineOpen = lineOpen;
+        }
+        lastWasStderr = stderr;
+        if (stderr) {
+            if (errorRangeCount > 0 && errorRanges[errorRangeCount - 1] == start) {
+                errorRanges[errorRangeCount - 1] = pending.length();
+            } else {
+                if (errorRangeCount == errorRanges.length) errorRanges = Arrays.copyOf(errorRanges, errorRangeCount * 2);
+                errorRanges[errorRangeCount++] = start;
+                errorRanges[errorRangeCount++] = pending.length();
+            }
+        }
+    }
+
+    // Called with the lock held.
+    private void appendDroppedSummary() {
+        if (droppedChars == 0) return;
+        pending.append("\n[… ").append(droppedLines).append(" line(s), ").append(droppedChars)
+                .append(" char(s) of output skipped …]\n");
+        stdoutLineOpen = false;
+        stderrLineOpen = false;
+        droppedLines = 0;
+        droppedChars = 0;
+    }
+
+    // Called with the lock held.
+    private void scheduleFrame() {
+        if (frameScheduled) return;
+        frameScheduled = true;
+        mainHandler.post(postFrame);
+    }
+
+    private void deliverFrame() {
+        CharSequence text;
+        Runnable drained = null;
+        synchronized (this) {
+            frameScheduled = false;
+            boolean stillHeld = false;
+            if (heldStdout.length() > 0) {
+                if (stdoutHeldAFrame) {
+                    releaseHeld(false);
+                } else {
+                    stdoutHeldAFrame = stillHeld = true;
+                }
+            }
+            if (heldStderr.length() > 0) {
+                if (stderrHeldAFrame) {
+                    releaseHeld(true);
+                } else {
+                    stderrHeldAFrame = stillHeld = true;
+                }
+            }
+            int count = Math.min(pending.length(), MAX_FRAME_CHARS);
+            text = takeFrame(count);
+            if (pending.length() > 0 || stillHeld) {
+                scheduleFrame();
+            } else if (onDrained != null) {
+                drained = onDrained;
+                onDrained = null;
+            }
+            // Room again for readers blocked on a full buffer.
+            notifyAll();
+        }
+        if (text.length() > 0) {
+            frameCount++;
+            linesDelivered += countLines(text, text.length());
+            lastFrameMillis = SystemClock.uptimeMillis();
+            sink.onOutput(text);
+        }
+        if (drained != null) drained.run();
+    }
+
+    /**
+     * Throughput so far, e.g. "100000 line(s) in 12 frame(s) over 210 ms (476190 lines/s)".
+     * Main thread only.
+     */
+    public String describe() {
+        long dropped;
+        synchronized (this) {
+            dropped = totalDroppedLines;
+        }
+        long millis = Math.max(1, (lastFrameMillis > 0 ? lastFrameMillis : SystemClock.uptimeMillis()) - startMillis);
+        return linesDelivered + " line(s) in " + frameCount + " frame(s) over " + millis + " ms ("
+                + linesDelivered * 1000 / millis + " lines/s)" + (dropped > 0 ? ", " + dropped + " dropped" : "");
+    }
+
+    // Removes the first count chars of pending, with spans on the stderr parts. Lock held.
+    private CharSequence takeFrame(int count) {
+        String plain = pending.substring(0, count);
+        pending.delete(0, count);
+        if (errorRangeCount == 0) return plain;
+        SpannableString text = new SpannableString(plain);
+        int kept = 0;
+        for (int r = 0; r < errorRangeCount; r += 2) {
+            int start = errorRanges[r];
+            int end = errorRanges[r + 1];
+            if (start < count) {
+                text.setSpan(new ForegroundColorSpan(STDERR_COLOR), start, Math.min(end, count), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            if (end > count) {
+                errorRanges[kept++] = Math.max(0, start - count);
+                errorRanges[kept++] = end - count;
+            }
+        }
+        errorRangeCount = kept;
+        return text;
+    }
+
+    private static long countLines(CharSequence text, int end) {
+        long lines = 0;
+        for (int i = 0; i < end; i++) {
+            if (text.charAt(i) == '\n') lines++;
+        }
+        return lines;
+    }
+}
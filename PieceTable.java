@@ -0,0 +1,344 @@
+package com.codestudio.mobile;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Piece-table document model used by the editor.
+ * <p>
+ * Text is never moved once written: loaded and typed characters are appended to a chunked,
+ * append-only store and the document is described by a list of (start, length) pieces into
+ * that store. Edits only split or trim pieces, so their cost depends on the number of pieces
+ * and the size of the edit, not on the size of the file.
+ * <p>
+ * {@link #snapshot()} returns a read-only copy that shares the store and can be handed to a
+ * background thread (e.g. for saving) while the editor keeps changing the original.
+ */
+public class PieceTable implements CharSequence {
+
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Append-only character store. Chunks below storeSize are never modified again.
+    private char[][] chunks;
+    private int storeSize;
+
+    // Pieces in document order, as offsets into the store.
+    private int[] pieceStart;
+    private int[] pieceLength;
+    private int pieceCount;
+    private int length;
+
+    private final boolean readOnly;
+
+    // Last piece resolved by findPiece(), which keeps sequential access O(1).
+    private int cachedPiece;
+    private int cachedPieceOffset;
+
+    public PieceTable() {
+        this.chunks = new char[4][];
+        this.pieceStart = new int[16];
+        this.pieceLength = new int[16];
+        this.readOnly = false;
+    }
+
+    private PieceTable(PieceTable source) {
+        this.chunks = source.chunks;
+        this.storeSize = source.storeSize;
+        this.pieceCount = source.pieceCount;
+        this.pieceStart = new int[Math.max(1, pieceCount)];
+        this.pieceLength = new int[Math.max(1, pieceCount)];
+        System.arraycopy(source.pieceStart, 0, pieceStart, 0, pieceCount);
+        System.arraycopy(source.pieceLength, 0, pieceLength, 0, pieceCount);
+        this.length = source.length;
+        this.readOnly = true;
+    }
+
+    /**
+     * Returns an immutable view of the current contents. Costs one copy of the piece list.
+     */
+    public PieceTable snapshot() {
+        return new PieceTable(this);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        int piece = findPiece(index);
+        int storeOffset = pieceStart[piece] + (index - cachedPieceOffset);
+        return chunks[storeOffset >>> CHUNK_SHIFT][storeOffset & CHUNK_MASK];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        checkRange(start, end);
+        char[] out = new char[end - start];
+        getChars(start, end, out, 0);
+        return new String(out);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+
+    /**
+     * Copies characters [srcBegin, srcEnd) into dst, like {@link String#getChars}.
+     */
+    public void getChars(int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        checkRange(srcBegin, srcEnd);
+        if (srcBegin == srcEnd) return;
+        int piece = findPiece(srcBegin);
+        int offsetInPiece = srcBegin - cachedPieceOffset;
+        int remaining = srcEnd - srcBegin;
+        while (remaining > 0) {
+            int count = Math.min(remaining, pieceLength[piece] - offsetInPiece);
+            copyFromStore(pieceStart[piece] + offsetInPiece, count, dst, dstBegin);
+            dstBegin += count;
+            remaining -= count;
+            piece++;
+            offsetInPiece = 0;
+        }
+    }
+
+    /**
+     * Streams the whole document to the writer straight from the store, without building
+     * an intermediate String.
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (int i = 0; i < pieceCount; i++) {
+            int start = pieceStart[i];
+            int remaining = pieceLength[i];
+            while (remaining > 0) {
+                int chunkOffset = start & CHUNK_MASK;
+                int count = Math.min(remaining, CHUNK_SIZE - chunkOffset);
+                writer.write(chunks[start >>> CHUNK_SHIFT], chunkOffset, count);
+                start += count;
+                remaining -= count;
+            }
+        }
+    }
+
+    public void append(CharSequence text) {
+        insert(length, text, 0, text.length());
+    }
+
+    public void append(char[] text, int start, int end) {
+        checkWritable();
+        if (start == end) return;
+        int storeOffset = appendToStore(text, start, end);
+        addPiece(length, storeOffset, end - start);
+    }
+
+    public void insert(int position, CharSequence text) {
+        insert(position, text, 0, text.length());
+    }
+
+    /**
+     * Inserts text[start, end) at the given document position.
+     */
+    public void insert(int position, CharSequence text, int start, int end) {
+        checkWritable();
+        if (position < 0 || position > length) {
+            throw new IndexOutOfBoundsException("position " + position + ", length " + length);
+        }
+        if (start == end) return;
+        int storeOffset = appendToStore(text, start, end);
+        addPiece(position, storeOffset, end - start);
+    }
+
+    /**
+     * Removes the characters in [start, end).
+     */
+    public void delete(int start, int end) {
+        checkWritable();
+        checkRange(start, end);
+        if (start == end) return;
+
+        int first = splitAt(start);
+        int last = splitAt(end);
+        removePieces(first, last - first);
+        length -= end - start;
+        cachedPiece = 0;
+        cachedPieceOffset = 0;
+    }
+
+    /**
+     * Replaces [start, end) with text[textStart, textEnd). This is the shape of a
+     * TextWatcher.onTextChanged() callback, so the editor can mirror edits one-to-one.
+     */
+    public void replace(int start, int end, CharSequence text, int textStart, int textEnd) {
+        delete(start, end);
+        insert(start, text, textStart, textEnd);
+    }
+
+    public void replace(int start, int end, CharSequence text) {
+        replace(start, end, text, 0, text.length());
+    }
+
+    private void addPiece(int position, int storeOffset, int count) {
+        // Typing usually continues right after the previous insertion; extend that piece
+        // instead of creating a new one so the piece list stays short.
+        if (position > 0) {
+            int previous = findPiece(position - 1);
+            boolean endsAtPosition = cachedPieceOffset + pieceLength[previous] == position;
+            if (endsAtPosition && pieceStart[previous] + pieceLength[previous] == storeOffset) {
+                pieceLength[previous] += count;
+                length += count;
+                return;
+            }
+        }
+        int index = splitAt(position);
+        insertPiece(index, storeOffset, count);
+        length += count;
+        cachedPiece = 0;
+        cachedPieceOffset = 0;
+    }
+
+    /**
+     * Ensures a piece boundary at the given position and returns the index of the piece
+     * that starts there (pieceCount if position == length).
+     */
+    private int splitAt(int position) {
+        if (position == length) return pieceCount;
+        int piece = findPiece(position);
+        int offsetInPiece = position - cachedPieceOffset;
+        if (offsetInPiece == 0) return piece;
+
+        insertPiece(piece + 1, pieceStart[piece] + offsetInPiece, pieceLength[piece] - offsetInPiece);
+        pieceLength[piece] = offsetInPiece;
+        return piece + 1;
+    }
+
+    private int findPiece(int position) {
+        int piece = cachedPiece;
+        int offset = cachedPieceOffset;
+        if (piece >= pieceCount || position < offset) {
+            piece = 0;
+            offset = 0;
+        }
+        while (offset + pieceLength[piece] <= position) {
+            offset += pieceLength[piece];
+            piece++;
+        }
+        cachedPiece = piece;
+        cachedPieceOffset = offset;
+        return piece;
+    }
+
+    private void insertPiece(int index, int start, int count) {
+        if (pieceCount == pieceStart.length) {
+            int capacity = pieceCount * 2;
+            int[] newStart = new int[capacity];
+            int[] newLength = new int[capacity];
+            System.arraycopy(pieceStart, 0, newStart, 0, pieceCount);
+            System.arraycopy(pieceLength, 0, newLength, 0, pieceCount);
+            pieceStart = newStart;
+            pieceLength = newLength;
+        }
+        System.arraycopy(pieceStart, index, pieceStart, index + 1, pieceCount - index);
+        System.arraycopy(pieceLength, index, pieceLength, index + 1, pieceCount - index);
+        pieceStart[index] = start;
+        pieceLength[index] = count;
+        pieceCount++;
+    }
+
+    private void removePieces(int index, int count) {
+        if (count == 0) return;
+        System.arraycopy(pieceStart, index + count, pieceStart, index, pieceCount - index - count);
+        System.arraycopy(pieceLength, index + count, pieceLength, index, pieceCount - index - count);
+        pieceCount -= count;
+    }
+
+    private int appendToStore(CharSequence text, int start, int end) {
+        int storeOffset = storeSize;
+        if (text instanceof String) {
+            String string = (String) text;
+            while (start < end) {
+                char[] chunk = chunkForAppend();
+                int chunkOffset = storeSize & CHUNK_MASK;
+                int count = Math.min(end - start, CHUNK_SIZE - chunkOffset);
+                string.getChars(start, start + count, chunk, chunkOffset);
+                storeSize += count;
+                start += count;
+            }
+        } else {
+            while (start < end) {
+                char[] chunk = chunkForAppend();
+                int chunkOffset = storeSize & CHUNK_MASK;
+                int count = Math.min(end - start, CHUNK_SIZE - chunkOffset);
+                for (int i = 0; i < count; i++) chunk[chunkOffset + i] = text.charAt(start + i);
+                storeSize += count;
+                start += count;
+            }
+        }
+        return storeOffset;
+    }
+
+    private int appendToStore(char[] text, int start, int end) {
+        int storeOffset = storeSize;
+        while (start < end) {
+            char[] chunk = chunkForAppend();
+            int chunkOffset = storeSize & CHUNK_MASK;
+            int count = Math.min(end - start, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(text, start, chunk, chunkOffset, count);
+            storeSize += count;
+            start += count;
+        }
+        return storeOffset;
+    }
+
+    private char[] chunkForAppend() {
+        int index = storeSize >>> CHUNK_SHIFT;
+        if (index == chunks.length) {
+            // A new array is created instead of growing in place so that snapshots keep
+            // a stable reference to the chunks they were taken from.
+            char[][] grown = new char[chunks.length * 2][];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            chunks = grown;
+        }
+        if (chunks[index] == null) {
+            chunks[index] = new char[CHUNK_SIZE];
+        }
+        return chunks[index];
+    }
+
+    private void copyFromStore(int storeOffset, int count, char[] dst, int dstBegin) {
+        while (count > 0) {
+            int chunkOffset = storeOffset & CHUNK_MASK;
+            int n = Math.min(count, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(chunks[storeOffset >>> CHUNK_SHIFT], chunkOffset, dst, dstBegin, n);
+            storeOffset += n;
+            dstBegin += n;
+            count -= n;
+        }
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("range [" + start + ", " + end + "), length " + length);
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.codestudio.mobile;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Drains a process's stdout and stderr at the same time, each on its own thread, into one
+ * {@link OutputPump}.
+ * <p>
+ * Reading the streams one after the other deadlocks as soon as a program fills the stderr
+ * pipe (64 KB) while stdout is still open: it blocks writing stderr and never closes stdout.
+ * Two readers keep both pipes empty, and since they append to the pump under its lock, the
+ * terminal shows the lines in the order they were read, stderr tagged.
+ */
+public class ProcessStreams {
+
+    private static final String TAG = "ProcessStreams";
+
+    private final Thread stdoutReader;
+    private final Thread stderrReader;
+
+    public ProcessStreams(Process process, OutputPump pump, String name) {
+        stdoutReader = new Thread(() -> drain(process.getInputStream(), pump, false), name + "-stdout");
+        stderrReader = new Thread(() -> drain(process.getErrorStream(), pump, true), name + "-stderr");
+    }
+
+    public void start() {
+        stdoutReader.start();
+        stderrReader.start();
+    }
+
+    /**
+     * Waits until both streams have reached their end, i.e. the process and any children
+     * holding them have exited.
+     */
+    public void join() throws InterruptedException {
+        stdoutReader.join();
+        stderrReader.join();
+    }
+
+    /**
+     * Stops waiting for output, e.g. when the process is being torn down. The readers end once
+     * their reads fail or the streams close.
+     */
+    public void interrupt() {
+        stdoutReader.interrupt();
+        stderrReader.interrupt();
+    }
+
+    private static void drain(InputStream in, OutputPump pump, boolean stderr) {
+        try (InputStream stream = in) {
+            pump.pump(stream, stderr);
+        } catch (IOException e) {
+            Log.w(TAG, "Output stream ended: " + e.getMessage());
+        }
+    }
+}
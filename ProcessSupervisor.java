@@ -0,0 +1,418 @@
+package com.codestudio.mobile;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the process of every running session: stops it on request or when its time
+ * limit is up, and measures it.
+ * <p>
+ * A program runs under "sh -c", often with children of its own, so stopping it signals the
+ * whole tree, found by walking the parent IDs in /proc: SIGTERM first, then SIGKILL for
+ * whatever is still alive after a grace period (or at once on a second stop). Processes seen
+ * in the tree earlier are included, so a child that outlived its parent is not left behind;
+ * their start times are compared first, so a reused PID is never signalled.
+ * CPU time and memory caps are applied with ulimit in the session's shell, where the kernel
+ * enforces them. While a session runs, the tree's resident memory is sampled from
+ * /proc/[pid]/status, which together with each process's own high-water mark (VmHWM) gives
+ * the run's peak RSS. All /proc work and signalling happens on one timer thread.
+ */
+public class ProcessSupervisor {
+
+    private static final String TAG = "ProcessSupervisor";
+    private static final int SIGTERM = 15;
+    private static final int SIGKILL = 9;
+    private static final long STOP_GRACE_MILLIS = 2000;
+    private static final long SAMPLE_INTERVAL_MILLIS = 250;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final Map<Integer, Run> runs = new ConcurrentHashMap<>();
+    private volatile boolean shutDown;
+
+    /**
+     * Limits for one run; 0 means no limit.
+     */
+    public static final class Limits {
+        public static final Limits NONE = new Limits(0, 0, 0);
+
+        public final int wallClockSeconds;
+        public final int cpuSeconds;
+        public final int memoryMb;
+
+        public Limits(int wallClockSeconds, int cpuSeconds, int memoryMb) {
+            this.wallClockSeconds = Math.max(0, wallClockSeconds);
+            this.cpuSeconds = Math.max(0, cpuSeconds);
+            this.memoryMb = Math.max(0, memoryMb);
+        }
+    }
+
+    /**
+     * How a run ended.
+     */
+    public static final class Result {
+        public static final String STOPPED = "Stopped";
+        public static final String TIMED_OUT = "Timed out";
+
+        public final int exitCode;
+        public final long wallMillis;
+        // 0 if the run ended before it could be sampled.
+        public final long peakRssKb;
+        // STOPPED, TIMED_OUT, or null if the program ended on its own.
+        public final String endReason;
+        // False for a session stopped while it was still queued.
+        public final boolean started;
+
+        Result(int exitCode, long wallMillis, long peakRssKb, String endReason) {
+            this(exitCode, wallMillis, peakRssKb, endReason, true);
+        }
+
+        private Result(int exitCode, long wallMillis, long peakRssKb, String endReason, boolean started) {
+            this.exitCode = exitCode;
+            this.wallMillis = wallMillis;
+            this.peakRssKb = peakRssKb;
+            this.endReason = endReason;
+            this.started = started;
+        }
+
+        /**
+         * The result of a session stopped before its program started.
+         */
+        static Result stoppedBeforeStart() {
+            return new Result(-1, 0, 0, STOPPED, false);
+        }
+
+        /**
+         * E.g. "Exited with code 137 (killed) after 2.3 s, peak memory 41.2 MB".
+         */
+        public String describe() {
+            if (!started) return endReason + " before it started";
+            String seconds = String.format(Locale.US, "%.1f s", wallMillis / 1000.0);
+            StringBuilder text = new StringBuilder();
+            if (endReason != null) {
+                text.append(endReason).append(" after ").append(seconds);
+            } else if (exitCode == 0) {
+                text.append("Execution completed successfully in ").append(seconds);
+            } else {
+                text.append("Exited with code ").append(exitCode);
+                String signal = exitCode > 128 ? signalName(exitCode - 128) : null;
+                if (signal != null) text.append(" (").append(signal).append(")");
+                text.append(" after ").append(seconds);
+            }
+            if (peakRssKb > 0) {
+                text.append(String.format(Locale.US, ", peak memory %.1f MB", peakRssKb / 1024.0));
+            }
+            return text.toString();
+        }
+
+        private static String signalName(int signal) {
+            switch (signal) {
+                case 6:
+                    return "aborted";
+                case SIGKILL:
+                    return "killed";
+                case 11:
+                    return "segmentation fault";
+                case SIGTERM:
+                    return "terminated";
+                case 24:
+                    return "CPU time limit";
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * The script that runs command under limits' CPU and memory caps.
+     */
+    public static String wrap(String command, Limits limits) {
+        if (limits.cpuSeconds == 0 && limits.memoryMb == 0) return command;
+        StringBuilder script = new StringBuilder();
+        if (limits.cpuSeconds > 0) {
+            // SIGXCPU at the soft limit tells the program why; the hard one kills it a second later.
+            script.append("{ ulimit -Ht ").append(limits.cpuSeconds + 1).append(" && ulimit -St ").append(limits.cpuSeconds)
+                    .append("; } 2>/dev/null || echo 'CPU time limit not supported' >&2\n");
+        }
+        if (limits.memoryMb > 0) {
+            script.append("ulimit -v ").append(limits.memoryMb * 1024L)
+                    .append(" 2>/dev/null || echo 'Memory limit not supported' >&2\n");
+        }
+        return script.append(command).toString();
+    }
+
+    /**
+     * Starts supervising a session's freshly started process.
+     */
+    public void track(int sessionId, Process process, Limits limits) {
+        Run run = new Run(process, pidOf(process));
+        runs.put(sessionId, run);
+        if (shutDown) {
+            // The shutdown task may already have run; this thread is not the main one.
+            run.endReason = Result.STOPPED;
+            signalTree(run, SIGKILL, true);
+            return;
+        }
+        try {
+            if (run.pid > 0) {
+                run.sampler = timer.scheduleWithFixedDelay(() -> sample(run), 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (limits.wallClockSeconds > 0) {
+                run.timeout = timer.schedule(() -> stop(run, Result.TIMED_OUT), limits.wallClockSeconds, TimeUnit.SECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // Shut down while the process was starting.
+            run.endReason = Result.STOPPED;
+            signalTree(run, SIGKILL, true);
+        }
+    }
+
+    /**
+     * Ends supervision once the process has exited and returns how the run went.
+     */
+    public Result untrack(int sessionId, int exitCode) {
+        Run run = runs.remove(sessionId);
+        if (run == null) return new Result(exitCode, 0, 0, null);
+        run.cancelTimers();
+        long wallMillis = (System.nanoTime() - run.startNanos) / 1_000_000;
+        // The shell may be gone while children it started still run.
+        if (run.pid > 0) execute(() -> signalTree(run, SIGKILL, false));
+        return new Result(exitCode, wallMillis, Math.max(run.peakTreeKb, run.peakHwmKb), run.endReason);
+    }
+
+    /**
+     * Stops a session's process tree: SIGTERM now and SIGKILL after a grace period, or SIGKILL
+     * right away if it is already being stopped. Returns false if the session is not running.
+     */
+    public boolean stop(int sessionId) {
+        Run run = runs.get(sessionId);
+        if (run == null) return false;
+        stop(run, Result.STOPPED);
+        return true;
+    }
+
+    /**
+     * Kills every supervised process tree and stops the timer. Walking /proc is slow, so the
+     * trees are killed by the timer thread's last task and this returns at once, e.g. on the
+     * main thread.
+     */
+    public void shutdown() {
+        shutDown = true;
+        execute(() -> {
+            for (Run run : runs.values()) {
+                run.endReason = Result.STOPPED;
+                signalTree(run, SIGKILL, false);
+            }
+            runs.clear();
+            timer.shutdownNow();
+        });
+    }
+
+    private void stop(Run run, String reason) {
+        if (run.endReason == null) run.endReason = reason;
+        boolean again = run.stopping;
+        run.stopping = true;
+        execute(() -> signalTree(run, again ? SIGKILL : SIGTERM, true));
+        if (!again) {
+            try {
+                run.killer = timer.schedule(() -> signalTree(run, SIGKILL, true), STOP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down; the shutdown task killed everything.
+            }
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            timer.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down; the shutdown task killed everything.
+        }
+    }
+
+    // Signals the run's tree, children first so that none are reparented mid-way.
+    private void signalTree(Run run, int signal, boolean includeRoot) {
+        if (run.pid <= 0) {
+            if (includeRoot) run.process.destroy();
+            return;
+        }
+        List<Integer> tree = treeOf(run.pid);
+        synchronized (run.seen) {
+            for (Map.Entry<Integer, Long> entry : run.seen.entrySet()) {
+                int pid = entry.getKey();
+                long[] stat = readStat(pid);
+                if (!tree.contains(pid) && stat != null && stat[1] == entry.getValue()) tree.add(pid);
+            }
+        }
+        int self = android.os.Process.myPid();
+        for (int i = tree.size() - 1; i >= 0; i--) {
+            int pid = tree.get(i);
+            if (pid == self || (pid == run.pid && !includeRoot)) continue;
+            android.os.Process.sendSignal(pid, signal);
+        }
+        if (includeRoot && signal == SIGKILL) run.process.destroy();
+    }
+
+    private void sample(Run run) {
+        long total = 0;
+        for (int pid : treeOf(run.pid)) {
+            long[] stat = readStat(pid);
+            if (stat == null) continue;
+            synchronized (run.seen) {
+                run.seen.put(pid, stat[1]);
+            }
+            long[] memory = readMemoryKb(pid);
+            total += memory[0];
+            run.peakHwmKb = Math.max(run.peakHwmKb, memory[1]);
+        }
+        run.peakTreeKb = Math.max(run.peakTreeKb, total);
+    }
+
+    // root and its descendants, parents before children; empty once root is gone.
+    private static List<Integer> treeOf(int root) {
+        List<Integer> tree = new ArrayList<>();
+        if (!new File("/proc/" + root).exists()) return tree;
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        File[] entries = new File("/proc").listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                String name = entry.getName();
+                if (name.isEmpty() || !Character.isDigit(name.charAt(0))) continue;
+                int pid = Integer.parseInt(name);
+                long[] stat = readStat(pid);
+                if (stat == null) continue;
+                int parent = (int) stat[0];
+                List<Integer> list = children.get(parent);
+                if (list == null) children.put(parent, list = new ArrayList<>());
+                list.add(pid);
+            }
+        }
+        Set<Integer> visited = new HashSet<>();
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            int pid = pending.poll();
+            if (!visited.add(pid)) continue;
+            tree.add(pid);
+            List<Integer> list = children.get(pid);
+            if (list != null) pending.addAll(list);
+        }
+        return tree;
+    }
+
+    // {parent PID, start time} from /proc/[pid]/stat, or null if it is gone. The second field
+    // (the name) may contain spaces, so fields are counted from its closing parenthesis.
+    private static long[] readStat(int pid) {
+        String stat = readFirstLine("/proc/" + pid + "/stat");
+        if (stat == null) return null;
+        int nameEnd = stat.lastIndexOf(')');
+        if (nameEnd < 0 || nameEnd + 2 > stat.length()) return null;
+        String[] fields = stat.substring(nameEnd + 2).split(" ");
+        try {
+            // Fields 4 and 22 of the whole line.
+            return new long[]{Long.parseLong(fields[1]), Long.parseLong(fields[19])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    // {VmRSS, VmHWM} in kB, zeros if the process is gone.
+    private static long[] readMemoryKb(int pid) {
+        long[] memory = new long[2];
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/" + pid + "/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    memory[0] = parseKb(line);
+                } else if (line.startsWith("VmHWM:")) {
+                    memory[1] = parseKb(line);
+                }
+            }
+        } catch (IOException e) {
+            // Exited between listing and reading.
+        }
+        return memory;
+    }
+
+    private static long parseKb(String line) {
+        String value = line.substring(line.indexOf(':') + 1).trim();
+        int space = value.indexOf(' ');
+        try {
+            return Long.parseLong(space < 0 ? value : value.substring(0, space));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readFirstLine(String path) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // java.lang.Process has no public PID accessor on Android; its implementations keep it in "pid".
+    private static int pidOf(Process process) {
+        try {
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).intValue();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not there before Java 9; fall back to the field.
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.w(TAG, "No PID for " + process.getClass().getName() + "; stop falls back to destroy()");
+            return -1;
+        }
+    }
+
+    private static final class Run {
+        final Process process;
+        final int pid;
+        final long startNanos = System.nanoTime();
+        // Start time of every PID sampled in the tree, so orphaned children can still be
+        // stopped. Guarded by itself.
+        final Map<Integer, Long> seen = new HashMap<>();
+        volatile long peakTreeKb;
+        volatile long peakHwmKb;
+        volatile String endReason;
+        volatile boolean stopping;
+        volatile ScheduledFuture<?> sampler;
+        volatile ScheduledFuture<?> timeout;
+        volatile ScheduledFuture<?> killer;
+
+        Run(Process process, int pid) {
+            this.process = process;
+            this.pid = pid;
+        }
+
+        void cancelTimers() {
+            if (sampler != null) sampler.cancel(false);
+            if (timeout != null) timeout.cancel(false);
+            if (killer != null) killer.cancel(false);
+        }
+    }
+}
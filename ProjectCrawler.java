@@ -0,0 +1,145 @@
+package com.codestudio.mobile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Walks a SAF tree breadth-first and streams what it finds, for expand-all, search and
+ * indexing.
+ * <p>
+ * Directories are listed through the {@link DirectoryTreeCache}, so folders already known to
+ * the drawer cost nothing and everything crawled is cached for the drawer afterwards. Listing
+ * runs on the worker executor with at most maxInFlight provider queries outstanding; found
+ * items are handed to the callback executor (normally the main thread) in batches so a big
+ * tree does not flood it with one dispatch per file.
+ */
+public class ProjectCrawler {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private static final int BATCH_SIZE = 256;
+
+    private final DirectoryTreeCache cache;
+    private final ExecutorService worker;
+    private final Executor callbacks;
+
+    public ProjectCrawler(DirectoryTreeCache cache, ExecutorService worker, Executor callbacks) {
+        this.cache = cache;
+        this.worker = worker;
+        this.callbacks = callbacks;
+    }
+
+    /**
+     * Crawls everything below rootDocumentId, which is not reported itself.
+     */
+    public Task crawl(String rootDocumentId, int maxInFlight, Callback callback) {
+        Task task = new Task(Math.max(1, maxInFlight), callback);
+        task.enqueue(rootDocumentId, 0);
+        return task;
+    }
+
+    public interface Callback {
+        /**
+         * Items in discovery order: each directory's children before the next level.
+         */
+        void onBatch(List<FileItem> items);
+
+        void onComplete(int directories, int files, long elapsedNanos);
+    }
+
+    public class Task {
+        private final int maxInFlight;
+        private final Callback callback;
+        private final long startNanos = System.nanoTime();
+        private volatile boolean cancelled;
+
+        // Guarded by this.
+        private final ArrayDeque<String> pendingIds = new ArrayDeque<>();
+        private final ArrayDeque<Integer> pendingDepths = new ArrayDeque<>();
+        private List<FileItem> batch = new ArrayList<>();
+        private int inFlight;
+        private int directories;
+        private int files;
+
+        private Task(int maxInFlight, Callback callback) {
+            this.maxInFlight = maxInFlight;
+            this.callback = callback;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized void enqueue(String documentId, int depth) {
+            pendingIds.add(documentId);
+            pendingDepths.add(depth);
+            dispatch();
+        }
+
+        // Starts listings while under the in-flight cap. Called with the lock held.
+        private void dispatch() {
+            while (inFlight < maxInFlight && !pendingIds.isEmpty() && !cancelled) {
+                String documentId = pendingIds.poll();
+                int depth = pendingDepths.poll();
+                inFlight++;
+                worker.execute(() -> list(documentId, depth));
+            }
+        }
+
+        private void list(String documentId, int depth) {
+            List<FileItem> found = new ArrayList<>();
+            List<String> subdirectories = new ArrayList<>();
+            if (!cancelled) {
+                for (DirectoryTreeCache.Entry child : cache.getChildren(documentId)) {
+                    found.add(new FileItem(cache.getDocumentUri(child.documentId), child.name, child.isDirectory, depth, child.mimeType));
+                    if (child.isDirectory) subdirectories.add(child.documentId);
+                }
+            }
+            List<FileItem> ready = null;
+            boolean done;
+            synchronized (this) {
+                inFlight--;
+                directories += subdirectories.size();
+                files += found.size() - subdirectories.size();
+                batch.addAll(found);
+                for (String subdirectory : subdirectories) {
+                    pendingIds.add(subdirectory);
+                    pendingDepths.add(depth + 1);
+                }
+                dispatch();
+                done = inFlight == 0 && (pendingIds.isEmpty() || cancelled);
+                if (batch.size() >= BATCH_SIZE || (done && !batch.isEmpty())) {
+                    ready = batch;
+                    batch = new ArrayList<>();
+                }
+            }
+            if (ready != null) deliver(ready);
+            if (done) finish();
+        }
+
+        private void deliver(List<FileItem> items) {
+            callbacks.execute(() -> {
+                if (!cancelled) callback.onBatch(items);
+            });
+        }
+
+        private void finish() {
+            int directoryCount;
+            int fileCount;
+            synchronized (this) {
+                directoryCount = directories;
+                fileCount = files;
+            }
+            long elapsed = System.nanoTime() - startNanos;
+            callbacks.execute(() -> {
+                if (!cancelled) callback.onComplete(directoryCount, fileCount, elapsed);
+            });
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.codestudio.mobile;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trigram index over the text files of the opened folder, for project-wide search.
+ * <p>
+ * Every lower-cased three-char sequence in a file maps to the sorted list of files that
+ * contain it. Intersecting the lists of a query's trigrams leaves the few files that can
+ * match, and only those are read to find the matching lines, so a search over thousands of
+ * files does not re-read the project.
+ * <p>
+ * The index is incremental. {@link #update} reads only files whose last-modified time changed
+ * since they were indexed, and saves feed their new text in directly. A re-indexed file gets a
+ * new id and its old one is marked deleted, so posting lists are only ever appended to; they
+ * are compacted once deleted ids make up half of them. The index is kept in app storage
+ * between runs.
+ */
+public class ProjectIndex {
+
+    private static final String TAG = "ProjectIndex";
+    private static final int MAGIC = 0x43535049; // "CSPI"
+    private static final int VERSION = 1;
+    // Larger files are listed but not indexed, and never match.
+    public static final int MAX_FILE_BYTES = 1024 * 1024;
+    private static final int PREVIEW_CHARS = 120;
+
+    private final ContentResolver resolver;
+    private final DirectoryTreeCache cache;
+
+    // Guarded by this. File ids index documentIds, names and modified.
+    private final List<String> documentIds = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private long[] modified = new long[256];
+    private final BitSet deleted = new BitSet();
+    private final Map<String, Integer> liveIds = new HashMap<>();
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private boolean dirty;
+
+    public ProjectIndex(ContentResolver resolver, DirectoryTreeCache cache) {
+        this.resolver = resolver;
+        this.cache = cache;
+    }
+
+    public static File fileIn(File directory) {
+        return new File(directory, "project_index.bin");
+    }
+
+    public DirectoryTreeCache getCache() {
+        return cache;
+    }
+
+    public synchronized int getFileCount() {
+        return liveIds.size();
+    }
+
+    /**
+     * Brings the index up to date with the folder: new and modified text files are read (on
+     * worker) and indexed, vanished ones dropped. Blocks until done, so call it off the main
+     * thread and not on worker itself.
+     *
+     * @return the number of files that were read
+     */
+    public int update(Executor worker) {
+        Map<String, DirectoryTreeCache.Entry> files = new HashMap<>();
+        ArrayDeque<String> folders = new ArrayDeque<>();
+        folders.add(cache.getRootDocumentId());
+        while (!folders.isEmpty()) {
+            for (DirectoryTreeCache.Entry child : cache.getChildren(folders.poll())) {
+                if (child.isDirectory) {
+                    folders.add(child.documentId);
+                } else if (isIndexable(child.name, child.mimeType)) {
+                    files.put(child.documentId, child);
+                }
+            }
+        }
+
+        List<DirectoryTreeCache.Entry> stale = new ArrayList<>();
+        synchronized (this) {
+            for (String documentId : new ArrayList<>(liveIds.keySet())) {
+                if (!files.containsKey(documentId)) remove(documentId);
+            }
+            for (DirectoryTreeCache.Entry file : files.values()) {
+                Integer id = liveIds.get(file.documentId);
+                if (id == null || file.lastModified == 0 || modified[id] != file.lastModified) stale.add(file);
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(stale.size());
+        for (DirectoryTreeCache.Entry file : stale) {
+            worker.execute(() -> {
+                try {
+                    char[] text = readText(cache.getDocumentUri(file.documentId));
+                    // Unreadable, binary and huge files are still recorded, so they are not read again.
+                    add(file.documentId, file.name, file.lastModified, text != null ? text : new char[0]);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return stale.size();
+    }
+
+    /**
+     * Re-indexes a file that was just saved with text (a document snapshot or the UTF-8 bytes
+     * written). Files outside the folder are ignored. Safe to call from any thread.
+     */
+    public void onFileSaved(Uri uri, CharSequence text) {
+        if (!cache.isTreeOf(uri)) return;
+        String documentId = DocumentsContract.getDocumentId(uri);
+        String name;
+        synchronized (this) {
+            Integer id = liveIds.get(documentId);
+            name = id != null ? names.get(id) : documentId.substring(documentId.lastIndexOf('/') + 1);
+        }
+        if (!isIndexable(name, null) || text.length() > MAX_FILE_BYTES) return;
+        char[] chars = new char[text.length()];
+        if (text instanceof PieceTable) {
+            ((PieceTable) text).getChars(0, chars.length, chars, 0);
+        } else {
+            text.toString().getChars(0, chars.length, chars, 0);
+        }
+        // The provider's new time is not known here; 0 makes the next update check the file once.
+        add(documentId, name, 0, chars);
+    }
+
+    /**
+     * Finds the lines containing query (ignoring case), at most maxHits of them, in file order.
+     * Candidate files come from the index and only those are read, in parallel on worker.
+     * Blocks until done, so call it off the main thread and not on worker itself.
+     */
+    public List<Hit> search(String query, int maxHits, Executor worker) {
+        if (query.isEmpty()) return Collections.emptyList();
+        String[] candidateIds;
+        String[] candidateNames;
+        synchronized (this) {
+            int[] ids = candidates(query);
+            candidateIds = new String[ids.length];
+            candidateNames = new String[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                candidateIds[i] = documentIds.get(ids[i]);
+                candidateNames[i] = names.get(ids[i]);
+            }
+        }
+        List<List<Hit>> perFile = new ArrayList<>(Collections.nCopies(candidateIds.length, null));
+        AtomicInteger found = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(candidateIds.length);
+        for (int i = 0; i < candidateIds.length; i++) {
+            int index = i;
+            worker.execute(() -> {
+                try {
+                    // Later files are skipped once enough hits were found; earlier ones still finish.
+                    if (found.get() >= maxHits) return;
+                    Uri uri = cache.getDocumentUri(candidateIds[index]);
+                    char[] text = readText(uri);
+                    if (text == null) return;
+                    List<Hit> hits = new ArrayList<>();
+                    findLines(uri, candidateNames[index], text, query, maxHits, hits);
+                    found.addAndGet(hits.size());
+                    synchronized (perFile) {
+                        perFile.set(index, hits);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Hit> hits = new ArrayList<>();
+        synchronized (perFile) {
+            for (List<Hit> fileHits : perFile) {
+                if (fileHits == null) continue;
+                for (Hit hit : fileHits) {
+                    if (hits.size() == maxHits) return hits;
+                    hits.add(hit);
+                }
+            }
+        }
+        return hits;
+    }
+
+    // Live file ids whose trigrams include all of the query's, ascending. Called with the lock held.
+    private int[] candidates(String query) {
+        long[] keys = trigrams(query.toCharArray(), query.length());
+        if (keys.length == 0) {
+            // Shorter than a trigram: every file is a candidate.
+            int[] all = new int[liveIds.size()];
+            int n = 0;
+            for (int id : liveIds.values()) all[n++] = id;
+            Arrays.sort(all);
+            return all;
+        }
+        Postings[] lists = new Postings[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            lists[i] = postings.get(keys[i]);
+            if (lists[i] == null) return new int[0];
+        }
+        // Smallest list first, so the intersection shrinks as fast as possible.
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        int[] result = new int[lists[0].size];
+        int count = 0;
+        for (int i = 0; i < lists[0].size; i++) {
+            int id = lists[0].ids[i];
+            if (!deleted.get(id)) result[count++] = id;
+        }
+        for (int l = 1; l < lists.length && count > 0; l++) {
+            Postings list = lists[l];
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                int id = result[i];
+                while (j < list.size && list.ids[j] < id) j++;
+                if (j < list.size && list.ids[j] == id) result[kept++] = id;
+            }
+            count = kept;
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static void findLines(Uri uri, String name, char[] text, String query, int maxHits, List<Hit> hits) {
+        String content = new String(text);
+        int line = 1;
+        int lineStart = 0;
+        int scanned = 0;
+        for (int i = 0; i <= content.length() - query.length() && hits.size() < maxHits; i++) {
+            if (!content.regionMatches(true, i, query, 0, query.length())) continue;
+            for (; scanned < i; scanned++) {
+                if (content.charAt(scanned) == '\n') {
+                    line++;
+                    lineStart = scanned + 1;
+                }
+            }
+            int lineEnd = content.indexOf('\n', i);
+            if (lineEnd < 0) lineEnd = content.length();
+            String preview = content.substring(lineStart, Math.min(lineEnd, lineStart + PREVIEW_CHARS)).trim();
+            hits.add(new Hit(uri, name, line, i - lineStart, preview));
+            // One hit per line.
+            i = lineEnd;
+        }
+    }
+
+    private void add(String documentId, String name, long lastModified, char[] text) {
+        long[] keys = trigrams(text, text.length);
+        synchronized (this) {
+            remove(documentId);
+            int id = documentIds.size();
+            documentIds.add(documentId);
+            names.add(name);
+            if (id == modified.length) modified = Arrays.copyOf(modified, id * 2);
+            modified[id] = lastModified;
+            liveIds.put(documentId, id);
+            for (long key : keys) {
+                Postings list = postings.get(key);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(key, list);
+                }
+                list.add(id);
+            }
+            dirty = true;
+            if (deleted.cardinality() > liveIds.size()) compact();
+        }
+    }
+
+    // Called with the lock held.
+    private void remove(String documentId) {
+        Integer id = liveIds.remove(documentId);
+        if (id == null) return;
+        deleted.set(id);
+        dirty = true;
+    }
+
+    // Renumbers the live files densely and drops deleted ids from every list. Called with the lock held.
+    private void compact() {
+        int[] newIds = new int[documentIds.size()];
+        List<String> keptIds = new ArrayList<>();
+        List<String> keptNames = new ArrayList<>();
+        long[] keptModified = new long[Math.max(256, liveIds.size() * 2)];
+        for (int id = 0; id < documentIds.size(); id++) {
+            if (deleted.get(id)) {
+                newIds[id] = -1;
+                continue;
+            }
+            newIds[id] = keptIds.size();
+            keptModified[keptIds.size()] = modified[id];
+            keptIds.add(documentIds.get(id));
+            keptNames.add(names.get(id));
+        }
+        for (Map.Entry<Long, Postings> entry : new ArrayList<>(postings.entrySet())) {
+            Postings list = entry.getValue();
+            int kept = 0;
+            for (int i = 0; i < list.size; i++) {
+                int id = newIds[list.ids[i]];
+                if (id >= 0) list.ids[kept++] = id;
+            }
+            list.size = kept;
+            if (kept == 0) postings.remove(entry.getKey());
+        }
+        documentIds.clear();
+        documentIds.addAll(keptIds);
+        names.clear();
+        names.addAll(keptNames);
+        modified = keptModified;
+        deleted.clear();
+        liveIds.clear();
+        for (int id = 0; id < documentIds.size(); id++) liveIds.put(documentIds.get(id), id);
+    }
+
+    // The distinct lower-cased trigrams of the first length chars, sorted.
+    private static long[] trigrams(char[] text, int length) {
+        if (length < 3) return new long[0];
+        long[] keys = new long[length - 2];
+        long c0 = Character.toLowerCase(text[0]);
+        long c1 = Character.toLowerCase(text[1]);
+        for (int i = 2; i < length; i++) {
+            long c2 = Character.toLowerCase(text[i]);
+            keys[i - 2] = c0 << 32 | c1 << 16 | c2;
+            c0 = c1;
+            c1 = c2;
+        }
+        Arrays.sort(keys);
+        int distinct = 1;
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i] != keys[distinct - 1]) keys[distinct++] = keys[i];
+        }
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    // The file as UTF-8 text, or null if it is unreadable, too large or looks binary.
+    private char[] readText(Uri uri) {
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) return null;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == 0) return null;
+                }
+                bytes.write(buffer, 0, n);
+                if (bytes.size() > MAX_FILE_BYTES) return null;
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8).toCharArray();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read " + uri + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isIndexable(String name, String mimeType) {
+        String type = mimeType;
+        if (type == null || "application/octet-stream".equals(type)) type = FileUtils.getMimeTypeFromName(name);
+        if (type == null) return false;
+        return type.startsWith("text/") || type.equals("application/json") || type.equals("application/xml")
+                || type.equals("application/javascript") || type.equals("application/x-sh");
+    }
+
+    /**
+     * Writes the index if it changed since it was loaded or last saved. Call off the main thread.
+     */
+    public void save(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        synchronized (this) {
+            if (!dirty) return;
+            if (!deleted.isEmpty()) compact();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeUTF(cache.getDocumentUri(cache.getRootDocumentId()).toString());
+                writeVarInt(out, documentIds.size());
+                for (int id = 0; id < documentIds.size(); id++) {
+                    out.writeUTF(documentIds.get(id));
+                    out.writeUTF(names.get(id));
+                    out.writeLong(modified[id]);
+                }
+                writeVarInt(out, postings.size());
+                for (Map.Entry<Long, Postings> entry : postings.entrySet()) {
+                    Postings list = entry.getValue();
+                    out.writeLong(entry.getKey());
+                    writeVarInt(out, list.size);
+                    int previous = 0;
+                    for (int i = 0; i < list.size; i++) {
+                        writeVarInt(out, list.ids[i] - previous);
+                        previous = list.ids[i];
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Could not write " + file + ": " + e.getMessage());
+                temp.delete();
+                return;
+            }
+            if (temp.renameTo(file)) {
+                dirty = false;
+            } else {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents with the index saved for this folder, if there is a readable one.
+     * Call off the main thread.
+     */
+    public boolean load(File file) {
+        if (!file.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) return false;
+            if (!cache.getDocumentUri(cache.getRootDocumentId()).toString().equals(in.readUTF())) return false;
+            int fileCount = readVarInt(in);
+            List<String> ids = new ArrayList<>(fileCount);
+            List<String> fileNames = new ArrayList<>(fileCount);
+            long[] times = new long[Math.max(256, fileCount * 2)];
+            for (int id = 0; id < fileCount; id++) {
+                ids.add(in.readUTF());
+                fileNames.add(in.readUTF());
+                times[id] = in.readLong();
+            }
+            int keyCount = readVarInt(in);
+            Map<Long, Postings> lists = new HashMap<>(keyCount * 2);
+            for (int k = 0; k < keyCount; k++) {
+                long key = in.readLong();
+                Postings list = new Postings();
+                int size = readVarInt(in);
+                int id = 0;
+                for (int i = 0; i < size; i++) {
+                    id += readVarInt(in);
+                    if (id >= fileCount) throw new IOException("File id out of range");
+                    list.add(id);
+                }
+                lists.put(key, list);
+            }
+            synchronized (this) {
+                documentIds.clear();
+                documentIds.addAll(ids);
+                names.clear();
+                names.addAll(fileNames);
+                modified = times;
+                deleted.clear();
+                liveIds.clear();
+                for (int id = 0; id < fileCount; id++) liveIds.put(ids.get(id), id);
+                postings.clear();
+                postings.putAll(lists);
+                dirty = false;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Ignoring unreadable " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // Ascending file ids containing one trigram.
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    public static final class Hit {
+        public final Uri uri;
+        public final String name;
+        // 1-based line and 0-based column of the first match on the line.
+        public final int line;
+        public final int column;
+        public final String preview;
+
+        Hit(Uri uri, String name, int line, int column, String preview) {
+            this.uri = uri;
+            this.name = name;
+            this.line = line;
+            this.column = column;
+            this.preview = preview;
+        }
+
+        @Override
+        public String toString() {
+            return name + ":" + line + "  " + preview;
+        }
+    }
+}
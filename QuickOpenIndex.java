@@ -0,0 +1,255 @@
+package com.codestudio.mobile;
+
+import android.net.Uri;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every file path of the opened folder, for fuzzy "Go to file" matching.
+ * <p>
+ * Paths (relative to the folder) are packed into one char array with a lower-cased copy for
+ * matching, plus offset arrays and a 64-bit mask of the character classes in each path, so
+ * 100k paths are a few MB with no per-path objects. A query matches a path when its characters
+ * appear in order; matches in the file name, at word starts and in consecutive runs score
+ * higher, and shorter paths win ties. Masks of the whole path and of the name reject most
+ * paths and name attempts without looking at them, paths too long to beat the current top
+ * results are not scored at all, and a query that
+ * extends the previous one only rescans that query's candidates, which keeps each keystroke
+ * within a few milliseconds.
+ * <p>
+ * Instances are immutable apart from that last-query memo, so query from one thread only.
+ */
+public final class QuickOpenIndex {
+
+    public static final int DEFAULT_LIMIT = 50;
+    private static final int MISS = Integer.MIN_VALUE;
+    private static final int NAME_BONUS = 100;
+    private static final int CONSECUTIVE_BONUS = 16;
+    private static final int BOUNDARY_BONUS = 12;
+    private static final int MAX_GAP_PENALTY = 6;
+
+    private final DirectoryTreeCache cache;
+    private final int count;
+    private final char[] paths;
+    private final char[] folded;
+    // Path i is paths[starts[i], starts[i + 1]); its file name starts at nameStarts[i].
+    private final int[] starts;
+    private final int[] nameStarts;
+    private final long[] masks;
+    private final long[] nameMasks;
+    // Document IDs that are not the root's ID joined with the path, by path index.
+    private final Map<Integer, String> otherIds;
+
+    private String lastQuery;
+    private int[] lastMatches;
+    private int lastMatchCount;
+
+    private QuickOpenIndex(DirectoryTreeCache cache, int count, char[] paths, int[] starts, int[] nameStarts,
+                           Map<Integer, String> otherIds) {
+        this.cache = cache;
+        this.count = count;
+        this.paths = paths;
+        this.starts = starts;
+        this.nameStarts = nameStarts;
+        this.otherIds = otherIds;
+        folded = new char[paths.length];
+        masks = new long[count];
+        nameMasks = new long[count];
+        for (int i = 0; i < count; i++) {
+            long mask = 0;
+            for (int p = starts[i]; p < starts[i + 1]; p++) {
+                char c = Character.toLowerCase(paths[p]);
+                folded[p] = c;
+                if (p == nameStarts[i]) mask = 0;
+                mask |= maskOf(c);
+            }
+            nameMasks[i] = mask;
+            masks[i] = mask;
+            for (int p = starts[i]; p < nameStarts[i]; p++) masks[i] |= maskOf(folded[p]);
+        }
+    }
+
+    /**
+     * Collects every file below the cache's root, listing folders that are not cached yet.
+     * Call off the main thread; after a crawl it is pure memory work.
+     */
+    public static QuickOpenIndex build(DirectoryTreeCache cache) {
+        String rootId = cache.getRootDocumentId();
+        char[] paths = new char[64 * 1024];
+        int length = 0;
+        int count = 0;
+        int[] starts = new int[1024];
+        int[] nameStarts = new int[1024];
+        Map<Integer, String> otherIds = new HashMap<>();
+        ArrayDeque<String> folderIds = new ArrayDeque<>();
+        ArrayDeque<String> folderPaths = new ArrayDeque<>();
+        folderIds.add(rootId);
+        folderPaths.add("");
+        while (!folderIds.isEmpty()) {
+            String folderId = folderIds.poll();
+            String folderPath = folderPaths.poll();
+            for (DirectoryTreeCache.Entry child : cache.getChildren(folderId)) {
+                String path = folderPath.isEmpty() ? child.name : folderPath + "/" + child.name;
+                if (child.isDirectory) {
+                    folderIds.add(child.documentId);
+                    folderPaths.add(path);
+                    continue;
+                }
+                if (count + 1 >= starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                    nameStarts = Arrays.copyOf(nameStarts, nameStarts.length * 2);
+                }
+                if (length + path.length() > paths.length) {
+                    paths = Arrays.copyOf(paths, Math.max(paths.length * 2, length + path.length()));
+                }
+                path.getChars(0, path.length(), paths, length);
+                starts[count] = length;
+                nameStarts[count] = length + path.length() - child.name.length();
+                if (!child.documentId.equals(joinId(rootId, path))) otherIds.put(count, child.documentId);
+                length += path.length();
+                count++;
+            }
+        }
+        starts[count] = length;
+        return new QuickOpenIndex(cache, count, Arrays.copyOf(paths, length), Arrays.copyOf(starts, count + 1),
+                Arrays.copyOf(nameStarts, count), otherIds);
+    }
+
+    // How the external storage provider derives a descendant's ID from the tree's.
+    private static String joinId(String rootId, String path) {
+        return rootId.endsWith(":") ? rootId + path : rootId + "/" + path;
+    }
+
+    public DirectoryTreeCache getCache() {
+        return cache;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getPath(int index) {
+        return new String(paths, starts[index], starts[index + 1] - starts[index]);
+    }
+
+    public String getName(int index) {
+        return new String(paths, nameStarts[index], starts[index + 1] - nameStarts[index]);
+    }
+
+    public Uri getUri(int index) {
+        String documentId = otherIds.get(index);
+        if (documentId == null) documentId = joinId(cache.getRootDocumentId(), getPath(index));
+        return cache.getDocumentUri(documentId);
+    }
+
+    /**
+     * The best matches for query, best first, at most limit of them. An empty query matches
+     * nothing.
+     */
+    public int[] query(String query, int limit) {
+        char[] q = new char[query.length()];
+        long queryMask = 0;
+        int length = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = Character.toLowerCase(query.charAt(i));
+            if (c == ' ') continue;
+            q[length++] = c;
+            queryMask |= maskOf(c);
+        }
+        if (length == 0) {
+            lastQuery = null;
+            return new int[0];
+        }
+        q = Arrays.copyOf(q, length);
+        String key = new String(q);
+
+        // Narrowing the previous query can only drop matches, so only its candidates are scanned.
+        boolean narrowing = lastQuery != null && key.startsWith(lastQuery);
+        int scanCount = narrowing ? lastMatchCount : count;
+        int[] scan = narrowing ? lastMatches : null;
+        int[] matches = new int[Math.max(16, Math.min(scanCount, 1024))];
+        int matchCount = 0;
+
+        int[] topIndex = new int[limit];
+        int[] topScore = new int[limit];
+        int topCount = 0;
+        // The best score a path of length 0 could get outside its name; longer paths get less.
+        int bestPossible = BOUNDARY_BONUS + (q.length - 1) * CONSECUTIVE_BONUS;
+        for (int k = 0; k < scanCount; k++) {
+            int i = scan != null ? scan[k] : k;
+            if ((masks[i] & queryMask) != queryMask) continue;
+            int start = starts[i];
+            int end = starts[i + 1];
+            int score = MISS;
+            if ((nameMasks[i] & queryMask) == queryMask) {
+                score = match(q, nameStarts[i], end, start);
+                if (score != MISS) score += NAME_BONUS - (end - start);
+            }
+            if (score == MISS) {
+                if (topCount == limit && bestPossible - (end - start) <= topScore[limit - 1]) {
+                    // Cannot make the list, so it is not matched now; it stays a candidate for narrower queries.
+                    if (matchCount == matches.length) matches = Arrays.copyOf(matches, matchCount * 2);
+                    matches[matchCount++] = i;
+                    continue;
+                }
+                score = match(q, start, end, start);
+                if (score == MISS) continue;
+                score -= end - start;
+            }
+            if (matchCount == matches.length) matches = Arrays.copyOf(matches, matchCount * 2);
+            matches[matchCount++] = i;
+            if (topCount == limit && score <= topScore[limit - 1]) continue;
+            // Insertion into the short sorted top list.
+            int at = topCount < limit ? topCount++ : limit - 1;
+            while (at > 0 && topScore[at - 1] < score) {
+                topScore[at] = topScore[at - 1];
+                topIndex[at] = topIndex[at - 1];
+                at--;
+            }
+            topScore[at] = score;
+            topIndex[at] = i;
+        }
+        lastQuery = key;
+        lastMatches = matches;
+        lastMatchCount = matchCount;
+        return Arrays.copyOf(topIndex, topCount);
+    }
+
+    // Scores the leftmost in-order match of q in [from, end), or MISS.
+    private int match(char[] q, int from, int end, int pathStart) {
+        int score = 0;
+        int previous = -1;
+        int matched = 0;
+        for (int p = from; p < end && matched < q.length; p++) {
+            if (folded[p] != q[matched]) continue;
+            if (previous >= 0 && p == previous + 1) {
+                score += CONSECUTIVE_BONUS;
+            } else if (isWordStart(p, pathStart)) {
+                score += BOUNDARY_BONUS;
+            } else if (previous >= 0) {
+                score -= Math.min(p - previous, MAX_GAP_PENALTY);
+            }
+            previous = p;
+            matched++;
+        }
+        return matched == q.length ? score : MISS;
+    }
+
+    private boolean isWordStart(int p, int pathStart) {
+        if (p == pathStart) return true;
+        char before = paths[p - 1];
+        char c = paths[p];
+        return before == '/' || before == '_' || before == '-' || before == '.' || before == ' '
+                || (Character.isUpperCase(c) && !Character.isUpperCase(before));
+    }
+
+    // One bit per letter and digit, the rest of the characters folded into the remaining bits.
+    private static long maskOf(char c) {
+        if (c >= 'a' && c <= 'z') return 1L << (c - 'a');
+        if (c >= '0' && c <= '9') return 1L << (26 + c - '0');
+        return 1L << (36 + c % 28);
+    }
+}
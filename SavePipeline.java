@@ -0,0 +1,534 @@
+package com.codestudio.mobile;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The single path every save goes through.
+ * <p>
+ * Documents are encoded to UTF-8 chunk by chunk straight from the piece table into a pooled
+ * direct buffer and written to the file descriptor's channel, so a save never materializes the
+ * file as a String or byte[]. Where the provider makes it safe (plain files and the external
+ * storage provider, whose document ids are paths) the data is first written to a temporary
+ * sibling and then swapped in, so an interrupted save cannot leave a truncated file behind;
+ * elsewhere the target is rewritten in place with "rwt".
+ * <p>
+ * Saves are queued and started in order while two limits allow: the total number of saves in
+ * flight, and the number in flight against the same provider (authority), so a slow SD card
+ * or cloud provider cannot take every slot while local files wait behind it. Listener
+ * callbacks are delivered on the main thread.
+ */
+public class SavePipeline {
+
+    private static final String TAG = "SavePipeline";
+    private static final int POOLED_BUFFERS = 4;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int CHUNK_CHARS = 16 * 1024;
+    private static final long PROGRESS_INTERVAL_BYTES = 512 * 1024;
+    private static final String EXTERNAL_STORAGE_AUTHORITY = "com.android.externalstorage.documents";
+    private static final String TEMP_SUFFIX = ".saving~";
+    private static final String BACKUP_SUFFIX = ".old~";
+
+    private static SavePipeline instance;
+
+    private final Context context;
+    // Threads are only started by dispatch(), so at most `parallelism` are ever busy.
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueue<Buffers> bufferPool = new ArrayBlockingQueue<>(POOLED_BUFFERS);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<SaveObserver> observers = new CopyOnWriteArrayList<>();
+
+    // Guarded by this.
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+    private final Map<String, Integer> runningPerProvider = new HashMap<>();
+    private int running;
+    private int parallelism = EditorActivity.DEFAULT_SAVE_PARALLELISM;
+    private int perProvider = EditorActivity.DEFAULT_SAVE_PER_PROVIDER;
+
+    private SavePipeline(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    public static synchronized SavePipeline get(Context context) {
+        if (instance == null) instance = new SavePipeline(context);
+        return instance;
+    }
+
+    /**
+     * Sets how many saves run at once in total and against any single provider. Saves already
+     * running are not affected.
+     */
+    public synchronized void setLimits(int parallelism, int perProvider) {
+        this.parallelism = Math.max(1, parallelism);
+        this.perProvider = Math.max(1, perProvider);
+        dispatch();
+    }
+
+    /**
+     * Registers an observer that is told about every successful save, whichever path it took.
+     */
+    public void addObserver(SaveObserver observer) {
+        observers.add(observer);
+    }
+
+    public void removeObserver(SaveObserver observer) {
+        observers.remove(observer);
+    }
+
+    public void save(Uri target, PieceTable document, Listener listener) {
+        submit(target, document, null, listener);
+    }
+
+    public void save(Uri target, byte[] content, Listener listener) {
+        submit(target, null, content, listener);
+    }
+
+    public void save(FilesAdapter.FileContentItem item, Listener listener) {
+        submit(item.getUri(), item.getDocument(), null, listener);
+    }
+
+    /**
+     * Saves several files as one operation. Each item's {@link FilesAdapter.FileContentItem#notifySaved()}
+     * runs as soon as that file is written; once every file has either been written or failed,
+     * listener receives a single {@link BatchResult}.
+     */
+    public void saveAll(List<FilesAdapter.FileContentItem> items, BatchListener listener) {
+        long startNanos = System.nanoTime();
+        List<Result> saved = new ArrayList<>();
+        Map<Uri, Exception> failures = new LinkedHashMap<>();
+        if (items.isEmpty()) {
+            mainHandler.post(() -> listener.onBatchFinished(new BatchResult(saved, failures, 0)));
+            return;
+        }
+        int[] pending = {items.size()};
+        for (FilesAdapter.FileContentItem item : items) {
+            save(item, new Listener() {
+                @Override
+                public void onProgress(Uri uri, long bytesWritten, long totalChars) {
+                }
+
+                @Override
+                public void onSaved(Result result) {
+                    saved.add(result);
+                    item.notifySaved();
+                    onFinished();
+                }
+
+                @Override
+                public void onFailed(Uri uri, Exception e) {
+                    failures.put(uri, e);
+                    onFinished();
+                }
+
+                private void onFinished() {
+                    if (--pending[0] > 0) return;
+                    listener.onBatchFinished(new BatchResult(saved, failures, System.nanoTime() - startNanos));
+                }
+            });
+        }
+    }
+
+    private synchronized void submit(Uri target, PieceTable document, byte[] content, Listener listener) {
+        queue.add(new Job(target, document, content, listener));
+        dispatch();
+    }
+
+    // Starts every queued job that fits both limits, oldest first. Called with the lock held.
+    private void dispatch() {
+        Iterator<Job> iterator = queue.iterator();
+        while (running < parallelism && iterator.hasNext()) {
+            Job job = iterator.next();
+            Integer busy = runningPerProvider.get(job.provider);
+            int count = busy != null ? busy : 0;
+            if (count >= perProvider) continue;
+            iterator.remove();
+            running++;
+            runningPerProvider.put(job.provider, count + 1);
+            executor.execute(job);
+        }
+    }
+
+    private synchronized void finished(Job job) {
+        running--;
+        int count = runningPerProvider.get(job.provider) - 1;
+        if (count == 0) {
+            runningPerProvider.remove(job.provider);
+        } else {
+            runningPerProvider.put(job.provider, count);
+        }
+        dispatch();
+    }
+
+    private static String providerOf(Uri target) {
+        String authority = target.getAuthority();
+        return "file".equals(target.getScheme()) || authority == null ? "file" : authority;
+    }
+
+    private Result write(Uri target, PieceTable document, byte[] content, Listener listener) throws IOException {
+        long startNanos = System.nanoTime();
+        long total = content != null ? content.length : document.length();
+        Progress progress = new Progress(target, total, listener);
+        boolean swapped;
+        if ("file".equals(target.getScheme()) && target.getPath() != null) {
+            writeFileAtomically(new File(target.getPath()), document, content, progress);
+            swapped = true;
+        } else {
+            swapped = writeDocumentViaTemp(target, document, content, progress);
+            if (!swapped) writeInPlace(target, document, content, progress);
+        }
+        if (!observers.isEmpty()) {
+            CharSequence text = document != null ? document : new String(content, StandardCharsets.UTF_8);
+            for (SaveObserver observer : observers) observer.onFileSaved(target, text);
+        }
+        return new Result(target, progress.bytesWritten, System.nanoTime() - startNanos, swapped);
+    }
+
+    private void writeFileAtomically(File file, PieceTable document, byte[] content, Progress progress) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            writeTo(out.getChannel(), document, content, progress);
+            out.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Writes into a temporary sibling document and swaps it in. Only attempted for the external
+     * storage provider, where renaming a document back to the original name yields the original
+     * URI, so open tabs keep pointing at the saved file.
+     *
+     * @return false if the provider does not allow it and nothing was changed
+     */
+    private boolean writeDocumentViaTemp(Uri target, PieceTable document, byte[] content, Progress progress) throws IOException {
+        if (!EXTERNAL_STORAGE_AUTHORITY.equals(target.getAuthority()) || !DocumentsContract.isDocumentUri(context, target)) {
+            return false;
+        }
+        ContentResolver resolver = context.getContentResolver();
+        String documentId = DocumentsContract.getDocumentId(target);
+        int slash = documentId.lastIndexOf('/');
+        if (slash < 0) return false;
+        String name = documentId.substring(slash + 1);
+        Uri parent;
+        try {
+            parent = DocumentsContract.buildDocumentUriUsingTree(target, documentId.substring(0, slash));
+        } catch (IllegalArgumentException e) {
+            return false; // Not reachable through a granted tree
+        }
+
+        Uri temp;
+        try {
+            temp = DocumentsContract.createDocument(resolver, parent, "application/octet-stream", name + TEMP_SUFFIX);
+        } catch (FileNotFoundException | RuntimeException e) {
+            return false;
+        }
+        if (temp == null) return false;
+
+        try {
+            writeInPlace(temp, document, content, progress);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(resolver, temp);
+            throw e;
+        }
+
+        // From here on the old file is only renamed, never lost: a failed swap restores it.
+        Uri backup = renameQuietly(resolver, target, name + BACKUP_SUFFIX);
+        if (backup == null) {
+            // The provider refused the rename; fall back to rewriting the target in place.
+            deleteQuietly(resolver, temp);
+            progress.reset();
+            return false;
+        }
+        Uri renamed = renameQuietly(resolver, temp, name);
+        if (renamed == null) {
+            renameQuietly(resolver, backup, name);
+            deleteQuietly(resolver, temp);
+            throw new IOException("Could not replace " + name);
+        }
+        if (!renamed.equals(target)) Log.w(TAG, "Saved " + name + " under a new URI " + renamed);
+        deleteQuietly(resolver, backup);
+        return true;
+    }
+
+    private void writeInPlace(Uri target, PieceTable document, byte[] content, Progress progress) throws IOException {
+        ContentResolver resolver = context.getContentResolver();
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openFileDescriptor(target, "rwt");
+        } catch (FileNotFoundException | UnsupportedOperationException e) {
+            // Some providers only hand out streams.
+        }
+        if (descriptor != null) {
+            try (ParcelFileDescriptor pfd = descriptor; FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+                writeTo(out.getChannel(), document, content, progress);
+                try {
+                    out.getFD().sync();
+                } catch (IOException e) {
+                    // Pipes and sockets cannot be synced; the data is already written.
+                }
+            }
+            return;
+        }
+        try (OutputStream out = resolver.openOutputStream(target, "rwt")) {
+            if (out == null) throw new IOException("Could not open output stream for URI: " + target);
+            writeTo(Channels.newChannel(out), document, content, progress);
+        }
+    }
+
+    private void writeTo(WritableByteChannel channel, PieceTable document, byte[] content, Progress progress) throws IOException {
+        if (content != null) {
+            ByteBuffer bytes = ByteBuffer.wrap(content);
+            while (bytes.hasRemaining()) {
+                int count = Math.min(bytes.remaining(), BUFFER_BYTES);
+                ByteBuffer slice = bytes.slice();
+                slice.limit(count);
+                while (slice.hasRemaining()) channel.write(slice);
+                bytes.position(bytes.position() + count);
+                progress.add(count);
+            }
+        } else {
+            Buffers buffers = bufferPool.poll();
+            if (buffers == null) buffers = new Buffers();
+            try {
+                encode(channel, document, buffers, progress);
+            } finally {
+                buffers.bytes.clear();
+                bufferPool.offer(buffers);
+            }
+        }
+    }
+
+    private void encode(WritableByteChannel channel, PieceTable document, Buffers buffers, Progress progress) throws IOException {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.wrap(buffers.chars);
+        chars.limit(0);
+        ByteBuffer bytes = buffers.bytes;
+        bytes.clear();
+        int length = document.length();
+        int position = 0;
+        while (true) {
+            // A high surrogate left over from the previous chunk stays at the front.
+            chars.compact();
+            int count = Math.min(chars.remaining(), length - position);
+            document.getChars(position, position + count, buffers.chars, chars.position());
+            chars.position(chars.position() + count);
+            position += count;
+            chars.flip();
+            boolean endOfInput = position >= length;
+            CoderResult result;
+            while ((result = encoder.encode(chars, bytes, endOfInput)).isOverflow()) {
+                drain(channel, bytes, progress);
+            }
+            if (result.isError()) result.throwException();
+            if (endOfInput) break;
+        }
+        while (encoder.flush(bytes).isOverflow()) drain(channel, bytes, progress);
+        drain(channel, bytes, progress);
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer bytes, Progress progress) throws IOException {
+        bytes.flip();
+        int count = bytes.remaining();
+        while (bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+        progress.add(count);
+    }
+
+    private static Uri renameQuietly(ContentResolver resolver, Uri uri, String displayName) {
+        try {
+            return DocumentsContract.renameDocument(resolver, uri, displayName);
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "Could not rename " + uri + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void deleteQuietly(ContentResolver resolver, Uri uri) {
+        try {
+            DocumentsContract.deleteDocument(resolver, uri);
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.w(TAG, "Could not delete " + uri + ": " + e.getMessage());
+        }
+    }
+
+    private final class Job implements Runnable {
+        final Uri target;
+        final String provider;
+        final PieceTable document;
+        final byte[] content;
+        final Listener listener;
+
+        Job(Uri target, PieceTable document, byte[] content, Listener listener) {
+            this.target = target;
+            this.provider = providerOf(target);
+            this.document = document;
+            this.content = content;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Result result = write(target, document, content, listener);
+                Log.i(TAG, "Saved " + target.getLastPathSegment() + ": " + result);
+                if (listener != null) mainHandler.post(() -> listener.onSaved(result));
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error saving " + target + ": " + e.getMessage());
+                if (listener != null) mainHandler.post(() -> listener.onFailed(target, e));
+            } finally {
+                finished(this);
+            }
+        }
+    }
+
+    private static final class Buffers {
+        final char[] chars = new char[CHUNK_CHARS];
+        final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    }
+
+    private final class Progress {
+        final Uri uri;
+        final long totalChars;
+        final Listener listener;
+        long bytesWritten;
+        long nextReport = PROGRESS_INTERVAL_BYTES;
+
+        Progress(Uri uri, long totalChars, Listener listener) {
+            this.uri = uri;
+            this.totalChars = totalChars;
+            this.listener = listener;
+        }
+
+        void reset() {
+            bytesWritten = 0;
+            nextReport = PROGRESS_INTERVAL_BYTES;
+        }
+
+        void add(long bytes) {
+            bytesWritten += bytes;
+            if (listener == null || bytesWritten < nextReport) return;
+            nextReport = bytesWritten + PROGRESS_INTERVAL_BYTES;
+            long written = bytesWritten;
+            mainHandler.post(() -> listener.onProgress(uri, written, totalChars));
+        }
+    }
+
+    public static final class Result {
+        public final Uri uri;
+        public final long bytes;
+        public final long elapsedNanos;
+        // True when the file was replaced through a temporary copy rather than rewritten in place.
+        public final boolean atomic;
+
+        Result(Uri uri, long bytes, long elapsedNanos, boolean atomic) {
+            this.uri = uri;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.atomic = atomic;
+        }
+
+        public double getBytesPerSecond() {
+            return elapsedNanos > 0 ? bytes * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return bytes + " bytes in " + (elapsedNanos / 1_000_000) + " ms ("
+                    + String.format(Locale.US, "%.1f", getBytesPerSecond() / (1024 * 1024)) + " MB/s"
+                    + (atomic ? ", swapped)" : ", in place)");
+        }
+    }
+
+    public static final class BatchResult {
+        public final List<Result> saved;
+        // Failed files in the order they failed, with the error each one reported.
+        public final Map<Uri, Exception> failures;
+        public final long elapsedNanos;
+
+        BatchResult(List<Result> saved, Map<Uri, Exception> failures, long elapsedNanos) {
+            this.saved = Collections.unmodifiableList(saved);
+            this.failures = Collections.unmodifiableMap(failures);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean isSuccessful() {
+            return failures.isEmpty();
+        }
+
+        public long getTotalBytes() {
+            long total = 0;
+            for (Result result : saved) total += result.bytes;
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return saved.size() + " saved, " + failures.size() + " failed, " + getTotalBytes() + " bytes in "
+                    + (elapsedNanos / 1_000_000) + " ms";
+        }
+    }
+
+    public interface SaveObserver {
+        /**
+         * Called on the saving thread right after target was written with text.
+         */
+        void onFileSaved(Uri target, CharSequence text);
+    }
+
+    public interface BatchListener {
+        void onBatchFinished(BatchResult result);
+    }
+
+    public interface Listener {
+        /**
+         * @param bytesWritten UTF-8 bytes written so far
+         * @param totalChars   size of the source, in chars for documents and bytes for raw content
+         */
+        void onProgress(Uri uri, long bytesWritten, long totalChars);
+
+        void onSaved(Result result);
+
+        void onFailed(Uri uri, Exception e);
+    }
+}
@@ -0,0 +1,277 @@
+package com.codestudio.mobile;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs programs as sessions, several at a time.
+ * <p>
+ * Every command becomes a session with its own ID, process and I/O threads, so a long-running
+ * program no longer blocks other runs. Sessions wait in a queue ordered by priority, then by
+ * submission, and are started while fewer than maxRunning are running. Interactive sessions
+ * (commands typed into a terminal) may use INTERACTIVE_RESERVE slots beyond that cap, so a
+ * quick command still starts when every slot is taken by a server or watcher. Each session
+ * keeps its process's stdin open through a {@link StdinChannel}, and its process is watched by
+ * a {@link ProcessSupervisor}, which stops it and reports how it ended. Listener callbacks are
+ * delivered on the main thread.
+ */
+public class SessionScheduler {
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int INTERACTIVE_RESERVE = 1;
+    private static final String TAG = "SessionScheduler";
+    private static final String TERMUX_PATH = "/data/data/com.termux/files/usr/bin:/data/data/com.termux/files/usr/bin/applets";
+
+    private final Handler mainHandler;
+    private final Listener listener;
+    // Threads are only started by dispatch(), so their number follows the running sessions.
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ProcessSupervisor supervisor = new ProcessSupervisor();
+
+    // Guarded by this.
+    private final PriorityQueue<Session> queue = new PriorityQueue<>((a, b) -> a.priority != b.priority
+            ? Integer.compare(a.priority, b.priority) : Long.compare(a.sequence, b.sequence));
+    private final Map<Integer, Session> sessions = new HashMap<>();
+    private int running;
+    private int maxRunning = EditorActivity.DEFAULT_MAX_RUNNING_SESSIONS;
+    private int nextId = 1;
+    private long nextSequence;
+    private boolean shutDown;
+
+    public interface Listener {
+        void onSessionStarted(Session session);
+
+        /**
+         * Output of the session, stdout and stderr interleaved as read; see {@link OutputPump}.
+         */
+        void onSessionOutput(Session session, CharSequence text);
+
+        /**
+         * Called once all of the session's output has been delivered.
+         */
+        void onSessionFinished(Session session, ProcessSupervisor.Result result);
+
+        void onSessionFailed(Session session, String message);
+    }
+
+    public SessionScheduler(Handler mainHandler, Listener listener) {
+        this.mainHandler = mainHandler;
+        this.listener = listener;
+    }
+
+    /**
+     * Sets how many sessions run at once, not counting the interactive reserve. Sessions
+     * already running are not affected.
+     */
+    public synchronized void setMaxRunning(int maxRunning) {
+        this.maxRunning = Math.max(1, maxRunning);
+        dispatch();
+    }
+
+    /**
+     * Queues command to run under sh within limits and returns the new session's ID.
+     */
+    public synchronized int submit(String name, String command, int priority, ProcessSupervisor.Limits limits) {
+        Session session = new Session(nextId++, name, command, priority, limits, nextSequence++);
+        if (shutDown) {
+            mainHandler.post(() -> listener.onSessionFailed(session, "Execution was shut down"));
+            return session.id;
+        }
+        sessions.put(session.id, session);
+        queue.add(session);
+        dispatch();
+        return session.id;
+    }
+
+    public synchronized Session getSession(int sessionId) {
+        return sessions.get(sessionId);
+    }
+
+    public synchronized boolean isQueued(int sessionId) {
+        Session session = sessions.get(sessionId);
+        return session != null && session.state == Session.QUEUED;
+    }
+
+    /**
+     * Queues input for a session's stdin without blocking. Returns false if the session is gone,
+     * its stdin is closed, or too much input is already waiting.
+     */
+    public boolean sendInput(int sessionId, String text) {
+        Session session = getSession(sessionId);
+        return session != null && session.stdin.write(text);
+    }
+
+    /**
+     * Closes a session's stdin after its queued input (Ctrl-D). Returns false if it is gone or
+     * already closed.
+     */
+    public boolean sendEndOfInput(int sessionId) {
+        Session session = getSession(sessionId);
+        return session != null && session.stdin.sendEndOfInput();
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * Removes a session that has not started yet; it finishes as stopped, not failed, since the
+     * user asked for it. Returns false if it is running or gone.
+     */
+    public synchronized boolean cancelQueued(int sessionId) {
+        Session session = sessions.get(sessionId);
+        if (session == null || session.state != Session.QUEUED) return false;
+        queue.remove(session);
+        sessions.remove(sessionId);
+        session.state = Session.DONE;
+        session.stdin.detach();
+        mainHandler.post(() -> listener.onSessionFinished(session, ProcessSupervisor.Result.stoppedBeforeStart()));
+        return true;
+    }
+
+    /**
+     * Stops a session: a queued one is dropped, a running one has its process tree stopped
+     * (killed if it is already being stopped). Returns false if there is no such session.
+     */
+    public boolean stop(int sessionId) {
+        if (cancelQueued(sessionId)) return true;
+        Session session = getSession(sessionId);
+        if (session == null || session.state != Session.RUNNING) return false;
+        synchronized (session) {
+            // Not tracked yet while its process starts; run() stops it right after tracking.
+            if (!supervisor.stop(sessionId)) session.stopRequests++;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the queue, stops starting sessions and kills every running program, so nothing
+     * keeps running without a terminal.
+     */
+    public void shutdown() {
+        List<Session> dropped;
+        synchronized (this) {
+            shutDown = true;
+            dropped = new ArrayList<>(queue);
+            queue.clear();
+            for (Session session : dropped) {
+                sessions.remove(session.id);
+                session.stdin.detach();
+            }
+        }
+        supervisor.shutdown();
+        executor.shutdown();
+        for (Session session : dropped) Log.d(TAG, "Dropped queued session " + session.id + " (" + session.name + ")");
+    }
+
+    // Starts queued sessions, best first, while there are free slots. Called with the lock held.
+    private void dispatch() {
+        while (!shutDown && !queue.isEmpty()) {
+            Session next = queue.peek();
+            int limit = next.priority == PRIORITY_INTERACTIVE ? maxRunning + INTERACTIVE_RESERVE : maxRunning;
+            if (running >= limit) return;
+            queue.poll();
+            next.state = Session.RUNNING;
+            running++;
+            executor.execute(() -> run(next));
+        }
+    }
+
+    private void run(Session session) {
+        Process process = null;
+        try {
+            ProcessBuilder builder = new ProcessBuilder("sh", "-c", ProcessSupervisor.wrap(session.command, session.limits));
+            builder.environment().put("PATH", TERMUX_PATH + ":" + System.getenv("PATH"));
+            process = builder.start();
+            synchronized (session) {
+                supervisor.track(session.id, process, session.limits);
+                // Stopped while starting: a second request kills, as it would have if tracked.
+                for (int i = 0; i < Math.min(2, session.stopRequests); i++) supervisor.stop(session.id);
+            }
+            session.stdin.attach(process.getOutputStream(), "session-" + session.id + "-stdin");
+            mainHandler.post(() -> listener.onSessionStarted(session));
+
+            OutputPump pump = new OutputPump(mainHandler, text -> listener.onSessionOutput(session, text),
+                    OutputPump.DEFAULT_MAX_PENDING_CHARS, false);
+            ProcessStreams streams = new ProcessStreams(process, pump, "session-" + session.id);
+            streams.start();
+            streams.join();
+            ProcessSupervisor.Result result = supervisor.untrack(session.id, process.waitFor());
+            pump.finish(() -> {
+                Log.d(TAG, "Session " + session.id + " output: " + pump.describe());
+                listener.onSessionFinished(session, result);
+            });
+            Log.d(TAG, "Session " + session.id + ": " + result.describe());
+        } catch (IOException e) {
+            Log.e(TAG, "Session " + session.id + " failed to start", e);
+            mainHandler.post(() -> listener.onSessionFailed(session, e.getMessage()));
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Session " + session.id + " interrupted");
+            process.destroy();
+            supervisor.untrack(session.id, -1);
+            Thread.currentThread().interrupt();
+            mainHandler.post(() -> listener.onSessionFailed(session, "Interrupted"));
+        } catch (RuntimeException e) {
+            // E.g. ProcessBuilder rejecting the command; escaping would kill the app.
+            Log.e(TAG, "Session " + session.id + " failed", e);
+            if (process != null) {
+                process.destroy();
+                supervisor.untrack(session.id, -1);
+            }
+            mainHandler.post(() -> listener.onSessionFailed(session, e.toString()));
+        } finally {
+            finished(session);
+        }
+    }
+
+    private synchronized void finished(Session session) {
+        session.state = Session.DONE;
+        session.stdin.detach();
+        sessions.remove(session.id);
+        running--;
+        dispatch();
+    }
+
+    /**
+     * One program run. Its fields are written by the scheduler and safe to read from any thread.
+     */
+    public static final class Session {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int DONE = 2;
+
+        public final int id;
+        public final String name;
+        public final String command;
+        public final int priority;
+        public final ProcessSupervisor.Limits limits;
+        final long sequence;
+        final StdinChannel stdin = new StdinChannel();
+        volatile int state = QUEUED;
+        // Stop requests made before the process was tracked. Guarded by the session.
+        int stopRequests;
+
+        Session(int id, String name, String command, int priority, ProcessSupervisor.Limits limits, long sequence) {
+            this.id = id;
+            this.name = name;
+            this.command = command;
+            this.priority = priority;
+            this.limits = limits;
+            this.sequence = sequence;
+        }
+
+        public boolean isRunning() {
+            return state == RUNNING;
+        }
+    }
+}
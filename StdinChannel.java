@@ -0,0 +1,90 @@
+package com.codestudio.mobile;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A session's stdin, open for as long as its process runs.
+ * <p>
+ * Callers on the main thread only queue what the user typed; a writer thread of the session
+ * writes it to the process's pipe, so a program that is not reading can never block the UI.
+ * The queue is small, and input that does not fit is refused rather than buffered without
+ * end. Input typed while the session is still queued waits until its process starts.
+ * {@link #sendEndOfInput()} closes the pipe after everything queued before it, which is what
+ * Ctrl-D does at a terminal.
+ */
+public class StdinChannel {
+
+    private static final String TAG = "StdinChannel";
+    public static final int MAX_QUEUED_WRITES = 64;
+    private static final byte[] END_OF_INPUT = new byte[0];
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(MAX_QUEUED_WRITES);
+    // Set once end of input was sent or the process is gone; nothing is accepted afterwards.
+    private volatile boolean closed;
+    private Thread writer;
+
+    /**
+     * Queues text (UTF-8) for the process without waiting. Returns false if the channel is
+     * closed or the queue is full.
+     */
+    public boolean write(String text) {
+        return !closed && queue.offer(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Closes the process's stdin once the text queued so far is written. Returns false if it
+     * was already closed.
+     */
+    public boolean sendEndOfInput() {
+        if (closed) return false;
+        closed = true;
+        // With a full queue the writer is busy and finds the queue drained and closed instead.
+        queue.offer(END_OF_INPUT);
+        return true;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Starts writing to the process's stdin on a thread of its own.
+     */
+    public synchronized void attach(OutputStream stdin, String name) {
+        writer = new Thread(() -> drain(stdin), name);
+        writer.start();
+    }
+
+    /**
+     * Drops queued input and stops the writer, e.g. once the process has exited.
+     */
+    public synchronized void detach() {
+        closed = true;
+        queue.clear();
+        if (writer != null) writer.interrupt();
+    }
+
+    private void drain(OutputStream stdin) {
+        try (OutputStream out = stdin) {
+            while (true) {
+                byte[] data = closed ? queue.poll() : queue.take();
+                if (data == null || data == END_OF_INPUT) break;
+                out.write(data);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The process exited or closed its stdin.
+            Log.w(TAG, "Stdin closed: " + e.getMessage());
+            closed = true;
+            queue.clear();
+        }
+    }
+}
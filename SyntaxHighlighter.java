@@ -0,0 +1,358 @@
+package com.codestudio.mobile;
+
+import android.os.Handler;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Incremental highlighter for one document.
+ * <p>
+ * The lexer state at the start of every line is cached. An edit only marks the lines it
+ * touched as dirty; a background pass then re-lexes from the first dirty line and stops as
+ * soon as a line past the dirty range ends in the same state it had before, because from
+ * there on nothing can change. The same pass tokenizes the visible lines (plus a margin), and
+ * only those tokens are handed to the view, so the lexing cost of an edit or a scroll is
+ * independent of the document length.
+ * <p>
+ * A pass only reads the cached states; the ones it re-lexes go into a delta that the main
+ * thread merges when the pass finishes. A pass overtaken by an edit stops early, and the part
+ * of its delta above the edit is still merged, so the next pass resumes where it stopped
+ * instead of starting over (while a file streams in, every chunk overtakes the pass).
+ * <p>
+ * All methods must be called on the main thread; the listener is called there too.
+ */
+public class SyntaxHighlighter {
+
+    private static final long UPDATE_DELAY_MS = 50;
+    private static final int WINDOW_MARGIN_LINES = 40;
+    private static final int UNKNOWN_STATE = -1;
+
+    private static final int COLOR_KEYWORD = 0xFF3F6EC6;
+    private static final int COLOR_STRING = 0xFF2E8B57;
+    private static final int COLOR_COMMENT = 0xFF808080;
+    private static final int COLOR_NUMBER = 0xFFB5651D;
+
+    private final SyntaxLanguage language;
+    private final ExecutorService worker;
+    private final Handler mainHandler;
+    private final TextSource source;
+    private final Runnable updateRunnable = this::startUpdate;
+    private Listener listener;
+
+    // Line starts of the current text, maintained from the reported edits.
+    private final LineIndex lineIndex = new LineIndex();
+    // states[i] is the lexer state at the start of line i, for i < stateCount. Shifted in place
+    // on edits, except when that would change the lines a running pass reads; then the edit
+    // works on a copy.
+    private int[] states = {SyntaxLanguage.STATE_NORMAL};
+    private int stateCount = 1;
+    private Pass runningPass;
+    // First line changed by an edit since runningPass started; lines above it are untouched.
+    private int editedFrom = Integer.MAX_VALUE;
+    private int dirtyFrom = -1;
+    private int dirtyTo = -1;
+    private int generation;
+    private boolean updateScheduled;
+
+    private int visibleFirst;
+    private int visibleLast = -1;
+    // Tokens of lines [windowFirst, windowLast] as (column, length, type) triples.
+    private int windowFirst;
+    private int windowLast = -1;
+    private int[] windowLineTokens = new int[1];
+    private int[] windowTokens = new int[0];
+
+    public SyntaxHighlighter(SyntaxLanguage language, ExecutorService worker, Handler mainHandler, TextSource source) {
+        this.language = language;
+        this.worker = worker;
+        this.mainHandler = mainHandler;
+        this.source = source;
+    }
+
+    public static int colorFor(int tokenType) {
+        switch (tokenType) {
+            case SyntaxLanguage.TOKEN_KEYWORD:
+                return COLOR_KEYWORD;
+            case SyntaxLanguage.TOKEN_STRING:
+                return COLOR_STRING;
+            case SyntaxLanguage.TOKEN_COMMENT:
+                return COLOR_COMMENT;
+            default:
+                return COLOR_NUMBER;
+        }
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Forgets everything; the document is empty again.
+     */
+    public void reset() {
+        generation++;
+        lineIndex.rebuild("");
+        states = new int[]{SyntaxLanguage.STATE_NORMAL};
+        stateCount = 1;
+        if (runningPass != null) runningPass.cancelled = true;
+        editedFrom = 0;
+        dirtyFrom = -1;
+        dirtyTo = -1;
+        windowLast = -1;
+    }
+
+    public void onTextAppended(CharSequence text) {
+        int end = lineIndex.getLength();
+        onTextReplaced(end, 0, text, 0, text.length());
+    }
+
+    /**
+     * Records document.replace(start, start + removedLength, text[textStart, textEnd)).
+     */
+    public void onTextReplaced(int start, int removedLength, CharSequence text, int textStart, int textEnd) {
+        generation++;
+        int firstLine = lineIndex.getLineForOffset(start);
+        int removedLines = lineIndex.getLineForOffset(start + removedLength) - firstLine;
+        lineIndex.replace(start, removedLength, text, textStart, textEnd);
+        int lineCount = lineIndex.getLineCount();
+        int insertedLines = lineCount - (stateCount - removedLines);
+
+        if (runningPass != null) {
+            runningPass.cancelled = true;
+            editedFrom = Math.min(editedFrom, firstLine);
+        }
+
+        int[] shifted = states;
+        // Appends only write past the lines a running pass reads, so they stay in place.
+        boolean shared = runningPass != null && runningPass.states == states && firstLine + 1 < runningPass.stateCount;
+        if (shared || lineCount > states.length) {
+            shifted = new int[Math.max(lineCount, states.length + (states.length >> 1))];
+            System.arraycopy(states, 0, shifted, 0, firstLine + 1);
+        }
+        if (shifted != states || insertedLines != removedLines) {
+            int tail = stateCount - (firstLine + 1 + removedLines);
+            System.arraycopy(states, firstLine + 1 + removedLines, shifted, firstLine + 1 + insertedLines, tail);
+        }
+        for (int i = firstLine + 1; i <= firstLine + insertedLines; i++) shifted[i] = UNKNOWN_STATE;
+        states = shifted;
+        stateCount = lineCount;
+
+        int lastChanged = firstLine + insertedLines;
+        if (dirtyFrom < 0) {
+            dirtyFrom = firstLine;
+            dirtyTo = lastChanged;
+        } else {
+            // Lines below the edit moved by the line delta.
+            if (dirtyTo > firstLine) dirtyTo = Math.max(firstLine, dirtyTo + insertedLines - removedLines);
+            dirtyFrom = Math.min(dirtyFrom, firstLine);
+            dirtyTo = Math.max(dirtyTo, lastChanged);
+        }
+        // The previous tokens stay on screen until the pass finishes, which avoids flicker.
+        scheduleUpdate();
+    }
+
+    /**
+     * Tells the highlighter which lines are on screen. Cheap when the range is already covered.
+     */
+    public void setVisibleLines(int first, int last) {
+        visibleFirst = first;
+        visibleLast = last;
+        if (first >= windowFirst && last <= windowLast) return;
+        scheduleUpdate();
+    }
+
+    public int getWindowFirstLine() {
+        return windowFirst;
+    }
+
+    public int getWindowLastLine() {
+        return windowLast;
+    }
+
+    public int getLineStart(int line) {
+        return lineIndex.getLineStart(line);
+    }
+
+    public int getLineForOffset(int offset) {
+        return lineIndex.getLineForOffset(offset);
+    }
+
+    public int getTokenCount(int line) {
+        if (line < windowFirst || line > windowLast) return 0;
+        int index = line - windowFirst;
+        return (windowLineTokens[index + 1] - windowLineTokens[index]) / 3;
+    }
+
+    public int getTokenStart(int line, int token) {
+        return windowTokens[windowLineTokens[line - windowFirst] + token * 3];
+    }
+
+    public int getTokenLength(int line, int token) {
+        return windowTokens[windowLineTokens[line - windowFirst] + token * 3 + 1];
+    }
+
+    public int getTokenType(int line, int token) {
+        return windowTokens[windowLineTokens[line - windowFirst] + token * 3 + 2];
+    }
+
+    private void scheduleUpdate() {
+        if (updateScheduled) return;
+        updateScheduled = true;
+        mainHandler.postDelayed(updateRunnable, UPDATE_DELAY_MS);
+    }
+
+    private void startUpdate() {
+        updateScheduled = false;
+        if (runningPass != null) return;
+
+        int lineCount = lineIndex.getLineCount();
+        int first = Math.max(0, Math.min(visibleFirst, lineCount - 1) - WINDOW_MARGIN_LINES);
+        int last = Math.min(lineCount - 1, Math.max(visibleLast, first) + WINDOW_MARGIN_LINES);
+        int[] windowStarts = new int[last - first + 2];
+        for (int line = first; line <= last; line++) windowStarts[line - first] = lineIndex.getLineStart(line);
+        // One past the last line's '\n', so every line ends at windowStarts[i + 1] - 1.
+        windowStarts[last - first + 1] = last + 1 < lineCount ? lineIndex.getLineStart(last + 1) : lineIndex.getLength() + 1;
+
+        Pass pass = new Pass(generation, source.snapshot(), states, stateCount, dirtyFrom, dirtyTo,
+                dirtyFrom >= 0 ? lineIndex.getLineStart(dirtyFrom) : 0, first, windowStarts);
+        runningPass = pass;
+        editedFrom = Integer.MAX_VALUE;
+        worker.execute(() -> {
+            pass.run();
+            mainHandler.post(() -> finishUpdate(pass));
+        });
+    }
+
+    private void finishUpdate(Pass pass) {
+        runningPass = null;
+        if (pass.generation != generation) {
+            // Edited while the pass ran. States up to the first edited line are still right
+            // (they only depend on the lines above them); the rest is re-lexed from there.
+            if (pass.dirtyFrom >= 0 && dirtyFrom >= 0) {
+                int valid = pass.converged ? editedFrom : Math.min(pass.reached, editedFrom);
+                pass.mergeInto(states, valid);
+                dirtyFrom = Math.max(dirtyFrom, valid);
+            }
+            scheduleUpdate();
+            return;
+        }
+        pass.mergeInto(states, Integer.MAX_VALUE);
+        dirtyFrom = -1;
+        dirtyTo = -1;
+        windowFirst = pass.windowFirst;
+        windowLast = pass.windowFirst + pass.windowStarts.length - 2;
+        windowLineTokens = pass.lineTokens;
+        windowTokens = pass.tokens;
+        if (listener != null) listener.onHighlightChanged(windowFirst, windowLast);
+        if (visibleFirst < windowFirst || visibleLast > windowLast) scheduleUpdate();
+    }
+
+    private final class Pass implements SyntaxLanguage.TokenSink {
+        final int generation;
+        final CharSequence text;
+        final int dirtyFrom;
+        final int dirtyTo;
+        final int dirtyOffset;
+        final int stateCount;
+        final int windowFirst;
+        final int[] windowStarts;
+        // Read-only here; relexed[i] is the new state of line dirtyFrom + 1 + i.
+        final int[] states;
+        int[] relexed = new int[64];
+        // Last line whose state is in relexed, and whether the lines after it kept theirs.
+        int reached;
+        boolean converged;
+        volatile boolean cancelled;
+        int[] lineTokens;
+        int[] tokens = new int[96];
+        int tokenCount;
+
+        Pass(int generation, CharSequence text, int[] states, int stateCount, int dirtyFrom, int dirtyTo,
+             int dirtyOffset, int windowFirst, int[] windowStarts) {
+            this.generation = generation;
+            this.text = text;
+            this.states = states;
+            this.stateCount = stateCount;
+            this.dirtyFrom = dirtyFrom;
+            this.dirtyTo = dirtyTo;
+            this.dirtyOffset = dirtyOffset;
+            this.windowFirst = windowFirst;
+            this.windowStarts = windowStarts;
+            this.reached = dirtyFrom;
+        }
+
+        void run() {
+            if (dirtyFrom >= 0) relexDirtyLines();
+            if (cancelled) return;
+            int lines = windowStarts.length - 1;
+            lineTokens = new int[lines + 1];
+            for (int i = 0; i < lines; i++) {
+                lineTokens[i] = tokenCount * 3;
+                int start = windowStarts[i];
+                int end = windowStarts[i + 1] - 1;
+                language.lexLine(text, start, end, stateAt(windowFirst + i), this);
+            }
+            lineTokens[lines] = tokenCount * 3;
+        }
+
+        private void relexDirtyLines() {
+            int length = text.length();
+            int state = states[dirtyFrom];
+            int offset = dirtyOffset;
+            for (int line = dirtyFrom; line + 1 < stateCount && !cancelled; line++) {
+                int end = offset;
+                while (end < length && text.charAt(end) != '\n') end++;
+                state = language.lexLine(text, offset, end, state, null);
+                int index = line - dirtyFrom;
+                if (index == relexed.length) {
+                    int[] grown = new int[relexed.length * 2];
+                    System.arraycopy(relexed, 0, grown, 0, index);
+                    relexed = grown;
+                }
+                relexed[index] = state;
+                reached = line + 1;
+                if (line >= dirtyTo && states[line + 1] == state) {
+                    converged = true;
+                    return;
+                }
+                offset = end + 1;
+            }
+            converged = !cancelled;
+        }
+
+        private int stateAt(int line) {
+            return line > dirtyFrom && line <= reached ? relexed[line - dirtyFrom - 1] : states[line];
+        }
+
+        // Copies the relexed states of lines up to lastLine into target. Main thread only.
+        void mergeInto(int[] target, int lastLine) {
+            if (dirtyFrom < 0) return;
+            int count = Math.min(reached, lastLine) - dirtyFrom;
+            if (count > 0) System.arraycopy(relexed, 0, target, dirtyFrom + 1, count);
+        }
+
+        @Override
+        public void onToken(int start, int length, int type) {
+            if ((tokenCount + 1) * 3 > tokens.length) {
+                int[] grown = new int[tokens.length * 2];
+                System.arraycopy(tokens, 0, grown, 0, tokenCount * 3);
+                tokens = grown;
+            }
+            int slot = tokenCount++ * 3;
+            tokens[slot] = start;
+            tokens[slot + 1] = length;
+            tokens[slot + 2] = type;
+        }
+    }
+
+    public interface TextSource {
+        /**
+         * Returns an immutable view of the current text; called on the main thread.
+         */
+        CharSequence snapshot();
+    }
+
+    public interface Listener {
+        void onHighlightChanged(int firstLine, int lastLine);
+    }
+}
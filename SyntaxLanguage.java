@@ -0,0 +1,249 @@
+package com.codestudio.mobile;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Line-oriented tokenizer for the languages the app can run, keyed by the same language keys
+ * as {@link CommandFetcher#mapExtensionToKey(String)}.
+ * <p>
+ * A line is lexed from an int state describing what is still open at its start (a block
+ * comment or a multi-line string) and returns the state at its end, so a document can be
+ * re-lexed line by line from any line whose start state is known.
+ */
+public class SyntaxLanguage {
+
+    public static final int STATE_NORMAL = 0;
+    public static final int STATE_BLOCK_COMMENT = 1;
+    public static final int STATE_TRIPLE_DOUBLE = 2;
+    public static final int STATE_TRIPLE_SINGLE = 3;
+    public static final int STATE_BACKTICK = 4;
+
+    public static final int TOKEN_KEYWORD = 1;
+    public static final int TOKEN_STRING = 2;
+    public static final int TOKEN_COMMENT = 3;
+    public static final int TOKEN_NUMBER = 4;
+
+    private static final String C_FAMILY = "break case char const continue default do double else enum extern float for goto if int long register return short signed sizeof static struct switch typedef union unsigned void volatile while";
+
+    private final Set<String> keywords;
+    private final String[] lineComments;
+    private final String blockStart;
+    private final String blockEnd;
+    private final boolean tripleQuotes;
+    private final boolean backtickStrings;
+    private final boolean lifetimes;
+    private final boolean variables;
+
+    private SyntaxLanguage(String keywords, String[] lineComments, String blockStart, String blockEnd,
+                           boolean tripleQuotes, boolean backtickStrings, boolean lifetimes, boolean variables) {
+        this.keywords = new HashSet<>(Arrays.asList(keywords.split(" ")));
+        this.lineComments = lineComments;
+        this.blockStart = blockStart;
+        this.blockEnd = blockEnd;
+        this.tripleQuotes = tripleQuotes;
+        this.backtickStrings = backtickStrings;
+        this.lifetimes = lifetimes;
+        this.variables = variables;
+    }
+
+    private static SyntaxLanguage cLike(String keywords, boolean backtickStrings) {
+        return new SyntaxLanguage(keywords, new String[]{"//"}, "/*", "*/", false, backtickStrings, false, false);
+    }
+
+    private static SyntaxLanguage hashComments(String keywords, boolean variables) {
+        return new SyntaxLanguage(keywords, new String[]{"#"}, null, null, false, false, false, variables);
+    }
+
+    /**
+     * Returns the lexer for a language key, or null if the language is not highlighted.
+     */
+    public static SyntaxLanguage forKey(String key) {
+        if (key == null) return null;
+        switch (key) {
+            case "py":
+                return new SyntaxLanguage("False None True and as assert async await break class continue def del elif else except finally for from global if import in is lambda nonlocal not or pass raise return self try while with yield",
+                        new String[]{"#"}, null, null, true, false, false, false);
+            case "java":
+                return cLike("abstract assert boolean break byte case catch char class const continue default do double else enum extends final finally float for goto if implements import instanceof int interface long native new null package private protected public return short static strictfp super switch synchronized this throw throws transient true false try var void volatile while record yield", false);
+            case "c":
+                return cLike(C_FAMILY + " NULL bool true false inline restrict", false);
+            case "cpp":
+                return cLike(C_FAMILY + " auto bool catch class constexpr delete explicit false friend inline mutable namespace new noexcept nullptr operator override private protected public template this throw true try typename using virtual", false);
+            case "node":
+                return cLike("async await break case catch class const continue debugger default delete do else export extends false finally for function if import in instanceof let new null of return static super switch this throw true try typeof undefined var void while with yield", true);
+            case "go":
+                return cLike("break case chan const continue default defer else fallthrough false for func go goto if import interface iota map nil package range return select struct switch true type var", true);
+            case "rust":
+                return new SyntaxLanguage("as async await break const continue crate dyn else enum extern false fn for if impl in let loop match mod move mut pub ref return self Self static struct super trait true type unsafe use where while",
+                        new String[]{"//"}, "/*", "*/", false, false, true, false);
+            case "kotlin":
+                return cLike("as break class continue do else false for fun if in interface is null object package return super this throw true try typealias typeof val var when while by companion data enum import init lateinit open override private protected public sealed suspend", false);
+            case "csharp":
+                return cLike("abstract as base bool break byte case catch char class const continue decimal default delegate do double else enum event explicit extern false finally float for foreach if implicit in int interface internal is long namespace new null object operator out override params private protected public readonly ref return sealed short static string struct switch this throw true try typeof uint ulong using var virtual void while async await", false);
+            case "php":
+                return new SyntaxLanguage("abstract and array as break case catch class const continue default do echo else elseif empty extends false final finally fn for foreach function global if implements include instanceof interface isset namespace new null or private protected public require return static switch this throw true try use var while",
+                        new String[]{"//", "#"}, "/*", "*/", false, false, false, true);
+            case "ruby":
+                return hashComments("BEGIN END alias and begin break case class def defined? do else elsif end ensure false for if in module next nil not or redo rescue retry return self super then true undef unless until when while yield require", false);
+            case "perl":
+                return hashComments("my our local sub if elsif else unless while until for foreach do last next redo return use require package print die eval and or not", true);
+            case "lua":
+                return new SyntaxLanguage("and break do else elseif end false for function goto if in local nil not or repeat return then true until while",
+                        new String[]{"--"}, "--[[", "]]", false, false, false, false);
+            case "terminal":
+                return hashComments("if then else elif fi for while until do done case esac in function return export local readonly echo exit", true);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Lexes text[start, end) — one line without its terminator — starting in the given state.
+     * Tokens are reported to sink as offsets relative to start; sink may be null when only
+     * the resulting state is needed, in which case nothing is allocated.
+     *
+     * @return the state at the end of the line
+     */
+    public int lexLine(CharSequence text, int start, int end, int state, TokenSink sink) {
+        int i = start;
+        while (i < end) {
+            if (state != STATE_NORMAL) {
+                String close = closingDelimiter(state);
+                int found = indexOf(text, close, i, end, state != STATE_BLOCK_COMMENT);
+                int stop = found < 0 ? end : found + close.length();
+                if (sink != null) sink.onToken(i - start, stop - i, state == STATE_BLOCK_COMMENT ? TOKEN_COMMENT : TOKEN_STRING);
+                if (found < 0) return state;
+                i = stop;
+                state = STATE_NORMAL;
+                continue;
+            }
+
+            // Block comments are checked first because Lua's "--[[" starts with its line comment.
+            if (blockStart != null && startsWith(text, i, end, blockStart)) {
+                state = STATE_BLOCK_COMMENT;
+                if (sink != null) sink.onToken(i - start, blockStart.length(), TOKEN_COMMENT);
+                i += blockStart.length();
+                continue;
+            }
+            if (isLineComment(text, i, end)) {
+                if (sink != null) sink.onToken(i - start, end - i, TOKEN_COMMENT);
+                return STATE_NORMAL;
+            }
+            char c = text.charAt(i);
+            if (tripleQuotes && (startsWith(text, i, end, "\"\"\"") || startsWith(text, i, end, "'''"))) {
+                state = c == '"' ? STATE_TRIPLE_DOUBLE : STATE_TRIPLE_SINGLE;
+                if (sink != null) sink.onToken(i - start, 3, TOKEN_STRING);
+                i += 3;
+                continue;
+            }
+            if (backtickStrings && c == '`') {
+                state = STATE_BACKTICK;
+                if (sink != null) sink.onToken(i - start, 1, TOKEN_STRING);
+                i++;
+                continue;
+            }
+            if (c == '"' || c == '\'') {
+                if (c == '\'' && lifetimes && isLifetime(text, i, end)) {
+                    i++;
+                    continue;
+                }
+                int stop = skipQuoted(text, i + 1, end, c);
+                if (sink != null) sink.onToken(i - start, stop - i, TOKEN_STRING);
+                i = stop;
+                continue;
+            }
+            if (c >= '0' && c <= '9') {
+                int stop = i + 1;
+                while (stop < end && (Character.isLetterOrDigit(text.charAt(stop)) || text.charAt(stop) == '.' || text.charAt(stop) == '_'))
+                    stop++;
+                if (sink != null) sink.onToken(i - start, stop - i, TOKEN_NUMBER);
+                i = stop;
+                continue;
+            }
+            if (isIdentifierStart(c) || (variables && c == '$')) {
+                int stop = i + 1;
+                while (stop < end && isIdentifierPart(text.charAt(stop))) stop++;
+                if (stop < end && text.charAt(stop) == '?') stop++;
+                if (sink != null && (c == '$' || keywords.contains(text.subSequence(i, stop).toString()))) {
+                    sink.onToken(i - start, stop - i, TOKEN_KEYWORD);
+                }
+                i = stop;
+                continue;
+            }
+            i++;
+        }
+        return state;
+    }
+
+    private String closingDelimiter(int state) {
+        switch (state) {
+            case STATE_BLOCK_COMMENT:
+                return blockEnd;
+            case STATE_TRIPLE_DOUBLE:
+                return "\"\"\"";
+            case STATE_TRIPLE_SINGLE:
+                return "'''";
+            default:
+                return "`";
+        }
+    }
+
+    private boolean isLineComment(CharSequence text, int i, int end) {
+        for (String prefix : lineComments) {
+            if (startsWith(text, i, end, prefix)) return true;
+        }
+        return false;
+    }
+
+    // Rust lifetimes ('a, 'static) look like the start of a char literal.
+    private static boolean isLifetime(CharSequence text, int i, int end) {
+        if (i + 1 >= end || !isIdentifierStart(text.charAt(i + 1))) return false;
+        return i + 2 >= end || text.charAt(i + 2) != '\'';
+    }
+
+    // Returns the offset just past the closing quote, or end if the string is unterminated.
+    private static int skipQuoted(CharSequence text, int i, int end, char quote) {
+        while (i < end) {
+            char c = text.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static int indexOf(CharSequence text, String target, int from, int end, boolean escapes) {
+        for (int i = from; i + target.length() <= end; i++) {
+            if (escapes && text.charAt(i) == '\\') {
+                i++;
+            } else if (startsWith(text, i, end, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(CharSequence text, int i, int end, String prefix) {
+        if (i + prefix.length() > end) return false;
+        for (int k = 0; k < prefix.length(); k++) {
+            if (text.charAt(i + k) != prefix.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    public interface TokenSink {
+        void onToken(int start, int length, int type);
+    }
+}
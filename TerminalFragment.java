@@ -2,6 +2,9 @@ package com.codestudio.mobile;
 
 import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.KeyEvent;
@@ -24,6 +27,8 @@ public class TerminalFragment extends Fragment {
     // Scaling constants
     private final float MIN_SCALE = 0.5f;
     private final float MAX_SCALE = 3.0f;
+    // Output kept on screen; older text is trimmed in one go so appends stay cheap.
+    private static final int MAX_SCROLLBACK_CHARS = 512 * 1024;
     private boolean executionCompleted = false;
     private TextView output;
     private EditText userInput;
@@ -33,6 +38,9 @@ public class TerminalFragment extends Fragment {
     private float baseSizeSp;
     private ScaleGestureDetector scaleDetector;
     private Uri selfUri;
+    // The session whose output this tab shows, and output that arrived before the view existed.
+    private int sessionId = CodeExecutionManager.NO_SESSION;
+    private SpannableStringBuilder earlyOutput;
 
     public static TerminalFragment newInstance(Uri uri) {
         TerminalFragment fragment = new TerminalFragment();
@@ -103,6 +111,16 @@ public class TerminalFragment extends Fragment {
             return false;
         });
 
+        // Ctrl-D, from a hardware keyboard or the ^D button, ends the program's input.
+        view.findViewById(R.id.endOfInput).setOnClickListener(v -> submitEndOfInput());
+        userInput.setOnKeyListener((v, keyCode, event) -> {
+            if (keyCode == KeyEvent.KEYCODE_D && event.isCtrlPressed()) {
+                if (event.getAction() == KeyEvent.ACTION_DOWN) submitEndOfInput();
+                return true;
+            }
+            return false;
+        });
+
         // 2. Set up Input Listener (Enter/Done key press)
         userInput.setOnEditorActionListener((v, actionId, event) -> {
             if (actionId == EditorInfo.IME_ACTION_DONE ||
@@ -117,7 +135,7 @@ public class TerminalFragment extends Fragment {
                 }
 
                 if (listener != null) {
-                    listener.onUserInputSubmitted(input);
+                    listener.onUserInputSubmitted(this, input);
                 }
 
                 return true;
@@ -126,29 +144,90 @@ public class TerminalFragment extends Fragment {
         });
 
         setAwaitingInput(false);
-        if (isRunTab() && selfUri != null) {
-            String command = CommandFetcher.getCommand(requireContext(), selfUri);
-            if (command != null && listener != null) {
-                appendOutput("Executing: " + command + "\n");
-                new TermuxRunner(requireContext()).executeCommandInternally(command, listener);
-            }
+        if (earlyOutput != null) {
+            CharSequence early = earlyOutput;
+            earlyOutput = null;
+            appendStreamOutput(early);
         }
     }
 
+    // Like Ctrl-D at a terminal: text already typed is sent as is, then stdin is closed.
+    private void submitEndOfInput() {
+        String pending = userInput.getText().toString();
+        userInput.setText("");
+        if (listener != null) {
+            listener.onEndOfInputSubmitted(this, pending);
+        }
+    }
+
+    /**
+     * Makes this tab the one that shows sessionId's output and receives its input.
+     */
+    public void attachSession(int sessionId) {
+        this.sessionId = sessionId;
+        executionCompleted = false;
+    }
+
+    public Uri getUri() {
+        Bundle args = getArguments();
+        return args != null ? args.getParcelable("uri") : null;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
     public void appendOutput(String newOutput) {
-        if (output != null) {
+        if (output == null) {
+            appendEarly(newOutput + "\n");
+        } else {
             output.append(newOutput + "\n");
 
             if (newOutput.contains("Execution finished")) {
-                executionCompleted = true;
-                output.append("Press any key to continue...\n");
-                setAwaitingInput(true);
+                markExecutionFinished();
             }
 
             scrollView.post(() -> scrollView.fullScroll(View.FOCUS_DOWN));
         }
     }
 
+    /**
+     * Appends process output exactly as received, typically one frame from an OutputPump, and
+     * trims the oldest lines once the scrollback is over its limit.
+     */
+    public void appendStreamOutput(CharSequence text) {
+        if (output == null) {
+            appendEarly(text);
+            return;
+        }
+        output.append(text);
+        Editable shown = output.getEditableText();
+        if (shown != null && shown.length() > MAX_SCROLLBACK_CHARS) {
+            int cut = shown.length() - MAX_SCROLLBACK_CHARS * 3 / 4;
+            int lineEnd = TextUtils.indexOf(shown, '\n', cut);
+            shown.delete(0, lineEnd >= 0 ? lineEnd + 1 : cut);
+        }
+        if (TextUtils.indexOf(text, "Execution finished") >= 0) {
+            markExecutionFinished();
+        }
+        scrollView.post(() -> scrollView.fullScroll(View.FOCUS_DOWN));
+    }
+
+    // Keeps output for a tab whose view is not created yet, within the scrollback limit.
+    private void appendEarly(CharSequence text) {
+        if (earlyOutput == null) earlyOutput = new SpannableStringBuilder();
+        earlyOutput.append(text);
+        if (earlyOutput.length() > MAX_SCROLLBACK_CHARS) {
+            earlyOutput.delete(0, earlyOutput.length() - MAX_SCROLLBACK_CHARS * 3 / 4);
+        }
+    }
+
+    private void markExecutionFinished() {
+        executionCompleted = true;
+        output.append("Press any key to continue...\n");
+        setAwaitingInput(true);
+    }
+
     // --- Public methods for MainActivity to control the UI ---
 
     public void clearOutput() {
@@ -170,9 +249,11 @@ public class TerminalFragment extends Fragment {
     }
 
     public interface ConsoleInputListener {
-        void onUserInputSubmitted(String input);
+        void onUserInputSubmitted(TerminalFragment terminal, String input);
+
+        void onEndOfInputSubmitted(TerminalFragment terminal, String pending);
 
-        void onOutputReceived(String output);
+        void onOutputReceived(CharSequence output);
 
         void onExecutionComplete();
 
@@ -1,18 +1,11 @@
 package com.codestudio.mobile;
 
-import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.Map;
-
 // This class handles all logic for controlling Termux via Intents
 public class TermuxRunner {
 
@@ -25,7 +18,6 @@ public class TermuxRunner {
     private static final String EXTRA_SESSION_NAME_NEW = "com.termux.app.RunCommand.NEW_SESSION_NAME";
 
     private final Context context;
-    private BufferedWriter stdinWriter;
 
     public TermuxRunner(Context context) {
         this.context = context;
@@ -76,75 +68,4 @@ public class TermuxRunner {
             listener.onOutputReceived("CODE STUDIO\nType a command below or run a file to begin.\n");
         }
     }
-
-    public void sendInput(String input) {
-        new Thread(() -> {
-            try {
-                if (stdinWriter != null) {
-                    stdinWriter.write(input + "\n");
-                    stdinWriter.flush();
-                }
-            } catch (Exception e) {
-                Log.e("TermuxRunner", "Failed to send input", e);
-            }
-        }).start();
-    }
-
-    /**
-     * Sends a shell command to the internal execution engine.
-     * This replaces Termux's RunCommand intent.
-     */
-    public void executeCommandInternally(String command, TerminalFragment.ConsoleInputListener listener) {
-        new Thread(() -> {
-            try {
-                ProcessBuilder pb = new ProcessBuilder("sh", "-c", command);
-                Map<String, String> env = pb.environment();
-                env.put("PATH", "/data/data/com.termux/files/usr/bin:/data/data/com.termux/files/usr/bin/applets:" + System.getenv("PATH"));
-                Process process = pb.start();
-
-                // Initialize stdinWriter
-                stdinWriter = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
-
-                // ✅ Send "y" directly to stdin
-                stdinWriter.write("y\n");
-                stdinWriter.flush();
-
-                BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-
-                String line;
-                while ((line = stdout.readLine()) != null) {
-                    String finalLine = line;
-                    ((Activity) context).runOnUiThread(() -> {
-                        if (listener != null) listener.onOutputReceived(finalLine + "\n");
-                    });
-                }
-
-                while ((line = stderr.readLine()) != null) {
-                    String finalLine = line;
-                    ((Activity) context).runOnUiThread(() -> {
-                        if (listener != null) listener.onOutputReceived("❌ " + finalLine + "\n");
-                    });
-                }
-
-                stdout.close();
-                stderr.close();
-
-                // ✅ Do NOT close stdinWriter until after waitFor
-                process.waitFor();
-                stdinWriter.close();
-
-                ((Activity) context).runOnUiThread(() -> {
-                    if (listener != null) listener.onExecutionComplete();
-                });
-
-            } catch (Exception e) {
-                Log.e("TermuxRunner", "Execution error", e);
-                ((Activity) context).runOnUiThread(() -> {
-                    if (listener != null)
-                        listener.onOutputReceived("❌ Error: " + e.getMessage() + "\n");
-                });
-            }
-        }).start();
-    }
 }
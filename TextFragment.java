@@ -1,16 +1,32 @@
 package com.codestudio.mobile;
 
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.method.KeyListener;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.inputmethod.EditorInfo;
 import android.webkit.MimeTypeMap;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -19,26 +35,86 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.PatternSyntaxException;
 
 public class TextFragment extends Fragment implements TextWatcher {
 
     private static final String ARG_URI = "file_uri";
+    private static final int MENU_UNDO = Menu.FIRST + 100;
+    private static final int MENU_REDO = Menu.FIRST + 101;
+    private static final int MENU_FIND = Menu.FIRST + 102;
+    private static final int MATCH_COLOR = 0x60FFC107;
+    // Documents at or above either limit open in the virtualized CodeView instead of the EditText.
+    private static final int VIEWPORT_MODE_MIN_CHARS = 512 * 1024;
+    private static final int VIEWPORT_MODE_MIN_LINES = 5000;
+    // A longer CodeView selection is not copied into the find bar.
+    private static final int MAX_FIND_SEED_CHARS = 1024;
+    private static final ExecutorService LOAD_EXECUTOR = Executors.newFixedThreadPool(2);
+    private static final ExecutorService HIGHLIGHT_EXECUTOR = Executors.newSingleThreadExecutor();
     private final float MIN_SCALE = 0.5f;
     private final float MAX_SCALE = 3.0f;
 
-    private TextView lineNumbers;
+    private LineNumberGutter lineNumbers;
     private EditText fileContent;
+    private View editorScroll;
+    private CodeView codeView;
+    private TextView loadingStatus;
+    private boolean viewportMode = false;
+    private DocumentLines documentLines;
+    private DocumentLoader.Task loadTask;
+    // Set while a file above the large-file threshold is shown read-only from a mapping.
+    private MappedLineSource mappedSource;
+    private int loadGeneration;
+    private SyntaxHighlighter highlighter;
+    // Spans currently applied to the EditText, i.e. the highlighted window around the viewport.
+    private final List<HighlightSpan> appliedSpans = new ArrayList<>();
+    private EditHistory history;
+    private boolean menuCanUndo;
+    private boolean menuCanRedo;
+    private KeyListener editorKeyListener;
     private float scaleFactor = 1f;
     private float baseSizeSp;
     private ScaleGestureDetector scaleDetector;
 
-    // Change this to private to follow encapsulation
-    private boolean isSaved = false;
+    private View findBar;
+    private EditText findQuery;
+    private EditText replaceText;
+    private CheckBox findRegex;
+    private CheckBox findMatchCase;
+    // Null while the find bar is closed or its query is empty or invalid.
+    private TextSearch search;
+    // The match the last Next selected; Replace replaces it if it is still a match.
+    private int foundStart = -1;
+    private int foundEnd = -1;
+    // Background spans marking the matches in the EditText's viewport, and the matches they show.
+    private final List<BackgroundColorSpan> searchSpans = new ArrayList<>();
+    private int[] spannedMatches;
+    private boolean searchSpansPending;
+
+    // Document model mirrored from the EditText; saves stream from here instead of the Editable.
+    private PieceTable document = new PieceTable();
+    private boolean mirrorSuspended = false;
+    private int pendingRemovedLines;
+
+    // Unsaved-change tracking: the fingerprint of the text on disk plus the range edited since.
+    private ContentFingerprint savedFingerprint;
+    private final DirtyRange dirtyRange = new DirtyRange();
+    // Edits made after the last snapshot handed to Save All, adopted once that save succeeds.
+    private PieceTable pendingSaveSnapshot;
+    private final DirtyRange dirtySincePendingSave = new DirtyRange();
+    private int fingerprintGeneration;
+    private boolean forcedDirty = true;
+    // False when the file could not be read in full; the tab is then never written back.
+    private boolean saveable = true;
     private Uri fileUri;
 
     public static TextFragment newInstance(Uri uri) {
@@ -55,6 +131,68 @@ public class TextFragment extends Fragment implements TextWatcher {
         if (getArguments() != null) {
             fileUri = getArguments().getParcelable(ARG_URI);
         }
+        history = new EditHistory(EditorActivity.getUndoHistoryChars(requireContext()), 10000);
+        setHasOptionsMenu(true);
+    }
+
+    @Override
+    public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater) {
+        menu.add(Menu.NONE, MENU_UNDO, Menu.NONE, "Undo");
+        menu.add(Menu.NONE, MENU_REDO, Menu.NONE, "Redo");
+        menu.add(Menu.NONE, MENU_FIND, Menu.NONE, "Find/Replace");
+    }
+
+    @Override
+    public void onPrepareOptionsMenu(@NonNull Menu menu) {
+        menuCanUndo = history.canUndo();
+        menuCanRedo = history.canRedo();
+        MenuItem undo = menu.findItem(MENU_UNDO);
+        MenuItem redo = menu.findItem(MENU_REDO);
+        if (undo != null) undo.setEnabled(menuCanUndo);
+        if (redo != null) redo.setEnabled(menuCanRedo);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == MENU_UNDO) {
+            undo();
+            return true;
+        } else if (item.getItemId() == MENU_REDO) {
+            redo();
+            return true;
+        } else if (item.getItemId() == MENU_FIND) {
+            showFindBar();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    public void undo() {
+        int cursor = history.undo(this::replaceDocumentRange);
+        if (cursor >= 0 && !viewportMode) fileContent.setSelection(Math.min(cursor, fileContent.length()));
+        onHistoryChanged();
+    }
+
+    public void redo() {
+        int cursor = history.redo(this::replaceDocumentRange);
+        if (cursor >= 0 && !viewportMode) fileContent.setSelection(Math.min(cursor, fileContent.length()));
+        onHistoryChanged();
+    }
+
+    // Applies an undo/redo through the visible editor so the mirror, gutter and highlighter follow.
+    private void replaceDocumentRange(int start, int end, CharSequence text) {
+        if (viewportMode) {
+            codeView.replace(start, end, text);
+        } else {
+            fileContent.getText().replace(start, end, text);
+        }
+    }
+
+    // Refreshes the Undo/Redo items only when their enabled state actually flips.
+    private void onHistoryChanged() {
+        if ((history.canUndo() != menuCanUndo || history.canRedo() != menuCanRedo) && getActivity() != null) {
+            getActivity().invalidateOptionsMenu();
+        }
     }
 
     @Nullable
@@ -69,12 +207,26 @@ public class TextFragment extends Fragment implements TextWatcher {
 
         lineNumbers = view.findViewById(R.id.lineNumbers);
         fileContent = view.findViewById(R.id.fileContent);
+        editorScroll = view.findViewById(R.id.editorScroll);
+        codeView = view.findViewById(R.id.codeView);
+        loadingStatus = view.findViewById(R.id.loadingStatus);
+        codeView.setOnTextEditedListener((start, removed, inserted) -> {
+            onDocumentEdited(start, removed.length(), inserted.length());
+            history.record(start, removed, 0, removed.length(), inserted, 0, inserted.length());
+            onHistoryChanged();
+            if (highlighter != null) highlighter.onTextReplaced(start, removed.length(), inserted, 0, inserted.length());
+        });
 
-        loadFileContent();
-
-        fileContent.getViewTreeObserver().addOnGlobalLayoutListener(() -> updateLineNumbers());
-
+        lineNumbers.attachTo(fileContent);
+        fileContent.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
+            lineNumbers.invalidate();
+            updateVisibleLines();
+        });
+        editorScroll.getViewTreeObserver().addOnScrollChangedListener(this::updateVisibleLines);
         fileContent.addTextChangedListener(this);
+        setUpFindBar(view);
+
+        loadFileContent();
 
         baseSizeSp = fileContent.getTextSize() / getResources().getDisplayMetrics().scaledDensity;
         scaleDetector = new ScaleGestureDetector(requireContext(), new ScaleGestureDetector.SimpleOnScaleGestureListener() {
@@ -85,62 +237,474 @@ public class TextFragment extends Fragment implements TextWatcher {
                 float newSizeSp = baseSizeSp * scaleFactor;
                 lineNumbers.setTextSize(TypedValue.COMPLEX_UNIT_SP, newSizeSp);
                 fileContent.setTextSize(TypedValue.COMPLEX_UNIT_SP, newSizeSp);
+                codeView.setTextSize(TypedValue.COMPLEX_UNIT_SP, newSizeSp);
                 return true;
             }
         });
 
-        fileContent.setOnTouchListener((v, event) -> {
+        View.OnTouchListener zoomTouchListener = (v, event) -> {
             if (event.getPointerCount() > 1) v.getParent().requestDisallowInterceptTouchEvent(true);
             scaleDetector.onTouchEvent(event);
             int action = event.getActionMasked();
             if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)
                 v.getParent().requestDisallowInterceptTouchEvent(false);
             return false;
+        };
+        fileContent.setOnTouchListener(zoomTouchListener);
+        codeView.setOnTouchListener(zoomTouchListener);
+    }
+
+    /**
+     * Resets the editor to an empty document. Large files (by size on disk) start directly in
+     * the virtualized CodeView so the EditText never has to lay out the whole text.
+     */
+    private void beginDocument(boolean viewport) {
+        document = new PieceTable();
+        documentLines = viewport ? new DocumentLines(document) : null;
+        viewportMode = viewport;
+
+        mirrorSuspended = true;
+        fileContent.setText("");
+        mirrorSuspended = false;
+        appliedSpans.clear();
+        forgetSearchSpans();
+        history.clear();
+        if (highlighter != null) highlighter.reset();
+        if (viewport) {
+            editorScroll.setVisibility(View.GONE);
+            codeView.setVisibility(View.VISIBLE);
+            codeView.setSource(documentLines);
+        } else {
+            codeView.setSource(null);
+            codeView.setVisibility(View.GONE);
+            editorScroll.setVisibility(View.VISIBLE);
+        }
+    }
+
+    private void appendChunk(String text) {
+        if (viewportMode) {
+            documentLines.append(text);
+            if (highlighter != null) highlighter.onTextAppended(text);
+            codeView.notifySourceChanged();
+            return;
+        }
+        document.append(text);
+        if (highlighter != null) highlighter.onTextAppended(text);
+        mirrorSuspended = true;
+        fileContent.append(text);
+        mirrorSuspended = false;
+        if (document.length() >= VIEWPORT_MODE_MIN_CHARS || lineNumbers.getLineCount() >= VIEWPORT_MODE_MIN_LINES) {
+            switchToViewportMode();
+        }
+    }
+
+    // The size on disk was unknown or misleading; move what is loaded so far into the CodeView.
+    private void switchToViewportMode() {
+        documentLines = new DocumentLines(document);
+        viewportMode = true;
+        mirrorSuspended = true;
+        fileContent.setText("");
+        mirrorSuspended = false;
+        appliedSpans.clear();
+        forgetSearchSpans();
+        editorScroll.setVisibility(View.GONE);
+        codeView.setVisibility(View.VISIBLE);
+        codeView.setSource(documentLines);
+    }
+
+    private void setEditingEnabled(boolean enabled) {
+        if (enabled) {
+            if (editorKeyListener != null) {
+                fileContent.setKeyListener(editorKeyListener);
+                editorKeyListener = null;
+            }
+        } else if (editorKeyListener == null) {
+            editorKeyListener = fileContent.getKeyListener();
+            fileContent.setKeyListener(null);
+        }
+        codeView.setEditingEnabled(enabled);
+    }
+
+    private void showLoadingProgress(int percent) {
+        loadingStatus.setVisibility(View.VISIBLE);
+        loadingStatus.setText(percent >= 0 ? "Loading " + percent + "%" : "Loading…");
+    }
+
+    /**
+     * Looks up the highlighting rules from the file extension, using the same language keys as
+     * the run commands. Queries the provider, so call it off the main thread.
+     */
+    @Nullable
+    private static SyntaxLanguage languageFor(Context context, Uri uri) {
+        String name;
+        try {
+            name = FileUtils.getFileName(context, uri);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (name == null) return null;
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) return null;
+        return SyntaxLanguage.forKey(CommandFetcher.mapExtensionToKey(name.substring(dot + 1).toLowerCase()));
+    }
+
+    private void setLanguage(@Nullable SyntaxLanguage language, Handler mainHandler) {
+        clearHighlightSpans();
+        if (language == null) {
+            highlighter = null;
+            codeView.setHighlighter(null);
+            return;
+        }
+        SyntaxHighlighter created = new SyntaxHighlighter(language, HIGHLIGHT_EXECUTOR, mainHandler, () -> document.snapshot());
+        created.setListener((firstLine, lastLine) -> {
+            if (created != highlighter || getView() == null) return;
+            if (viewportMode) {
+                codeView.invalidate();
+            } else {
+                applyHighlightSpans();
+            }
+        });
+        highlighter = created;
+        codeView.setHighlighter(created);
+        updateVisibleLines();
+    }
+
+    // Reports the document lines the ScrollView shows; CodeView reports its own while drawing.
+    private void updateVisibleLines() {
+        if ((highlighter == null && search == null) || viewportMode) return;
+        Layout layout = fileContent.getLayout();
+        if (layout == null) return;
+        int top = editorScroll.getScrollY() - fileContent.getTop() - fileContent.getTotalPaddingTop();
+        int firstLayoutLine = layout.getLineForVertical(Math.max(0, top));
+        int lastLayoutLine = layout.getLineForVertical(Math.max(0, top + editorScroll.getHeight()));
+        int start = layout.getLineStart(firstLayoutLine);
+        int end = layout.getLineEnd(lastLayoutLine);
+        if (highlighter != null) {
+            highlighter.setVisibleLines(highlighter.getLineForOffset(start), highlighter.getLineForOffset(end));
+        }
+        if (search != null) applySearchSpans(start, end);
+    }
+
+    private void applyHighlightSpans() {
+        Editable text = fileContent.getText();
+        clearHighlightSpans();
+        int length = text.length();
+        for (int line = highlighter.getWindowFirstLine(); line <= highlighter.getWindowLastLine(); line++) {
+            int lineStart = highlighter.getLineStart(line);
+            int tokens = highlighter.getTokenCount(line);
+            for (int t = 0; t < tokens; t++) {
+                int start = lineStart + highlighter.getTokenStart(line, t);
+                int end = Math.min(length, start + highlighter.getTokenLength(line, t));
+                if (end <= start) continue;
+                HighlightSpan span = new HighlightSpan(SyntaxHighlighter.colorFor(highlighter.getTokenType(line, t)));
+                text.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                appliedSpans.add(span);
+            }
+        }
+    }
+
+    private void clearHighlightSpans() {
+        Editable text = fileContent.getText();
+        for (HighlightSpan span : appliedSpans) text.removeSpan(span);
+        appliedSpans.clear();
+    }
+
+    // --- Find and replace ---
+
+    private void setUpFindBar(View view) {
+        findBar = view.findViewById(R.id.findBar);
+        findQuery = view.findViewById(R.id.findQuery);
+        replaceText = view.findViewById(R.id.replaceText);
+        findRegex = view.findViewById(R.id.findRegex);
+        findMatchCase = view.findViewById(R.id.findMatchCase);
+        findQuery.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                updateSearch();
+            }
+        });
+        findQuery.setOnEditorActionListener((v, actionId, event) -> {
+            if (actionId != EditorInfo.IME_ACTION_SEARCH) return false;
+            findNext();
+            return true;
+        });
+        findRegex.setOnCheckedChangeListener((button, checked) -> updateSearch());
+        findMatchCase.setOnCheckedChangeListener((button, checked) -> updateSearch());
+        view.findViewById(R.id.findNext).setOnClickListener(v -> findNext());
+        view.findViewById(R.id.replaceOne).setOnClickListener(v -> replaceFound());
+        view.findViewById(R.id.replaceAll).setOnClickListener(v -> replaceAllMatches());
+        view.findViewById(R.id.findClose).setOnClickListener(v -> hideFindBar());
+    }
+
+    public void showFindBar() {
+        if (mappedSource != null) {
+            Toast.makeText(getContext(), "Find is not available for read-only large files", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (!viewportMode && fileContent.hasSelection()) {
+            CharSequence selected = fileContent.getText().subSequence(fileContent.getSelectionStart(), fileContent.getSelectionEnd());
+            if (LineNumberGutter.countNewlines(selected, 0, selected.length()) == 0) findQuery.setText(selected);
+        } else if (viewportMode && codeView.hasSelection() && codeView.getSelectionEnd() - codeView.getSelectionStart() <= MAX_FIND_SEED_CHARS) {
+            CharSequence selected = document.subSequence(codeView.getSelectionStart(), codeView.getSelectionEnd());
+            if (LineNumberGutter.countNewlines(selected, 0, selected.length()) == 0) findQuery.setText(selected);
+        }
+        findBar.setVisibility(View.VISIBLE);
+        findQuery.requestFocus();
+        updateSearch();
+    }
+
+    public void hideFindBar() {
+        findBar.setVisibility(View.GONE);
+        setSearch(null);
+    }
+
+    // Rebuilds the search from the find bar; an invalid regex is shown on the query field.
+    private void updateSearch() {
+        String query = findQuery.getText().toString();
+        TextSearch created = null;
+        findQuery.setError(null);
+        if (!query.isEmpty()) {
+            try {
+                created = new TextSearch(query, findRegex.isChecked(), findMatchCase.isChecked());
+            } catch (PatternSyntaxException e) {
+                findQuery.setError(e.getDescription());
+            }
+        }
+        setSearch(created);
+    }
+
+    private void setSearch(@Nullable TextSearch newSearch) {
+        search = newSearch;
+        foundStart = -1;
+        foundEnd = -1;
+        clearSearchSpans();
+        // Matches are only ever looked for in the range on screen.
+        codeView.setMatchSource(newSearch == null ? null : (start, end) -> newSearch.findInRange(document, start, end));
+        updateVisibleLines();
+    }
+
+    private void findNext() {
+        if (search == null) return;
+        int from = viewportMode ? codeView.getCursorOffset() : fileContent.getSelectionEnd();
+        if (!search.find(document, from)) {
+            Toast.makeText(getContext(), "No matches", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        showFound(search.start(), search.end());
+    }
+
+    private void showFound(int start, int end) {
+        foundStart = start;
+        foundEnd = end;
+        history.breakCoalescing();
+        if (viewportMode) {
+            codeView.moveCursor(end);
+        } else {
+            fileContent.requestFocus();
+            fileContent.setSelection(start, end);
+        }
+    }
+
+    private boolean canReplace() {
+        if (search == null) return false;
+        if (loadTask != null) {
+            Toast.makeText(getContext(), "The file is still loading", Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        try {
+            search.checkReplacement(replaceText.getText().toString());
+            return true;
+        } catch (IllegalArgumentException e) {
+            replaceText.setError(e.getMessage());
+            return false;
+        }
+    }
+
+    // Replaces the match the last Next selected and moves on to the following one.
+    private void replaceFound() {
+        if (!canReplace()) return;
+        history.breakCoalescing();
+        int end = search.replace(document, foundStart, foundEnd, replaceText.getText().toString(), this::replaceDocumentRange);
+        history.breakCoalescing();
+        foundStart = -1;
+        if (end >= 0) {
+            if (viewportMode) {
+                codeView.moveCursor(end);
+            } else {
+                fileContent.setSelection(end);
+            }
+        }
+        findNext();
+    }
+
+    private void replaceAllMatches() {
+        if (!canReplace()) return;
+        long startNanos = System.nanoTime();
+        history.breakCoalescing();
+        int count = search.replaceAll(document, replaceText.getText().toString(), this::replaceDocumentRange);
+        history.breakCoalescing();
+        foundStart = -1;
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        Toast.makeText(getContext(), count == 0 ? "No matches" : "Replaced " + count + " match(es) in " + millis + " ms",
+                Toast.LENGTH_SHORT).show();
+    }
+
+    // Marks the matches in [start, end) of the EditText, reusing the spans if they did not change.
+    private void applySearchSpans(int start, int end) {
+        int[] matches = search.findInRange(document, start, end);
+        if (matches == spannedMatches) return;
+        clearSearchSpans();
+        Editable text = fileContent.getText();
+        int length = text.length();
+        for (int m = 0; m + 1 < matches.length; m += 2) {
+            if (matches[m + 1] > length) break;
+            BackgroundColorSpan span = new BackgroundColorSpan(MATCH_COLOR);
+            text.setSpan(span, matches[m], matches[m + 1], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            searchSpans.add(span);
+        }
+        spannedMatches = matches;
+    }
+
+    private void clearSearchSpans() {
+        Editable text = fileContent.getText();
+        for (BackgroundColorSpan span : searchSpans) text.removeSpan(span);
+        forgetSearchSpans();
+    }
+
+    // The EditText was emptied, which removed the spans already.
+    private void forgetSearchSpans() {
+        searchSpans.clear();
+        spannedMatches = null;
+    }
+
+    // Edits arrive inside TextWatcher callbacks, so the marks are redrawn once afterwards.
+    private void scheduleSearchSpans() {
+        if (viewportMode) {
+            codeView.invalidate();
+            return;
+        }
+        if (searchSpansPending) return;
+        searchSpansPending = true;
+        fileContent.post(() -> {
+            searchSpansPending = false;
+            updateVisibleLines();
         });
     }
 
+    public boolean isViewportMode() {
+        return viewportMode;
+    }
+
     // --- TextWatcher methods ---
     @Override
     public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) {
+        pendingRemovedLines = LineNumberGutter.countNewlines(charSequence, i, i + i1);
     }
 
     @Override
     public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) {
-        updateLineNumbers();
+        if (!mirrorSuspended) {
+            // The document still holds the removed text at this point.
+            history.record(i, document, i, i + i1, charSequence, i, i + i2);
+            document.replace(i, i + i1, charSequence, i, i + i2);
+            onDocumentEdited(i, i1, i2);
+            onHistoryChanged();
+            if (highlighter != null) highlighter.onTextReplaced(i, i1, charSequence, i, i + i2);
+        }
+        if (lineNumbers != null) {
+            lineNumbers.onLinesReplaced(pendingRemovedLines, LineNumberGutter.countNewlines(charSequence, i, i + i2));
+        }
     }
 
     @Override
     public void afterTextChanged(Editable editable) {
-        isSaved = false;
     }
 
-    private void updateLineNumbers() {
-        if (fileContent != null && lineNumbers != null) {
-            int lineCount = fileContent.getLineCount();
-            StringBuilder sb = new StringBuilder();
-            for (int i = 1; i <= lineCount; i++) sb.append(i).append("\n");
-            lineNumbers.setText(sb.toString());
-        }
+    /**
+     * Returns a read-only copy of the document that is safe to hand to a background saver.
+     */
+    public PieceTable getDocumentSnapshot() {
+        pendingSaveSnapshot = document.snapshot();
+        dirtySincePendingSave.reset();
+        return pendingSaveSnapshot;
     }
 
-    public byte[] getContents() {
-        if (fileContent != null)
-            return fileContent.getText().toString().getBytes(StandardCharsets.UTF_8);
-        return new byte[0];
+    /**
+     * Called on the main thread once a snapshot from {@link #getDocumentSnapshot()} has been
+     * written; only edits made after the snapshot still count as unsaved.
+     */
+    public void onSnapshotSaved(PieceTable snapshot) {
+        if (snapshot != pendingSaveSnapshot) return;
+        pendingSaveSnapshot = null;
+        forcedDirty = false;
+        dirtyRange.set(dirtySincePendingSave);
+        updateFingerprint(snapshot);
     }
 
-    // Public getter method for the isSaved status
+    /**
+     * Whether the document matches the file on disk. Edits only mark a range dirty; the range
+     * is compared block by block against the saved fingerprint, so undoing or retyping a
+     * change makes the tab clean again without rewriting it on Save All. Tabs whose file could
+     * not be read (unsupported, or failed part-way) count as saved, so they are never written.
+     */
     public boolean isSaved() {
-        return isSaved;
+        if (mappedSource != null || !saveable) return true;
+        if (forcedDirty) return false;
+        if (dirtyRange.isEmpty()) return true;
+        // Still hashing the saved text, or a different length: certainly modified.
+        if (savedFingerprint == null || savedFingerprint.length() != document.length()) return false;
+        if (!savedFingerprint.matches(document, dirtyRange.getStart(), dirtyRange.getEnd())) return false;
+        dirtyRange.reset();
+        return true;
     }
 
-    // Public setter method for the isSaved status
     public void setSaved(boolean saved) {
-        isSaved = saved;
+        if (saved) {
+            markClean();
+        } else {
+            forcedDirty = true;
+        }
     }
 
-    private boolean isTextFile(Uri uri) {
-        String mimeType = requireContext().getContentResolver().getType(uri);
+    // The current document is what is on disk.
+    private void markClean() {
+        forcedDirty = false;
+        pendingSaveSnapshot = null;
+        dirtyRange.reset();
+        updateFingerprint(document.snapshot());
+    }
+
+    private void updateFingerprint(PieceTable snapshot) {
+        final int generation = ++fingerprintGeneration;
+        savedFingerprint = null;
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        LOAD_EXECUTOR.execute(() -> {
+            ContentFingerprint fingerprint = ContentFingerprint.of(snapshot);
+            mainHandler.post(() -> {
+                if (generation == fingerprintGeneration) savedFingerprint = fingerprint;
+            });
+        });
+    }
+
+    private void onDocumentEdited(int start, int removedLength, int insertedLength) {
+        dirtyRange.onReplaced(start, removedLength, insertedLength);
+        if (pendingSaveSnapshot != null) dirtySincePendingSave.onReplaced(start, removedLength, insertedLength);
+        if (search != null) {
+            search.onTextChanged();
+            scheduleSearchSpans();
+        }
+    }
+
+    private static boolean isTextFile(ContentResolver resolver, Uri uri) {
+        String mimeType = resolver.getType(uri);
         if (mimeType == null) {
             String ext = MimeTypeMap.getFileExtensionFromUrl(uri.toString());
             if (ext != null)
@@ -150,9 +714,9 @@ public class TextFragment extends Fragment implements TextWatcher {
         return mimeType.startsWith("text/") || mimeType.equals("application/json") || mimeType.equals("application/xml");
     }
 
-    private boolean isProbablyText(Uri uri) {
+    private static boolean isProbablyText(ContentResolver resolver, Uri uri) {
         final int SAMPLE = 1024;
-        try (InputStream is = requireContext().getContentResolver().openInputStream(uri)) {
+        try (InputStream is = resolver.openInputStream(uri)) {
             if (is == null) return false;
             byte[] buf = new byte[SAMPLE];
             int read = is.read(buf);
@@ -169,33 +733,208 @@ public class TextFragment extends Fragment implements TextWatcher {
         }
     }
 
-    private void loadFileContent() {
-        if (fileUri == null || fileUri.equals(ViewPagerAdapter.UNTITLED_FILE_URI)) return;
-
-        new Thread(() -> {
-            boolean readable = isTextFile(fileUri) && isProbablyText(fileUri);
-
-            requireActivity().runOnUiThread(() -> {
-                if (!readable) {
-                    Toast.makeText(getContext(), "Unsupported or non-text file", Toast.LENGTH_SHORT).show();
-                    fileContent.setText("");
-                    return;
+    /**
+     * Opens the file read-only if it is a text file at or above the threshold. Returns null when
+     * the file should be streamed into the editor instead.
+     *
+     * @throws IOException if the file is that large but cannot be opened read-only; streaming
+     *                     it instead would pull the whole file onto the heap
+     */
+    @Nullable
+    private static MappedLineSource openMapped(ContentResolver resolver, Uri uri, long threshold) throws IOException {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            try {
+                descriptor = resolver.openFileDescriptor(uri, "r");
+            } catch (IOException | RuntimeException e) {
+                // Size unknown; the streaming loader reports its own errors.
+                return null;
+            }
+            if (descriptor == null || descriptor.getStatSize() < threshold) return null;
+            if (!isTextFile(resolver, uri) || !isProbablyText(resolver, uri)) return null;
+            MappedLineSource source = new MappedLineSource(descriptor.getFileDescriptor(), descriptor);
+            descriptor = null;
+            return source;
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) {
                 }
+            }
+        }
+    }
 
-                try (InputStream inputStream = requireContext().getContentResolver().openInputStream(fileUri)) {
-                    if (inputStream != null) {
-                        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-                        String content = reader.lines().collect(Collectors.joining("\n"));
-                        reader.close();
-                        fileContent.setText(content);
-                        updateLineNumbers();
-                        isSaved = true;
-                    }
-                } catch (Exception e) {
+    private void loadFileContent() {
+        if (fileUri == null || fileUri.equals(ViewPagerAdapter.UNTITLED_FILE_URI)) return;
+        cancelLoad();
+
+        final int generation = loadGeneration;
+        final Uri uri = fileUri;
+        final ContentResolver resolver = requireContext().getContentResolver();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        final long largeFileThreshold = EditorActivity.getLargeFileThreshold(requireContext());
+        final Context appContext = requireContext().getApplicationContext();
+
+        saveable = true;
+        showLoadingProgress(0);
+        setEditingEnabled(false);
+        LOAD_EXECUTOR.execute(() -> {
+            SyntaxLanguage language = languageFor(appContext, uri);
+            MappedLineSource opened;
+            boolean failed = false;
+            try {
+                opened = openMapped(resolver, uri, largeFileThreshold);
+            } catch (IOException e) {
+                opened = null;
+                failed = true;
+            }
+            final MappedLineSource mapped = opened;
+            final boolean openFailed = failed;
+            mainHandler.post(() -> {
+                if (generation != loadGeneration) {
+                    closeMapped(mapped);
+                } else if (openFailed) {
+                    beginDocument(false);
+                    // Saving the empty document would overwrite the file.
+                    saveable = false;
+                    loadingStatus.setVisibility(View.VISIBLE);
+                    loadingStatus.setText("Read-only: the file could not be opened");
                     Toast.makeText(getContext(), "Error reading file", Toast.LENGTH_SHORT).show();
+                } else if (mapped != null) {
+                    // Huge read-only files are shown plain.
+                    setLanguage(null, mainHandler);
+                    showMappedFile(mapped, mainHandler);
+                } else {
+                    setLanguage(language, mainHandler);
+                    streamFileContent(uri, resolver, mainHandler);
                 }
             });
-        }).start();
+        });
+    }
+
+    // Shows a huge file read-only; lines appear as the background index pass reaches them.
+    private void showMappedFile(MappedLineSource source, Handler mainHandler) {
+        final int generation = loadGeneration;
+        mappedSource = source;
+        hideFindBar();
+        history.clear();
+        document = new PieceTable();
+        documentLines = null;
+        viewportMode = true;
+        mirrorSuspended = true;
+        fileContent.setText("");
+        mirrorSuspended = false;
+        editorScroll.setVisibility(View.GONE);
+        codeView.setVisibility(View.VISIBLE);
+        codeView.setSource(source);
+        markClean();
+
+        loadingStatus.setVisibility(View.VISIBLE);
+        loadingStatus.setText("Indexing 0%");
+        LOAD_EXECUTOR.execute(() -> source.buildIndex((lines, percent) -> mainHandler.post(() -> {
+            if (generation != loadGeneration) return;
+            codeView.notifySourceChanged();
+            if (percent < 100) {
+                loadingStatus.setText("Indexing " + percent + "%");
+            } else {
+                loadingStatus.setText(source.hasTruncatedLines() ? "Read-only; lines over 256 KB are cut off" : "Read-only");
+            }
+        })));
+    }
+
+    private void streamFileContent(Uri uri, ContentResolver resolver, Handler mainHandler) {
+        DocumentLoader loader = new DocumentLoader(LOAD_EXECUTOR, mainHandler::post);
+        loadTask = loader.load(new DocumentLoader.Source() {
+            private long length = -1;
+
+            @Override
+            public InputStream open() throws IOException {
+                if (!isTextFile(resolver, uri) || !isProbablyText(resolver, uri)) return null;
+                AssetFileDescriptor descriptor = resolver.openAssetFileDescriptor(uri, "r");
+                if (descriptor == null) throw new IOException("Could not open " + uri);
+                length = descriptor.getLength();
+                return descriptor.createInputStream();
+            }
+
+            @Override
+            public long length() {
+                return length;
+            }
+        }, new DocumentLoader.Callback() {
+            @Override
+            public void onStart(long totalBytes) {
+                beginDocument(totalBytes >= VIEWPORT_MODE_MIN_CHARS);
+            }
+
+            @Override
+            public void onChunk(String text, int percent) {
+                appendChunk(text);
+                showLoadingProgress(percent);
+            }
+
+            @Override
+            public void onComplete() {
+                loadTask = null;
+                loadingStatus.setVisibility(View.GONE);
+                setEditingEnabled(true);
+                markClean();
+            }
+
+            @Override
+            public void onUnsupported() {
+                loadTask = null;
+                loadingStatus.setVisibility(View.GONE);
+                Toast.makeText(getContext(), "Unsupported or non-text file", Toast.LENGTH_SHORT).show();
+                beginDocument(false);
+                // Saving the empty document would overwrite the file.
+                saveable = false;
+            }
+
+            @Override
+            public void onError(Exception e) {
+                loadTask = null;
+                // Only part of the file was read; saving it would cut off the rest.
+                saveable = false;
+                loadingStatus.setVisibility(View.VISIBLE);
+                loadingStatus.setText("Read-only: the file could not be read in full");
+                Toast.makeText(getContext(), "Error reading file", Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void cancelLoad() {
+        loadGeneration++;
+        if (loadTask != null) {
+            loadTask.cancel();
+            loadTask = null;
+        }
+        if (mappedSource != null) {
+            closeMapped(mappedSource);
+            mappedSource = null;
+        }
+    }
+
+    private static void closeMapped(@Nullable MappedLineSource source) {
+        if (source == null) return;
+        try {
+            source.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        cancelLoad();
+        super.onDestroyView();
+    }
+
+    private static class HighlightSpan extends ForegroundColorSpan {
+        HighlightSpan(int color) {
+            super(color);
+        }
     }
 
     public void setFileUri(Uri newUri) {
@@ -209,4 +948,53 @@ public class TextFragment extends Fragment implements TextWatcher {
     public void refreshContent() {
         loadFileContent();
     }
+
+    /**
+     * Called when the folder watcher saw this file change. Reloads it if the editor has no
+     * unsaved edits and the file really differs from what was loaded or saved, which filters
+     * out the notifications caused by our own saves. Unsaved edits are never replaced.
+     */
+    public void onChangedOnDisk() {
+        if (fileUri == null || fileUri.equals(ViewPagerAdapter.UNTITLED_FILE_URI) || loadTask != null) return;
+        if (mappedSource != null) {
+            loadFileContent();
+            return;
+        }
+        if (!isSaved()) {
+            Toast.makeText(getContext(), "The file changed on disk; your unsaved edits are kept", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final ContentFingerprint loaded = savedFingerprint;
+        // Still hashing right after a load or save, so this is most likely our own write.
+        if (loaded == null) return;
+        final int generation = loadGeneration;
+        final Uri uri = fileUri;
+        final ContentResolver resolver = requireContext().getContentResolver();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        LOAD_EXECUTOR.execute(() -> {
+            boolean differs;
+            try (AssetFileDescriptor descriptor = resolver.openAssetFileDescriptor(uri, "r")) {
+                if (descriptor == null) return;
+                long size = descriptor.getLength();
+                if (size != AssetFileDescriptor.UNKNOWN_LENGTH && size != loaded.utf8Length()) {
+                    differs = true;
+                } else {
+                    // Hashed block by block as it is read; stops once it is longer than the loaded text.
+                    ContentFingerprint.Builder fingerprint = new ContentFingerprint.Builder();
+                    try (Reader reader = new InputStreamReader(descriptor.createInputStream(), StandardCharsets.UTF_8)) {
+                        char[] buffer = new char[8192];
+                        for (int n; fingerprint.length() <= loaded.length() && (n = reader.read(buffer)) != -1; ) {
+                            fingerprint.append(buffer, 0, n);
+                        }
+                    }
+                    differs = !loaded.equals(fingerprint.build());
+                }
+            } catch (IOException | RuntimeException e) {
+                return;
+            }
+            mainHandler.post(() -> {
+                if (differs && generation == loadGeneration && isAdded() && isSaved()) loadFileContent();
+            });
+        });
+    }
 }
@@ -0,0 +1,340 @@
+package com.codestudio.mobile;
+
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Find and replace over the editor's document, in place.
+ * <p>
+ * Literal queries scan a small window copied out of the document at a time and never copy the
+ * whole text. Regex queries need a String (Android's Matcher copies its input on every reset),
+ * so Next, Replace and Replace All run one Matcher over a copy of the document made at most once
+ * per edit, and Replace All walks its matches with sequential finds. Highlighting asks only for
+ * the matches in the range on screen: regex queries match a copy of just that range plus
+ * MAX_REGEX_OVERHANG characters on either side, and the answer is cached until the document
+ * changes.
+ * <p>
+ * Replace All builds the text between the first and the last match once and applies it as a
+ * single replace, so the editor, line index, highlighter and undo history see one edit no
+ * matter how many matches there are.
+ * <p>
+ * Empty matches (of "^" or "x*", say) are skipped. Not thread-safe; use from the main thread.
+ */
+public class TextSearch {
+
+    private static final int WINDOW_CHARS = 16 * 1024;
+    // Highlighting stops after this many matches in one range, e.g. a one-letter query.
+    public static final int MAX_RANGE_MATCHES = 2000;
+    // Regex matches in a highlighted range see at most this much text on either side of it.
+    private static final int MAX_REGEX_OVERHANG = 1024;
+
+    private final String query;
+    private final boolean matchCase;
+    // The query, lower-cased unless matchCase; null in regex mode.
+    private final char[] literal;
+    private final Pattern pattern;
+
+    private char[] window;
+    // Regex mode: runs over a String copy of matcherText, dropped by onTextChanged().
+    private Matcher matcher;
+    private CharSequence matcherText;
+    private int matchStart = -1;
+    private int matchEnd = -1;
+
+    private CharSequence rangeText;
+    private int rangeStart = -1;
+    private int rangeEnd = -1;
+    private int[] rangeMatches;
+
+    /**
+     * @throws PatternSyntaxException if regex is set and the query is not a valid pattern
+     */
+    public TextSearch(String query, boolean regex, boolean matchCase) {
+        if (query.isEmpty()) throw new IllegalArgumentException("Empty query");
+        this.query = query;
+        this.matchCase = matchCase;
+        if (regex) {
+            int flags = Pattern.MULTILINE | (matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            pattern = Pattern.compile(query, flags);
+            literal = null;
+        } else {
+            pattern = null;
+            literal = query.toCharArray();
+            if (!matchCase) {
+                for (int i = 0; i < literal.length; i++) literal[i] = Character.toLowerCase(literal[i]);
+            }
+        }
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public boolean isRegex() {
+        return pattern != null;
+    }
+
+    public boolean isMatchCase() {
+        return matchCase;
+    }
+
+    /**
+     * Start of the match found by the last successful find.
+     */
+    public int start() {
+        return matchStart;
+    }
+
+    /**
+     * End (exclusive) of the match found by the last successful find.
+     */
+    public int end() {
+        return matchEnd;
+    }
+
+    /**
+     * Finds the first match starting at or after from, wrapping around to the start of the text.
+     */
+    public boolean find(CharSequence text, int from) {
+        from = Math.max(0, Math.min(from, text.length()));
+        return next(text, from, text.length()) || (from > 0 && next(text, 0, from));
+    }
+
+    /**
+     * Whether [start, end) of text is exactly a match, e.g. the selection left by {@link #find}.
+     */
+    public boolean isMatchAt(CharSequence text, int start, int end) {
+        if (start < 0 || end > text.length() || start >= end) return false;
+        return next(text, start, start + 1) && matchStart == start && matchEnd == end;
+    }
+
+    /**
+     * The matches starting in [start, end) as (start, end) pairs, at most MAX_RANGE_MATCHES of
+     * them. Repeated calls for the same range are answered from a cache until
+     * {@link #onTextChanged()}.
+     */
+    public int[] findInRange(CharSequence text, int start, int end) {
+        start = Math.max(0, start);
+        end = Math.min(end, text.length());
+        if (text == rangeText && start == rangeStart && end == rangeEnd) return rangeMatches;
+        int[] pairs = new int[16];
+        int count = 0;
+        Matcher windowMatcher = null;
+        int windowStart = 0;
+        boolean found;
+        if (pattern != null) {
+            windowStart = Math.max(0, start - MAX_REGEX_OVERHANG);
+            int windowEnd = (int) Math.min(text.length(), (long) end + MAX_REGEX_OVERHANG);
+            StringBuilder window = new StringBuilder(windowEnd - windowStart);
+            appendRange(window, text, windowStart, windowEnd);
+            windowMatcher = newMatcher(window.toString(), start - windowStart);
+            found = nextRegex(windowMatcher, end, windowStart);
+        } else {
+            found = start < end && next(text, start, end);
+        }
+        while (found && count < 2 * MAX_RANGE_MATCHES) {
+            if (count == pairs.length) pairs = Arrays.copyOf(pairs, count * 2);
+            pairs[count++] = matchStart;
+            pairs[count++] = matchEnd;
+            if (windowMatcher != null) {
+                found = nextRegex(windowMatcher, end, windowStart);
+            } else {
+                found = matchEnd < end && next(text, matchEnd, end);
+            }
+        }
+        rangeText = text;
+        rangeStart = start;
+        rangeEnd = end;
+        rangeMatches = Arrays.copyOf(pairs, count);
+        return rangeMatches;
+    }
+
+    /**
+     * Drops cached matches; call after every edit of the searched text.
+     */
+    public void onTextChanged() {
+        rangeText = null;
+        rangeMatches = null;
+        matcherText = null;
+        matcher = null;
+        matchStart = -1;
+        matchEnd = -1;
+    }
+
+    /**
+     * Checks a replacement before it is applied: in regex mode "$n" refers to group n and a
+     * backslash quotes the next character.
+     *
+     * @throws IllegalArgumentException naming the problem
+     */
+    public void checkReplacement(String replacement) {
+        if (pattern == null) return;
+        int groups = pattern.matcher("").groupCount();
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                if (++i == replacement.length()) throw new IllegalArgumentException("Trailing \\ in replacement");
+            } else if (c == '$') {
+                if (i + 1 == replacement.length() || !Character.isDigit(replacement.charAt(i + 1))) {
+                    throw new IllegalArgumentException("$ must be followed by a group number; use \\$ for a dollar sign");
+                }
+                int group = replacement.charAt(++i) - '0';
+                if (group > groups) throw new IllegalArgumentException("No group " + group + " in the query");
+            }
+        }
+    }
+
+    /**
+     * Replaces the match at [start, end) through target and returns the end of the inserted
+     * text, or -1 if that range is no longer a match.
+     */
+    public int replace(CharSequence text, int start, int end, String replacement, EditHistory.Target target) {
+        if (!isMatchAt(text, start, end)) return -1;
+        StringBuilder out = new StringBuilder();
+        appendReplacement(out, text, replacement);
+        target.replace(start, end, out);
+        onTextChanged();
+        return start + out.length();
+    }
+
+    /**
+     * Replaces every match with one replace through target and returns the number of matches.
+     */
+    public int replaceAll(CharSequence text, String replacement, EditHistory.Target target) {
+        StringBuilder out = null;
+        int first = -1;
+        int copied = 0;
+        int count = 0;
+        int length = text.length();
+        boolean found = next(text, 0, length);
+        while (found) {
+            if (out == null) {
+                out = new StringBuilder(Math.min(length, 1024));
+                first = matchStart;
+                copied = first;
+            }
+            appendRange(out, text, copied, matchStart);
+            appendReplacement(out, text, replacement);
+            copied = matchEnd;
+            count++;
+            // The matcher carries on from this match instead of being reset for the next one.
+            found = pattern != null ? nextRegex(matcher, length, 0) : matchEnd < length && next(text, matchEnd, length);
+        }
+        if (count > 0) {
+            target.replace(first, copied, out);
+            onTextChanged();
+        }
+        return count;
+    }
+
+    // Finds the first non-empty match that starts in [from, limit) and sets matchStart/matchEnd.
+    private boolean next(CharSequence text, int from, int limit) {
+        if (pattern != null) {
+            if (matcher == null || matcherText != text) {
+                matcher = newMatcher(text.toString(), from);
+                matcherText = text;
+            } else {
+                matcher.region(from, text.length());
+            }
+            return nextRegex(matcher, limit, 0);
+        }
+        int start = indexOf(text, from, limit);
+        if (start < 0) return false;
+        matchStart = start;
+        matchEnd = start + literal.length;
+        return true;
+    }
+
+    // A matcher over input whose region starts at from; text before it is still seen by
+    // lookbehind and "^".
+    private Matcher newMatcher(String input, int from) {
+        Matcher created = pattern.matcher(input);
+        created.useTransparentBounds(true);
+        created.useAnchoringBounds(false);
+        if (from > 0) created.region(from, input.length());
+        return created;
+    }
+
+    // Advances m to its next non-empty match, which must start before limit; offset is where
+    // m's input starts in the text.
+    private boolean nextRegex(Matcher m, int limit, int offset) {
+        while (m.find()) {
+            if (m.start() + offset >= limit) return false;
+            if (m.end() > m.start()) {
+                matchStart = m.start() + offset;
+                matchEnd = m.end() + offset;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Scans window-sized copies of the text for the literal; the windows overlap by its length.
+    private int indexOf(CharSequence text, int from, int limit) {
+        int n = literal.length;
+        int lastStart = Math.min(limit, text.length() - n + 1);
+        if (window == null) window = new char[Math.max(WINDOW_CHARS, 2 * n)];
+        char first = literal[0];
+        while (from < lastStart) {
+            int copyEnd = Math.min(lastStart + n - 1, from + window.length);
+            copy(text, from, copyEnd, window);
+            int starts = copyEnd - from - n + 1;
+            for (int i = 0; i < starts; i++) {
+                if (fold(window[i]) != first) continue;
+                int j = 1;
+                while (j < n && fold(window[i + j]) == literal[j]) j++;
+                if (j == n) return from + i;
+            }
+            from += starts;
+        }
+        return -1;
+    }
+
+    private char fold(char c) {
+        return matchCase ? c : Character.toLowerCase(c);
+    }
+
+    private void appendReplacement(StringBuilder out, CharSequence text, String replacement) {
+        if (pattern == null) {
+            out.append(replacement);
+            return;
+        }
+        for (int i = 0; i < replacement.length(); i++) {
+            char c = replacement.charAt(i);
+            if (c == '\\') {
+                out.append(replacement.charAt(++i));
+            } else if (c == '$') {
+                int group = replacement.charAt(++i) - '0';
+                if (matcher.start(group) >= 0) appendRange(out, text, matcher.start(group), matcher.end(group));
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private void appendRange(StringBuilder out, CharSequence text, int start, int end) {
+        if (!(text instanceof PieceTable)) {
+            out.append(text, start, end);
+            return;
+        }
+        if (window == null) window = new char[WINDOW_CHARS];
+        while (start < end) {
+            int count = Math.min(end - start, window.length);
+            copy(text, start, start + count, window);
+            out.append(window, 0, count);
+            start += count;
+        }
+    }
+
+    private static void copy(CharSequence text, int start, int end, char[] dst) {
+        if (text instanceof PieceTable) {
+            ((PieceTable) text).getChars(start, end, dst, 0);
+        } else if (text instanceof String) {
+            ((String) text).getChars(start, end, dst, 0);
+        } else {
+            for (int i = start; i < end; i++) dst[i - start] = text.charAt(i);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.codestudio.mobile;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watches the folders shown in the drawer for changes made outside the app (git, a build in
+ * Termux, another file manager) and reports which of them changed.
+ * <p>
+ * Each watched folder keeps a children cursor open with a ContentObserver on it: providers
+ * such as external storage only monitor a directory while a cursor on it is open, and notify
+ * that cursor's notification URI. Events arrive in bursts (a checkout touches hundreds of
+ * files), so they are collected and delivered once the folder set has been quiet for the
+ * debounce delay, or after MAX_DELAY_MS at the latest while events keep coming.
+ */
+public class TreeChangeWatcher {
+
+    private static final String TAG = "TreeChangeWatcher";
+    public static final long DEFAULT_DEBOUNCE_MS = 300;
+    private static final long MAX_DELAY_MS = 2000;
+    // Every watch holds a cursor and a provider-side monitor; deeper folders need a manual refresh.
+    public static final int MAX_WATCHED = 128;
+    private static final String[] ID_COLUMN = {DocumentsContract.Document.COLUMN_DOCUMENT_ID};
+
+    private final ContentResolver resolver;
+    private final Uri treeUri;
+    private final Handler handler;
+    private final long debounceMillis;
+    private final Listener listener;
+    private final Runnable flush = this::flush;
+
+    // Guarded by this.
+    private final Map<String, Watch> watches = new HashMap<>();
+    private boolean stopped;
+    // Main thread only.
+    private final Set<String> pending = new HashSet<>();
+    private long firstPendingMillis;
+
+    public interface Listener {
+        /**
+         * Called on the handler's thread with the document IDs of the folders whose children
+         * changed.
+         */
+        void onFoldersChanged(Set<String> documentIds);
+    }
+
+    public TreeChangeWatcher(ContentResolver resolver, Uri treeUri, Handler handler, long debounceMillis, Listener listener) {
+        this.resolver = resolver;
+        this.treeUri = treeUri;
+        this.handler = handler;
+        this.debounceMillis = debounceMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Makes documentIds (in priority order, at most MAX_WATCHED of them) the watched folders.
+     * Queries the provider for newly watched folders, so call off the main thread.
+     */
+    public void watch(Collection<String> documentIds) {
+        Set<String> wanted = new HashSet<>();
+        for (String documentId : documentIds) {
+            if (wanted.size() == MAX_WATCHED) break;
+            wanted.add(documentId);
+        }
+        synchronized (this) {
+            if (stopped) return;
+            for (Iterator<Map.Entry<String, Watch>> it = watches.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Watch> entry = it.next();
+                if (!wanted.contains(entry.getKey())) {
+                    entry.getValue().close();
+                    it.remove();
+                }
+            }
+            wanted.removeAll(watches.keySet());
+        }
+        for (String documentId : wanted) {
+            Watch watch = open(documentId);
+            if (watch == null) continue;
+            synchronized (this) {
+                if (stopped || watches.containsKey(documentId)) {
+                    watch.close();
+                } else {
+                    watches.put(documentId, watch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes every watch and drops pending events; the watcher cannot be restarted.
+     */
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            for (Watch watch : watches.values()) watch.close();
+            watches.clear();
+        }
+        handler.post(() -> {
+            handler.removeCallbacks(flush);
+            pending.clear();
+        });
+    }
+
+    public synchronized int getWatchedCount() {
+        return watches.size();
+    }
+
+    private Watch open(String documentId) {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        ContentObserver observer = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onFolderChanged(documentId);
+            }
+        };
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(childrenUri, ID_COLUMN, null, null, null);
+            if (cursor != null) cursor.registerContentObserver(observer);
+            // Some providers notify the children URI itself instead of the cursor's.
+            resolver.registerContentObserver(childrenUri, false, observer);
+            return new Watch(cursor, observer);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot watch " + documentId + ": " + e.getMessage());
+            if (cursor != null) cursor.close();
+            return null;
+        }
+    }
+
+    private void onFolderChanged(String documentId) {
+        synchronized (this) {
+            if (stopped || !watches.containsKey(documentId)) return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (pending.isEmpty()) firstPendingMillis = now;
+        pending.add(documentId);
+        handler.removeCallbacks(flush);
+        long delay = Math.min(debounceMillis, firstPendingMillis + MAX_DELAY_MS - now);
+        handler.postDelayed(flush, Math.max(0, delay));
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) return;
+        Set<String> changed = new HashSet<>(pending);
+        pending.clear();
+        listener.onFoldersChanged(changed);
+    }
+
+    private final class Watch {
+        private final Cursor cursor;
+        private final ContentObserver observer;
+
+        Watch(Cursor cursor, ContentObserver observer) {
+            this.cursor = cursor;
+            this.observer = observer;
+        }
+
+        void close() {
+            resolver.unregisterContentObserver(observer);
+            if (cursor != null) {
+                cursor.unregisterContentObserver(observer);
+                cursor.close();
+            }
+        }
+    }
+}
@@ -314,6 +314,13 @@ public class ViewPagerAdapter extends FragmentStateAdapter {
         return Uri.parse("content://your_base/" + path); // Adjust based on your scheme
     }
 
+    /**
+     * Whether fragment is still shown for uri, i.e. its tab has not been closed.
+     */
+    public boolean hasTab(Fragment fragment, Uri uri) {
+        return fragments.contains(fragment) && fileUris.contains(uri);
+    }
+
     public int findTabPositionByName(String name) {
         for (int i = 0; i < fileNames.size(); i++) {
             if (fileNames.get(i).equals(name)) {
@@ -412,30 +419,43 @@ public class ViewPagerAdapter extends FragmentStateAdapter {
         notifyDataSetChanged();
     }
 
+    // Only tabs whose content differs from the file on disk are returned; clean tabs are skipped.
     public List<FilesAdapter.FileContentItem> getOpenFilesContent() {
         List<FilesAdapter.FileContentItem> filesToSave = new ArrayList<>();
         for (int i = 0; i < getItemCount(); i++) {
-            Uri uri = fileUris.get(i);
-
-            // Skip special URIs that don't need saving (including the Run: tabs)
-            if (uri.equals(WELCOME_URI) || uri.equals(UNTITLED_FILE_URI) || fileNames.get(i).startsWith("Run:")) {
-                continue;
+            TextFragment textFragment = findUnsavedFragment(i);
+            if (textFragment != null) {
+                PieceTable snapshot = textFragment.getDocumentSnapshot();
+                filesToSave.add(new FilesAdapter.FileContentItem(fileUris.get(i), snapshot,
+                        () -> textFragment.onSnapshotSaved(snapshot)));
             }
+        }
+        return filesToSave;
+    }
 
-            long itemId = getItemId(i);
-            String fragmentTag = "f" + itemId;
-            Fragment fragment = activity.getSupportFragmentManager().findFragmentByTag(fragmentTag);
+    public List<Uri> getUnsavedFileUris() {
+        List<Uri> unsaved = new ArrayList<>();
+        for (int i = 0; i < getItemCount(); i++) {
+            if (findUnsavedFragment(i) != null) unsaved.add(fileUris.get(i));
+        }
+        return unsaved;
+    }
 
-            if (fragment instanceof TextFragment) {
-                TextFragment textFragment = (TextFragment) fragment;
-                if (!textFragment.isSaved()) {
-                    byte[] content = textFragment.getContents();
-                    if (content != null) {
-                        filesToSave.add(new FilesAdapter.FileContentItem(uri, content));
-                    }
-                }
-            }
+    private TextFragment findUnsavedFragment(int position) {
+        Uri uri = fileUris.get(position);
+
+        // Skip special URIs that don't need saving (including the Run: tabs)
+        if (uri.equals(WELCOME_URI) || uri.equals(UNTITLED_FILE_URI) || fileNames.get(position).startsWith("Run:")) {
+            return null;
         }
-        return filesToSave;
+
+        long itemId = getItemId(position);
+        String fragmentTag = "f" + itemId;
+        Fragment fragment = activity.getSupportFragmentManager().findFragmentByTag(fragmentTag);
+
+        if (fragment instanceof TextFragment && !((TextFragment) fragment).isSaved()) {
+            return (TextFragment) fragment;
+        }
+        return null;
     }
 }